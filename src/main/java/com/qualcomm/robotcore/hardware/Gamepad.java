@@ -409,21 +409,26 @@ public class Gamepad extends RobocolParsableBase {
 
     @Override
     public byte[] toByteArray() throws RobotCoreException {
+        return writeToNewArray(BUFFER_SIZE);
+    }
 
-        ByteBuffer buffer = getWriteBuffer(PAYLOAD_SIZE);
+    @Override
+    public int writeTo(ByteBuffer buffer) throws RobotCoreException {
 
         try {
             int buttons = 0;
 
+            putHeader(buffer, PAYLOAD_SIZE);
+
             buffer.put(ROBOCOL_VERSION);
             buffer.putInt(id);
-            buffer.putLong(timestamp).array();
-            buffer.putFloat(left_stick_x).array();
-            buffer.putFloat(left_stick_y).array();
-            buffer.putFloat(right_stick_x).array();
-            buffer.putFloat(right_stick_y).array();
-            buffer.putFloat(left_trigger).array();
-            buffer.putFloat(right_trigger).array();
+            buffer.putLong(timestamp);
+            buffer.putFloat(left_stick_x);
+            buffer.putFloat(left_stick_y);
+            buffer.putFloat(right_stick_x);
+            buffer.putFloat(right_stick_y);
+            buffer.putFloat(left_trigger);
+            buffer.putFloat(right_trigger);
 
             buttons = (buttons << 1) + (left_stick_button ? 1 : 0);
             buttons = (buttons << 1) + (right_stick_button ? 1 : 0);
@@ -444,19 +449,24 @@ public class Gamepad extends RobocolParsableBase {
 
             buffer.put(user);
         } catch (BufferOverflowException e) {
-            RobotLog.logStacktrace(e);
+            throw bufferTooSmall(e, buffer);
         }
 
-        return buffer.array();
+        return BUFFER_SIZE;
     }
 
     @Override
     public void fromByteArray(byte[] byteArray) throws RobotCoreException {
-        if (byteArray.length < BUFFER_SIZE) {
-            throw new RobotCoreException("Expected buffer of at least " + BUFFER_SIZE + " bytes, received " + byteArray.length);
+        fromByteBuffer(ByteBuffer.wrap(byteArray), 0, byteArray.length);
+    }
+
+    @Override
+    public void fromByteBuffer(ByteBuffer buffer, int offset, int length) throws RobotCoreException {
+        if (length < BUFFER_SIZE) {
+            throw new RobotCoreException("Expected buffer of at least " + BUFFER_SIZE + " bytes, received " + length);
         }
 
-        ByteBuffer byteBuffer = getReadBuffer(byteArray);
+        ByteBuffer byteBuffer = getReadBuffer(buffer, offset, length);
 
         int buttons = 0;
 
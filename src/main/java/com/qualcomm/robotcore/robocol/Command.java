@@ -31,10 +31,10 @@
 package com.qualcomm.robotcore.robocol;
 
 import com.qualcomm.robotcore.exception.RobotCoreException;
-import com.qualcomm.robotcore.util.RobotLog;
 import com.qualcomm.robotcore.util.TypeConversion;
 
 import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 
@@ -83,6 +83,10 @@ public class Command extends RobocolParsableBase implements Comparable<Command>,
         fromByteArray(byteArray);
     }
 
+    public Command(ByteBuffer byteBuffer, int offset, int length) throws RobotCoreException {
+        fromByteBuffer(byteBuffer, offset, length);
+    }
+
     /**
      * The receiver should call this method before sending this command back to the sender
      */
@@ -151,32 +155,42 @@ public class Command extends RobocolParsableBase implements Comparable<Command>,
      */
     @Override
     public byte[] toByteArray() throws RobotCoreException {
+        int cbPayload = getPayloadSize(TypeConversion.utf8Length(mName), TypeConversion.utf8Length(mExtra));
+        return writeToNewArray(HEADER_LENGTH + cbPayload);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.qualcomm.robotcore.robocol.RobocolParsable#writeTo(ByteBuffer)
+     */
+    @Override
+    public int writeTo(ByteBuffer buffer) throws RobotCoreException {
 
         if (mAttempts != Byte.MAX_VALUE) mAttempts += 1;
 
-        byte[] nameBytes = TypeConversion.stringToUtf8(mName);
-        byte[] extraBytes = TypeConversion.stringToUtf8(mExtra);
+        int cbName = TypeConversion.utf8Length(mName);
+        int cbExtra = TypeConversion.utf8Length(mExtra);
 
-        short cbPayload = (short) getPayloadSize(nameBytes.length, extraBytes.length);
+        int cbPayload = getPayloadSize(cbName, cbExtra);
         if (cbPayload > Short.MAX_VALUE)
             throw new IllegalArgumentException(String.format("command payload is too large: %d", cbPayload));
 
-        ByteBuffer buffer = getWriteBuffer(cbPayload);
         try {
+            putHeader(buffer, cbPayload);
             buffer.putLong(mTimestamp);
             buffer.put((byte) (mAcknowledged ? 1 : 0));
-            buffer.putShort((short) nameBytes.length);
-            buffer.put(nameBytes);
+            buffer.putShort((short) cbName);
+            TypeConversion.putUtf8(buffer, mName);
 
             // If we are just an ack, then we don't transmit the body in order to save net bandwidth
             if (!mAcknowledged) {
-                buffer.putShort((short) extraBytes.length);
-                buffer.put(extraBytes);
+                buffer.putShort((short) cbExtra);
+                TypeConversion.putUtf8(buffer, mExtra);
             }
         } catch (BufferOverflowException e) {
-            RobotLog.logStacktrace(e);
+            throw bufferTooSmall(e, buffer);
         }
-        return buffer.array();
+        return HEADER_LENGTH + cbPayload;
     }
 
     int getPayloadSize(int nameBytesLength, int extraBytesLength) {
@@ -193,21 +207,30 @@ public class Command extends RobocolParsableBase implements Comparable<Command>,
      */
     @Override
     public void fromByteArray(byte[] byteArray) throws RobotCoreException {
-        ByteBuffer buffer = getReadBuffer(byteArray);
+        fromByteBuffer(ByteBuffer.wrap(byteArray), 0, byteArray.length);
+    }
 
-        mTimestamp = buffer.getLong();
-        mAcknowledged = (buffer.get() != 0);
+    /*
+     * (non-Javadoc)
+     * @see com.qualcomm.robotcore.robocol.RobocolParsable#fromByteBuffer(ByteBuffer, int, int)
+     */
+    @Override
+    public void fromByteBuffer(ByteBuffer byteBuffer, int offset, int length) throws RobotCoreException {
+        try {
+            ByteBuffer buffer = getReadBuffer(byteBuffer, offset, length);
+
+            mTimestamp = buffer.getLong();
+            mAcknowledged = (buffer.get() != 0);
 
-        int cbName = TypeConversion.unsignedShortToInt(buffer.getShort());
-        byte[] nameBytes = new byte[cbName];
-        buffer.get(nameBytes);
-        mName = TypeConversion.utf8ToString(nameBytes);
+            int cbName = TypeConversion.unsignedShortToInt(buffer.getShort());
+            mName = TypeConversion.utf8ToString(buffer, cbName);
 
-        if (!mAcknowledged) {
-            int cbExtra = TypeConversion.unsignedShortToInt(buffer.getShort());
-            byte[] extraBytes = new byte[cbExtra];
-            buffer.get(extraBytes);
-            mExtra = TypeConversion.utf8ToString(extraBytes);
+            if (!mAcknowledged) {
+                int cbExtra = TypeConversion.unsignedShortToInt(buffer.getShort());
+                mExtra = TypeConversion.utf8ToString(buffer, cbExtra);
+            }
+        } catch (BufferUnderflowException e) {
+            throw RobotCoreException.createChained(e, "incoming packet too small");
         }
     }
 
@@ -0,0 +1,148 @@
+package com.qualcomm.robotcore.robocol;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A RobocolDatagram received by a {@link RobocolDatagramChannelSocket} directly into a pooled
+ * direct ByteBuffer. There is no DatagramPacket behind one of these; on close() the whole
+ * datagram, buffer and all, goes back to the socket that received it.
+ */
+class DirectRobocolDatagram extends RobocolDatagram {
+
+    //-----------------------------------------------------------------------------------------------
+    // State
+    //-----------------------------------------------------------------------------------------------
+
+    private final RobocolDatagramChannelSocket owner;
+
+    /**
+     * the direct buffer the channel receives into; position 0, limit {@link #length} once filled
+     */
+    final ByteBuffer buffer;
+
+    /**
+     * number of valid bytes in {@link #buffer}
+     */
+    int length = 0;
+
+    /**
+     * who sent us this datagram
+     */
+    InetAddress address = null;
+
+    /**
+     * true while we're sitting idle in our owner's pool
+     */
+    boolean pooled = false;
+
+    /**
+     * lazily allocated heap copy handed out by getData(); reused across receives
+     */
+    private byte[] heapCopy = null;
+
+    //-----------------------------------------------------------------------------------------------
+    // Construction
+    //-----------------------------------------------------------------------------------------------
+
+    DirectRobocolDatagram(RobocolDatagramChannelSocket owner, int capacity) {
+        this.owner = owner;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Teardown
+    //-----------------------------------------------------------------------------------------------
+
+    @Override
+    public void close() {
+        owner.recycle(this);
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Operations
+    //-----------------------------------------------------------------------------------------------
+
+    @Override
+    public RobocolParsable.MsgType getMsgType() {
+        return RobocolParsable.MsgType.fromByte(buffer.get(0));
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public int getPayloadLength() {
+        return length - RobocolParsable.HEADER_LENGTH;
+    }
+
+    /**
+     * Returns a heap copy of the received bytes. The array is owned by this datagram and is
+     * reused after close(), so, as with the classic receive buffers, don't hang onto it.
+     */
+    @Override
+    public byte[] getData() {
+        if (heapCopy == null || heapCopy.length < buffer.capacity()) {
+            heapCopy = new byte[buffer.capacity()];
+        }
+        int position = buffer.position();
+        buffer.position(0);
+        buffer.get(heapCopy, 0, length);
+        buffer.position(position);
+        return heapCopy;
+    }
+
+    /**
+     * Returns the direct buffer the datagram was received into; nothing is copied
+     */
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public void setData(byte[] data) {
+        throw new UnsupportedOperationException("received datagrams are read-only");
+    }
+
+    @Override
+    public void setData(byte[] data, int length) {
+        throw new UnsupportedOperationException("received datagrams are read-only");
+    }
+
+    @Override
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public void setAddress(InetAddress address) {
+        this.address = address;
+    }
+
+    @Override
+    public String toString() {
+        int size = 0;
+        String type = "NONE";
+        String addr = null;
+
+        if (address != null && length > 0) {
+            type = getMsgType().name();
+            size = length;
+            addr = address.getHostAddress();
+        }
+
+        return String.format("RobocolDatagram - type:%s, addr:%s, size:%d", type, addr, size);
+    }
+
+    /**
+     * Readies this datagram for another trip through DatagramChannel.receive()/read()
+     */
+    void reset() {
+        buffer.clear();
+        length = 0;
+        address = null;
+    }
+}
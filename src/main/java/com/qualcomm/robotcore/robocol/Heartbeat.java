@@ -33,7 +33,6 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.robot.RobotState;
 import com.qualcomm.robotcore.util.ElapsedTime;
-import com.qualcomm.robotcore.util.RobotLog;
 
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
@@ -77,6 +76,18 @@ public class Heartbeat extends RobocolParsableBase {
         return result;
     }
 
+    /**
+     * Readies this Heartbeat for reuse, leaving it as {@link #createWithTimeStamp()} would have
+     * created it, but without allocating.
+     */
+    public void renewWithTimeStamp() {
+        setSequenceNumber();
+        nanotimeTransmit = 0;
+        robotState = RobotState.NOT_STARTED;
+        t0 = t1 = t2 = 0;
+        timestamp = System.nanoTime();
+    }
+
     //------------------------------------------------------------------------------------------------
     // Time Synchronization
     //------------------------------------------------------------------------------------------------
@@ -149,17 +160,25 @@ public class Heartbeat extends RobocolParsableBase {
      */
     @Override
     public byte[] toByteArray() throws RobotCoreException {
-        ByteBuffer buffer = getWriteBuffer(PAYLOAD_SIZE);
+        return writeToNewArray(HEADER_LENGTH + PAYLOAD_SIZE);
+    }
+
+    /**
+     * Write this Heartbeat into a buffer
+     */
+    @Override
+    public int writeTo(ByteBuffer buffer) throws RobotCoreException {
         try {
+            putHeader(buffer, PAYLOAD_SIZE);
             buffer.putLong(timestamp);
             buffer.put(robotState.asByte());
             buffer.putLong(t0);
             buffer.putLong(t1);
             buffer.putLong(t2);
         } catch (BufferOverflowException e) {
-            RobotLog.logStacktrace(e);
+            throw bufferTooSmall(e, buffer);
         }
-        return buffer.array();
+        return HEADER_LENGTH + PAYLOAD_SIZE;
     }
 
     /**
@@ -167,8 +186,16 @@ public class Heartbeat extends RobocolParsableBase {
      */
     @Override
     public void fromByteArray(byte[] byteArray) throws RobotCoreException {
+        fromByteBuffer(ByteBuffer.wrap(byteArray), 0, byteArray.length);
+    }
+
+    /**
+     * Populate this Heartbeat from a range of a buffer
+     */
+    @Override
+    public void fromByteBuffer(ByteBuffer buffer, int offset, int length) throws RobotCoreException {
         try {
-            ByteBuffer byteBuffer = getReadBuffer(byteArray);
+            ByteBuffer byteBuffer = getReadBuffer(buffer, offset, length);
             timestamp = byteBuffer.getLong();
             robotState = RobotState.fromByte(byteBuffer.get());
             t0 = byteBuffer.getLong();
@@ -0,0 +1,462 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.ThreadPool;
+import com.qualcomm.robotcore.util.TimerWheel;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link ImpairedTransport} wraps another {@link RobocolTransport} and does to the datagrams that
+ * pass through it what competition Wi-Fi does: loses some, delays them all by a fixed latency
+ * plus jitter, duplicates some, holds some back so that later ones overtake them, and squeezes
+ * them through a link of limited bandwidth. Sends and receives are impaired independently.
+ * <p>
+ * Delayed datagrams wait on a shared {@link TimerWheel}, not on a thread apiece. Receives are
+ * impaired by a pump thread that takes everything the wrapped transport receives and passes it
+ * on through the same machinery; it only runs if there's receive impairment to do.
+ *
+ * @see RobocolConfig#sendImpairment
+ * @see RobocolConfig#receiveImpairment
+ */
+@SuppressWarnings("WeakerAccess")
+public class ImpairedTransport implements RobocolTransport {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "ImpairedTransport";
+
+    /**
+     * How to impair one direction of traffic. Rates are probabilities between zero and one; a
+     * bandwidth of zero is unlimited. Changes take effect from the next datagram, though receive
+     * impairment must be in place when the transport is bound for there to be any.
+     */
+    public static class Impairment {
+        public double lossRate = 0;
+        public int msLatency = 0;
+        public int msJitter = 0;            // a uniformly distributed extra delay of up to this much
+        public double duplicateRate = 0;
+        public double reorderRate = 0;
+        public int msReorderDelay = 20;     // how much longer than the others reordered datagrams take
+        public long bitsPerSecond = 0;
+        public int msMaxQueueDelay = 200;   // datagrams that would wait longer for bandwidth are lost
+
+        public Impairment() {
+        }
+
+        public Impairment(Impairment other) {
+            this.lossRate = other.lossRate;
+            this.msLatency = other.msLatency;
+            this.msJitter = other.msJitter;
+            this.duplicateRate = other.duplicateRate;
+            this.reorderRate = other.reorderRate;
+            this.msReorderDelay = other.msReorderDelay;
+            this.bitsPerSecond = other.bitsPerSecond;
+            this.msMaxQueueDelay = other.msMaxQueueDelay;
+        }
+
+        public boolean isNone() {
+            return lossRate <= 0 && msLatency <= 0 && msJitter <= 0 && duplicateRate <= 0 && reorderRate <= 0 && bitsPerSecond <= 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("loss:%.3f latency:%dms jitter:%dms duplicate:%.3f reorder:%.3f/%dms bandwidth:%dbps",
+                    lossRate, msLatency, msJitter, duplicateRate, reorderRate, msReorderDelay, bitsPerSecond);
+        }
+    }
+
+    /**
+     * What's been done to one direction of traffic
+     */
+    public static class Stats {
+        public final AtomicLong passed = new AtomicLong();
+        public final AtomicLong lost = new AtomicLong();
+        public final AtomicLong queueDrops = new AtomicLong();
+        public final AtomicLong duplicated = new AtomicLong();
+        public final AtomicLong reordered = new AtomicLong();
+        public final AtomicLong delayed = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return String.format("passed:%d lost:%d queueDrops:%d duplicated:%d reordered:%d delayed:%d",
+                    passed.get(), lost.get(), queueDrops.get(), duplicated.get(), reordered.get(), delayed.get());
+        }
+    }
+
+    /**
+     * One direction's impairment, and the state of its simulated link
+     */
+    protected abstract class Direction {
+        protected final Impairment impairment;
+        protected final Stats stats = new Stats();
+        protected final Random random;
+        protected long nanotimeLinkFree = 0;    // when the last datagram will have made it through; guarded by this
+
+        Direction(Impairment impairment, long seed) {
+            this.impairment = impairment;
+            this.random = new Random(seed);
+        }
+
+        /**
+         * Does to the datagram what the impairment says to. The datagram is ours to keep.
+         */
+        void impair(final RobocolDatagram datagram) {
+            Impairment impairment = this.impairment;
+            final int closeCount = ImpairedTransport.this.closeCount;
+            if (random.nextDouble() < impairment.lossRate) {
+                stats.lost.incrementAndGet();
+                datagram.close();
+                return;
+            }
+
+            // The duplicate is made now, as the original may be gone once it's delivered
+            RobocolDatagram duplicate = null;
+            if (random.nextDouble() < impairment.duplicateRate) {
+                stats.duplicated.incrementAndGet();
+                duplicate = copyOf(datagram);
+            }
+
+            for (int i = 0; i < (duplicate == null ? 1 : 2); i++) {
+                final RobocolDatagram copy = i == 0 ? datagram : duplicate;
+
+                long nanosDelay = impairment.msLatency * ElapsedTime.MILLIS_IN_NANO;
+                if (impairment.msJitter > 0) {
+                    nanosDelay += (long) (random.nextDouble() * impairment.msJitter * ElapsedTime.MILLIS_IN_NANO);
+                }
+                if (random.nextDouble() < impairment.reorderRate) {
+                    stats.reordered.incrementAndGet();
+                    nanosDelay += impairment.msReorderDelay * ElapsedTime.MILLIS_IN_NANO;
+                }
+                if (impairment.bitsPerSecond > 0) {
+                    long nanosQueued = reserveBandwidth(copy.getLength(), impairment);
+                    if (nanosQueued < 0) {
+                        stats.queueDrops.incrementAndGet();
+                        copy.close();
+                        continue;
+                    }
+                    nanosDelay += nanosQueued;
+                }
+
+                stats.passed.incrementAndGet();
+                if (nanosDelay <= 0) {
+                    deliver(copy, closeCount);
+                } else {
+                    stats.delayed.incrementAndGet();
+                    timerWheel.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(copy, closeCount);
+                        }
+                    }, nanosDelay, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        /**
+         * Takes our turn on the simulated link
+         *
+         * @return how long we'll wait for the datagrams ahead of us, plus our own transmission
+         * time; negative if that's too long, and we're to be dropped
+         */
+        synchronized long reserveBandwidth(int cb, Impairment impairment) {
+            long nanotimeNow = System.nanoTime();
+            long nanotimeStart = Math.max(nanotimeNow, nanotimeLinkFree);
+            if (nanotimeStart - nanotimeNow > impairment.msMaxQueueDelay * ElapsedTime.MILLIS_IN_NANO) {
+                return -1;
+            }
+            nanotimeLinkFree = nanotimeStart + cb * 8L * ElapsedTime.SECOND_IN_NANO / impairment.bitsPerSecond;
+            return nanotimeLinkFree - nanotimeNow;
+        }
+
+        /**
+         * Passes the datagram on, unless we've been closed since it was impaired, in which
+         * case it's dropped. Either way, the datagram is ours to dispose of.
+         */
+        abstract void deliver(RobocolDatagram datagram, int closeCount);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected static TimerWheel theTimerWheel = null;
+
+    protected final RobocolTransport transport;
+    protected final TimerWheel timerWheel;
+    protected final Direction send;
+    protected final Direction receive;
+
+    protected final Queue<RobocolDatagram> received = new ConcurrentLinkedQueue<RobocolDatagram>();
+    protected final Object recvLock = new Object();
+    protected volatile Thread receiver = null;
+    protected volatile ExecutorService pumpService = null;
+    protected volatile int closeCount = 0;      // so what's still on the wheel when we close can tell
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @param transport          the transport to impair
+     * @param sendImpairment     what to do to what we send; null to leave it be
+     * @param receiveImpairment  what to do to what we receive; null to leave it be
+     * @param seed               for the random choices, so that given the same traffic in each
+     *                           direction, the same datagrams are lost, duplicated, reordered and
+     *                           jittered. What a bandwidth cap does depends on when datagrams
+     *                           arrive, so that isn't repeatable.
+     */
+    public ImpairedTransport(@NotNull RobocolTransport transport, @Nullable Impairment sendImpairment, @Nullable Impairment receiveImpairment, long seed) {
+        this.transport = transport;
+        this.timerWheel = getTimerWheel();
+        this.send = new Direction(sendImpairment == null ? new Impairment() : sendImpairment, seed) {
+            @Override
+            void deliver(RobocolDatagram datagram, int closeCount) {
+                if (closeCount == ImpairedTransport.this.closeCount) {
+                    ImpairedTransport.this.transport.send(datagram);
+                }
+                datagram.close();
+            }
+        };
+        this.receive = new Direction(receiveImpairment == null ? new Impairment() : receiveImpairment, ~seed) {
+            @Override
+            void deliver(RobocolDatagram datagram, int closeCount) {
+                if (closeCount != ImpairedTransport.this.closeCount) {
+                    datagram.close();
+                    return;
+                }
+                received.add(datagram);
+
+                // If close() drained the queue since we looked, take it back out ourselves
+                if (closeCount != ImpairedTransport.this.closeCount && received.remove(datagram)) {
+                    datagram.close();
+                    return;
+                }
+                Thread receiver = ImpairedTransport.this.receiver;
+                if (receiver != null) LockSupport.unpark(receiver);
+            }
+        };
+    }
+
+    public ImpairedTransport(@NotNull RobocolTransport transport, @Nullable Impairment sendImpairment, @Nullable Impairment receiveImpairment) {
+        this(transport, sendImpairment, receiveImpairment, System.nanoTime());
+    }
+
+    /**
+     * The wheel on which all impaired transports delay their datagrams; a millisecond a tick
+     */
+    public synchronized static TimerWheel getTimerWheel() {
+        if (theTimerWheel == null) {
+            theTimerWheel = new TimerWheel("impairment timer", 1, 1024);
+        }
+        return theTimerWheel;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Binding
+    //----------------------------------------------------------------------------------------------
+
+    @Override
+    public void listenUsingDestination(InetAddress destAddress) throws SocketException {
+        transport.listenUsingDestination(destAddress);
+        startPump();
+    }
+
+    @Override
+    public void bind(InetSocketAddress bindAddress) throws SocketException {
+        transport.bind(bindAddress);
+        startPump();
+    }
+
+    @Override
+    public void connect(InetAddress connectAddress) throws SocketException {
+        transport.connect(connectAddress);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closeCount++;
+            if (pumpService != null) {
+                pumpService.shutdownNow();
+                pumpService = null;
+            }
+        }
+        transport.close();
+
+        RobocolDatagram datagram;
+        while ((datagram = received.poll()) != null) {
+            datagram.close();
+        }
+        Thread receiver = this.receiver;
+        if (receiver != null) LockSupport.unpark(receiver);
+    }
+
+    protected synchronized void startPump() {
+        if (receive.impairment.isNone() || pumpService != null) return;
+        pumpService = ThreadPool.newSingleThreadExecutor("impairment pump");
+        pumpService.execute(new Runnable() {
+            @Override
+            public void run() {
+                ThreadPool.logThreadLifeCycle("ImpairedTransport pump", new Runnable() {
+                    @Override
+                    public void run() {
+                        while (!Thread.currentThread().isInterrupted() && !transport.isClosed()) {
+                            RobocolDatagram datagram = transport.recv();
+                            if (datagram != null) receive.impair(copyOf(datagram, true));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Sending and receiving
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Sends the message, impaired. Whatever's delayed is copied, so the caller may reuse the
+     * message as soon as we return.
+     */
+    @Override
+    public void send(RobocolDatagram message) {
+        if (send.impairment.isNone()) {
+            transport.send(message);
+        } else {
+            send.impair(copyOf(message));
+        }
+    }
+
+    @Override
+    public @Nullable RobocolDatagram recv() {
+        if (pumpService == null) return transport.recv();
+
+        synchronized (recvLock) {
+            RobocolDatagram result = received.poll();
+            if (result == null && !transport.isClosed()) {
+                long nanotimeDeadline = System.nanoTime() + RobocolConfig.MS_RECEIVE_TIMEOUT * ElapsedTime.MILLIS_IN_NANO;
+                receiver = Thread.currentThread();
+                try {
+                    while ((result = received.poll()) == null) {
+                        long nanosRemaining = nanotimeDeadline - System.nanoTime();
+                        if (nanosRemaining <= 0 || transport.isClosed() || Thread.currentThread().isInterrupted())
+                            break;
+                        LockSupport.parkNanos(this, nanosRemaining);
+                    }
+                } finally {
+                    receiver = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public int recvBatch(RobocolDatagram[] batch, int maxCount) {
+        if (pumpService == null) return transport.recvBatch(batch, maxCount);
+        if (maxCount <= 0) return 0;
+
+        synchronized (recvLock) {
+            RobocolDatagram packet = recv();
+            if (packet == null) return 0;
+            batch[0] = packet;
+            int count = 1;
+            while (count < maxCount && (packet = received.poll()) != null) {
+                batch[count++] = packet;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Copies a datagram into a pooled receive buffer of its own
+     */
+    protected static RobocolDatagram copyOf(RobocolDatagram datagram) {
+        return copyOf(datagram, false);
+    }
+
+    protected static RobocolDatagram copyOf(RobocolDatagram datagram, boolean closeOriginal) {
+        int length = datagram.getLength();
+        RobocolDatagram result = RobocolDatagram.forReceive(length);
+        DatagramPacket packet = result.getPacket();
+        DatagramPacket source = datagram.getPacket();
+        if (source != null) {
+            System.arraycopy(source.getData(), source.getOffset(), packet.getData(), 0, length);
+        } else {
+            System.arraycopy(datagram.getData(), 0, packet.getData(), 0, length);
+        }
+        packet.setLength(length);
+        if (datagram.getAddress() != null) packet.setAddress(datagram.getAddress());
+        if (closeOriginal) datagram.close();
+        return result;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    @Override
+    public RobocolDatagramSocket.State getState() {
+        return transport.getState();
+    }
+
+    @Override
+    public @Nullable InetAddress getInetAddress() {
+        return transport.getInetAddress();
+    }
+
+    @Override
+    public @Nullable InetAddress getLocalAddress() {
+        return transport.getLocalAddress();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return transport.isRunning();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return transport.isClosed();
+    }
+
+    public RobocolTransport getTransport() {
+        return transport;
+    }
+
+    public Impairment getSendImpairment() {
+        return send.impairment;
+    }
+
+    public Impairment getReceiveImpairment() {
+        return receive.impairment;
+    }
+
+    public Stats getSendStats() {
+        return send.stats;
+    }
+
+    public Stats getReceiveStats() {
+        return receive.stats;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ImpairedTransport - send:[%s] [%s] receive:[%s] [%s]", send.impairment, send.stats, receive.impairment, receive.stats);
+    }
+}
@@ -0,0 +1,238 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.Network;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import com.qualcomm.robotcore.util.TypeConversion;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * LocalAddressCache
+ * <p>
+ * Keeps what {@link RobocolConfig#determineBindAddress(InetAddress)} needs to know about our
+ * network interfaces, so that choosing a bind address is a couple of hash lookups rather than an
+ * enumeration of every interface, which on a laptop with Docker, VPN and other virtual adapters
+ * can take long enough to be felt at every connect.
+ * <p>
+ * A watcher thread keeps the cache current. On Linux, it checks cheaply for changes by
+ * fingerprinting the kernel's tables of local addresses in /proc/net, and only enumerates the
+ * interfaces when those change; elsewhere, it just enumerates them every so often.
+ */
+@SuppressWarnings("WeakerAccess")
+public class LocalAddressCache {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "LocalAddressCache";
+
+    public static final int MS_POLL_INTERVAL = 1000;               // when we can fingerprint cheaply
+    public static final int MS_ENUMERATION_INTERVAL = 5000;        // when we can't
+
+    // IPv4 local addresses, and IPv6 ones
+    protected static final File[] FINGERPRINT_FILES = {new File("/proc/net/fib_trie"), new File("/proc/net/if_inet6")};
+
+    /**
+     * What we know of our interfaces at one time. Never changed once made.
+     */
+    public static class Snapshot {
+        protected final ArrayList<InetAddress> ipv4Addresses = new ArrayList<InetAddress>();      // not loopback, in interface order
+        protected final HashSet<InetAddress> interfaceAddresses = new HashSet<InetAddress>();     // all those of interfaces with any of the above
+        protected final HashMap<Integer, InetAddress> addressesBySubnet = new HashMap<Integer, InetAddress>(); // first in each WIFI_P2P_SUBNET_MASK subnet
+        protected final long nanotimeTaken = System.nanoTime();
+
+        protected Snapshot() {
+            try {
+                Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
+                if (ifaces == null) return;
+                for (NetworkInterface iface : Collections.list(ifaces)) {
+                    boolean hasIpv4Address = false;
+                    List<InetAddress> addresses = Collections.list(iface.getInetAddresses());
+                    for (InetAddress address : addresses) {
+                        if (address instanceof Inet4Address && !address.isLoopbackAddress()) {
+                            hasIpv4Address = true;
+                            ipv4Addresses.add(address);
+                            Integer subnet = TypeConversion.byteArrayToInt(address.getAddress()) & RobocolConfig.WIFI_P2P_SUBNET_MASK;
+                            if (!addressesBySubnet.containsKey(subnet)) addressesBySubnet.put(subnet, address);
+                        }
+                    }
+                    if (hasIpv4Address) interfaceAddresses.addAll(addresses);
+                }
+            } catch (SocketException e) {
+                RobotLog.ww(TAG, "unable to enumerate network interfaces: %s", e.getMessage());
+            }
+        }
+
+        /**
+         * As {@link RobocolConfig#determineBindAddress(InetAddress)}: the destination itself if it's
+         * one of our addresses, else the first of our addresses in its Wifi P2P subnet, else the
+         * loopback address
+         */
+        public InetAddress getBindAddress(InetAddress destAddress) {
+            if (interfaceAddresses.contains(destAddress)) {
+                return destAddress;
+            }
+            if (destAddress instanceof Inet4Address) {
+                InetAddress result = addressesBySubnet.get(TypeConversion.byteArrayToInt(destAddress.getAddress()) & RobocolConfig.WIFI_P2P_SUBNET_MASK);
+                if (result != null) return result;
+            }
+            return Network.getLoopbackAddress();
+        }
+
+        /**
+         * @return our IPv4 addresses, loopback excluded; the caller is not to modify the list
+         */
+        public List<InetAddress> getIpv4Addresses() {
+            return Collections.unmodifiableList(ipv4Addresses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LocalAddressCache.Snapshot - ipv4:%s", Network.getHostAddresses(ipv4Addresses));
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    private static LocalAddressCache theInstance = null;
+
+    public synchronized static LocalAddressCache getInstance() {
+        if (theInstance == null) {
+            theInstance = new LocalAddressCache();
+        }
+        return theInstance;
+    }
+
+    /**
+     * Stops the watcher of the instance, if there is one, and forgets it, so whoever next
+     * needs it gets a fresh one that watches again. For the shutdown path.
+     */
+    public synchronized static void stopInstance() {
+        if (theInstance != null) {
+            theInstance.stop();
+            theInstance = null;
+        }
+    }
+
+    protected volatile Snapshot snapshot;
+    protected final boolean canFingerprint;
+    protected long fingerprint;                         // only touched by the watcher
+    protected long nanotimeLastEnumeration;             // ditto
+    protected final byte[] readBuffer = new byte[8192];  // ditto
+    protected @Nullable ScheduledExecutorService watcher;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    protected LocalAddressCache() {
+        Long fingerprint = takeFingerprint();
+        this.canFingerprint = fingerprint != null;
+        this.fingerprint = canFingerprint ? fingerprint : 0;
+        this.snapshot = new Snapshot();
+        this.nanotimeLastEnumeration = snapshot.nanotimeTaken;
+
+        watcher = ThreadPool.newScheduledExecutor(1, "local address watcher");
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, MS_POLL_INTERVAL, MS_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        RobotLog.vv(TAG, "%s fingerprint=%s", snapshot, canFingerprint);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @return what we currently know of our interfaces
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Enumerates the interfaces afresh, straightaway, for those who know something has changed
+     */
+    public Snapshot refresh() {
+        Snapshot result = new Snapshot();
+        snapshot = result;
+        return result;
+    }
+
+    /**
+     * Stops watching for changes. The cache keeps what it last knew.
+     */
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    protected void poll() {
+        try {
+            boolean changed;
+            if (canFingerprint) {
+                Long fingerprint = takeFingerprint();
+                changed = fingerprint == null || fingerprint != this.fingerprint;
+                if (fingerprint != null) this.fingerprint = fingerprint;
+            } else {
+                changed = System.nanoTime() - nanotimeLastEnumeration >= TimeUnit.MILLISECONDS.toNanos(MS_ENUMERATION_INTERVAL);
+            }
+            if (changed) {
+                Snapshot result = refresh();
+                nanotimeLastEnumeration = result.nanotimeTaken;
+                if (canFingerprint) RobotLog.vv(TAG, "interfaces changed: %s", result);
+            }
+        } catch (RuntimeException e) {
+            RobotLog.ee(TAG, e, "exception watching interfaces");
+        }
+    }
+
+    /**
+     * @return a checksum of the kernel's tables of local addresses; null if we can't read them
+     */
+    protected @Nullable Long takeFingerprint() {
+        CRC32 crc = new CRC32();
+        for (File file : FINGERPRINT_FILES) {
+            if (!file.canRead()) return null;
+            try {
+                FileInputStream inputStream = new FileInputStream(file);
+                try {
+                    int cb;
+                    while ((cb = inputStream.read(readBuffer)) > 0) {
+                        crc.update(readBuffer, 0, cb);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return crc.getValue();
+    }
+}
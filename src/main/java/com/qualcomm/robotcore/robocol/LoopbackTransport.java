@@ -0,0 +1,322 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LoopbackTransport} is an in-process {@link RobocolTransport}. Transports bound within the
+ * same JVM find each other through a registry keyed by their bound address, and a datagram sent
+ * from one is copied into a pooled receive buffer and put on the other's lock-free inbound queue.
+ * Nothing touches the OS network stack, so a driver station and a robot controller can be run
+ * against each other as fast as they can go, in tests and benchmarks.
+ * <p>
+ * Datagram semantics are kept: sends to an address nobody is bound to vanish, as do sends to a
+ * transport whose inbound queue is full.
+ *
+ * @see RobocolConfig.Transport#LOOPBACK
+ */
+@SuppressWarnings("WeakerAccess")
+public class LoopbackTransport implements RobocolTransport {
+
+    //----------------------------------------------------------------------------------------------
+    // Static State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = RobocolDatagram.TAG;
+    private static final boolean DEBUG = false;
+
+    protected static final ConcurrentHashMap<InetSocketAddress, LoopbackTransport> endpoints = new ConcurrentHashMap<InetSocketAddress, LoopbackTransport>();
+    protected static final AtomicInteger nextLocalAddress = new AtomicInteger(1);
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final Queue<RobocolDatagram> inbound = new ConcurrentLinkedQueue<RobocolDatagram>();
+    protected final AtomicInteger queued = new AtomicInteger(0);   // ConcurrentLinkedQueue.size() is O(n)
+    protected final AtomicLong sent = new AtomicLong(0);
+    protected final AtomicLong dropped = new AtomicLong(0);
+    protected final Object recvLock = new Object();            // only one recv() at a time
+    protected final Object bindCloseLock = new Object();       // serializes bind() vs close()
+
+    protected volatile RobocolDatagramSocket.State state = RobocolDatagramSocket.State.CLOSED;
+    protected volatile int binding = 0;                        // counts bind()s, so deliveries can tell if they're stale
+    protected volatile InetSocketAddress localAddress = null;
+    protected volatile InetSocketAddress connectedAddress = null;
+    protected volatile Thread receiver = null;                 // whoever's waiting in recv(), if anyone
+    protected volatile int queueCapacity = RobocolConfig.LOOPBACK_QUEUE_CAPACITY;
+    protected volatile long nanosReceiveTimeout = RobocolConfig.MS_RECEIVE_TIMEOUT * ElapsedTime.MILLIS_IN_NANO;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public LoopbackTransport() {
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Binding
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * There are no interfaces to choose between, so we bind to an address of our own in the
+     * loopback range; that lets any number of transports listen on the Robocol port at once.
+     */
+    @Override
+    public void listenUsingDestination(InetAddress destAddress) throws SocketException {
+        bind(new InetSocketAddress(newLocalAddress(), RobocolConfig.PORT_NUMBER));
+    }
+
+    @Override
+    public void bind(InetSocketAddress bindAddress) throws SocketException {
+        synchronized (this.bindCloseLock) {
+            if (state != RobocolDatagramSocket.State.CLOSED) {
+                close();
+            }
+            if (endpoints.putIfAbsent(bindAddress, this) != null) {
+                throw new SocketException("loopback address already in use: " + bindAddress);
+            }
+            // whatever a delivery racing with our last close() left behind isn't for this binding
+            drain();
+            binding++;
+            localAddress = bindAddress;
+            connectedAddress = null;
+            state = RobocolDatagramSocket.State.LISTENING;
+            RobotLog.dd(TAG, "LoopbackTransport listening addr=%s", bindAddress.toString());
+        }
+    }
+
+    @Override
+    public void connect(InetAddress connectAddress) throws SocketException {
+        InetSocketAddress addr = new InetSocketAddress(connectAddress, RobocolConfig.PORT_NUMBER);
+        RobotLog.dd(TAG, "LoopbackTransport connected to " + addr.toString());
+        connectedAddress = addr;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.bindCloseLock) {
+            state = RobocolDatagramSocket.State.CLOSED;
+
+            InetSocketAddress localAddress = this.localAddress;
+            if (localAddress != null) endpoints.remove(localAddress, this);
+
+            // return whatever nobody's going to receive now to the pool
+            drain();
+
+            Thread receiver = this.receiver;
+            if (receiver != null) LockSupport.unpark(receiver);
+
+            RobotLog.dd(TAG, "LoopbackTransport is closed");
+        }
+    }
+
+    protected void drain() {
+        RobocolDatagram datagram;
+        while ((datagram = inbound.poll()) != null) {
+            queued.decrementAndGet();
+            datagram.close();
+        }
+    }
+
+    protected static InetAddress newLocalAddress() throws SocketException {
+        int n = nextLocalAddress.getAndIncrement();
+        try {
+            return InetAddress.getByAddress(new byte[]{127, 77, (byte) (n >> 8), (byte) n});
+        } catch (UnknownHostException e) {
+            throw new SocketException("unable to make loopback address: " + e.getMessage());
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Sending and receiving
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Delivers a copy of the message to the transport bound at its destination: the address we're
+     * connected to if we are, otherwise the message's own address. Senders may thus reuse their
+     * message as soon as we return.
+     */
+    @Override
+    public void send(RobocolDatagram message) {
+        InetSocketAddress localAddress = this.localAddress;
+        if (state != RobocolDatagramSocket.State.LISTENING || localAddress == null) return;
+
+        InetSocketAddress destAddress = connectedAddress;
+        if (destAddress == null) {
+            if (message.getAddress() == null) {
+                RobotLog.ee(TAG, "loopback send with no destination; ignored");
+                return;
+            }
+            destAddress = new InetSocketAddress(message.getAddress(), RobocolConfig.PORT_NUMBER);
+        }
+
+        sent.incrementAndGet();
+        RobocolRecorder.tap(RobocolRecorder.DIRECTION_SEND, destAddress.getAddress(), message);
+        LoopbackTransport dest = endpoints.get(destAddress);
+        if (dest == null || !dest.deliver(message.getPacket(), localAddress)) {
+            dropped.incrementAndGet();
+            if (DEBUG) RobotLog.vv(TAG, "dropped packet to=%s len=%d", destAddress, message.getLength());
+        }
+    }
+
+    protected boolean deliver(DatagramPacket packet, InetSocketAddress from) {
+        int binding = this.binding;
+        if (state != RobocolDatagramSocket.State.LISTENING) return false;
+
+        // reserve our place in the queue before spending a buffer on it
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        int length = packet.getLength();
+        RobocolDatagram copy = RobocolDatagram.forReceive(length);
+        DatagramPacket packetCopy = copy.getPacket();
+        System.arraycopy(packet.getData(), packet.getOffset(), packetCopy.getData(), 0, length);
+        packetCopy.setLength(length);
+        packetCopy.setSocketAddress(from);
+
+        inbound.add(copy);
+
+        // We don't lock against close(), so if it's drained the queue since we looked, take
+        // the copy back out ourselves; if recv() got it first, no harm done
+        if ((state != RobocolDatagramSocket.State.LISTENING || binding != this.binding) && inbound.remove(copy)) {
+            queued.decrementAndGet();
+            copy.close();
+            return false;
+        }
+
+        Thread receiver = this.receiver;
+        if (receiver != null) LockSupport.unpark(receiver);
+        return true;
+    }
+
+    @Override
+    public @Nullable RobocolDatagram recv() {
+        synchronized (this.recvLock) {
+            RobocolDatagram result = inbound.poll();
+            if (result == null && state == RobocolDatagramSocket.State.LISTENING) {
+                long nanotimeDeadline = System.nanoTime() + nanosReceiveTimeout;
+                receiver = Thread.currentThread();
+                try {
+                    // Look again once we're registered, lest a delivery slip in between and not wake us
+                    while ((result = inbound.poll()) == null) {
+                        long nanosRemaining = nanotimeDeadline - System.nanoTime();
+                        if (nanosRemaining <= 0 || state != RobocolDatagramSocket.State.LISTENING || Thread.currentThread().isInterrupted())
+                            break;
+                        LockSupport.parkNanos(this, nanosRemaining);
+                    }
+                } finally {
+                    receiver = null;
+                }
+            }
+            if (result != null) received(result);
+            return result;
+        }
+    }
+
+    @Override
+    public int recvBatch(RobocolDatagram[] batch, int maxCount) {
+        if (maxCount <= 0) return 0;
+        synchronized (this.recvLock) {
+            RobocolDatagram packet = recv();
+            if (packet == null) return 0;
+            batch[0] = packet;
+            int count = 1;
+            while (count < maxCount && (packet = inbound.poll()) != null) {
+                received(packet);
+                batch[count++] = packet;
+            }
+            return count;
+        }
+    }
+
+    protected void received(RobocolDatagram datagram) {
+        queued.decrementAndGet();
+        RobocolRecorder.tap(RobocolRecorder.DIRECTION_RECEIVE, datagram.getAddress(), datagram);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    @Override
+    public RobocolDatagramSocket.State getState() {
+        return state;
+    }
+
+    @Override
+    public @Nullable InetAddress getInetAddress() {
+        InetSocketAddress connectedAddress = this.connectedAddress;
+        return connectedAddress == null ? null : connectedAddress.getAddress();
+    }
+
+    @Override
+    public @Nullable InetAddress getLocalAddress() {
+        InetSocketAddress localAddress = this.localAddress;
+        return localAddress == null ? null : localAddress.getAddress();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return (state == RobocolDatagramSocket.State.LISTENING);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return (state == RobocolDatagramSocket.State.CLOSED);
+    }
+
+    /**
+     * Sets how many received datagrams may wait for recv() before further ones are dropped
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setReceiveTimeout(int msReceiveTimeout) {
+        this.nanosReceiveTimeout = msReceiveTimeout * ElapsedTime.MILLIS_IN_NANO;
+    }
+
+    /**
+     * @return the number of datagrams waiting to be received
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of datagrams we've sent, whether or not they arrived
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of datagrams we've sent that nobody received: there was no one bound at
+     * the destination, or their queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LoopbackTransport - local:%s, connected:%s, queued:%d, sent:%d, dropped:%d",
+                localAddress, connectedAddress, getQueuedCount(), getSentCount(), getDroppedCount());
+    }
+}
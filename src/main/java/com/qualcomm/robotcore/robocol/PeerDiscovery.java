@@ -34,7 +34,6 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 public class PeerDiscovery extends RobocolParsableBase {
@@ -150,28 +149,41 @@ public class PeerDiscovery extends RobocolParsableBase {
 
     @Override
     public byte[] toByteArray() throws RobotCoreException {
-        ByteBuffer buffer = allocateWholeWriteBuffer(cbBufferHistorical);
-        try {
+        return writeToNewArray(cbBufferHistorical);
+    }
+
+    @Override
+    public int writeTo(ByteBuffer buffer) throws RobotCoreException {
+        if (buffer.remaining() < cbBufferHistorical) {
+            throw new RobotCoreException("no room to serialize %s: %d bytes remaining", getRobocolMsgType(), buffer.remaining());
+        }
 
-            buffer.put(getRobocolMsgType().asByte());
-            buffer.putShort((short) cbPayloadHistorical);
-            buffer.put(RobocolConfig.ROBOCOL_VERSION);
-            buffer.put(peerType.asByte());
-            buffer.putShort((short) this.sequenceNumber);
+        buffer.put(getRobocolMsgType().asByte());
+        buffer.putShort((short) cbPayloadHistorical);
+        buffer.put(RobocolConfig.ROBOCOL_VERSION);
+        buffer.put(peerType.asByte());
+        buffer.putShort((short) this.sequenceNumber);
 
-        } catch (BufferOverflowException e) {
-            RobotLog.logStacktrace(e);
+        // the unused tail of the historical format; an allocated buffer is already zeroed, but
+        // one being reused may not be
+        for (int ib = HEADER_LENGTH + 2; ib < cbBufferHistorical; ib++) {
+            buffer.put((byte) 0);
         }
-        return buffer.array();
+        return cbBufferHistorical;
     }
 
     @Override
     public void fromByteArray(byte[] byteArray) throws RobotCoreException {
-        if (byteArray.length < cbBufferHistorical) {
-            throw new RobotCoreException("Expected buffer of at least %d bytes, received %d", cbBufferHistorical, byteArray.length);
+        fromByteBuffer(ByteBuffer.wrap(byteArray), 0, byteArray.length);
+    }
+
+    @Override
+    public void fromByteBuffer(ByteBuffer buffer, int offset, int length) throws RobotCoreException {
+        if (length < cbBufferHistorical) {
+            throw new RobotCoreException("Expected buffer of at least %d bytes, received %d", cbBufferHistorical, length);
         }
 
-        ByteBuffer byteBuffer = getWholeReadBuffer(byteArray);
+        ByteBuffer byteBuffer = getWholeReadBuffer(buffer, offset, length);
 
         byte peerMessageType = byteBuffer.get();
         short peerCbPayload = byteBuffer.getShort();
@@ -34,6 +34,7 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 import com.qualcomm.robotcore.util.ThreadPool;
+import org.jetbrains.annotations.Nullable;
 
 import java.net.InetAddress;
 import java.util.concurrent.CountDownLatch;
@@ -44,12 +45,27 @@ import java.util.concurrent.TimeUnit;
 /**
  * {@link PeerDiscoveryManager} is responsible for periodic transmission of PeerDiscovery packets.
  * This isn't used, though, from the 'group owner' (ie: robot controller)
+ * <p>
+ * So as not to hold up connecting, we don't send at a steady rate from the start. A short burst
+ * goes out straightaway, in case the first packets are lost while the link comes up, and we then
+ * back off exponentially to the steady interval. Once the peer has been found we just keep up
+ * the steady interval; should it be lost again, {@link #onPeerLost()} starts over with a burst.
  */
 public class PeerDiscoveryManager {
 
     public static final String TAG = PeerDiscovery.TAG;
     private static final boolean DEBUG = false;
 
+    public static final int BURST_COUNT = 3;                // sent first, MS_BURST_INTERVAL apart
+    public static final int MS_BURST_INTERVAL = 25;
+    public static final int MS_FIRST_BACKOFF = 100;         // then doubling from here...
+    public static final int MS_DISCOVERY_INTERVAL = 1000;   // ...up to the steady interval
+
+    /**
+     * Each (re)start of the schedule has a runnable of its own, which reschedules itself only so
+     * long as it's still the current one. One that's running when we restart thus ends there,
+     * rather than carrying on alongside the new one, where we could never cancel it.
+     */
     private class PeerDiscoveryRunnable implements Runnable {
 
         @Override
@@ -61,26 +77,45 @@ public class PeerDiscoveryManager {
                 socket.send(packet);
             } catch (RobotCoreException e) {
                 RobotLog.ee(TAG, "Unable to send peer discovery packet: " + e.toString());
+            } finally {
+                scheduleNext(this);
             }
         }
     }
 
     private InetAddress peerDiscoveryDevice;
-    private final RobocolDatagramSocket socket;
+    private final RobocolTransport socket;
     private ScheduledExecutorService discoveryLoopService;
+    private boolean ownsDiscoveryLoopService;
     private ScheduledFuture<?> discoveryLoopFuture;
+    private PeerDiscoveryRunnable discoveryRunnable;
     private final PeerDiscovery message;
     private CountDownLatch interlock = new CountDownLatch(0);
+    private int sendCount;          // since we were started or last re-armed
+    private boolean peerFound;
+    private boolean stopped;
 
     /**
      * Constructor
      *
      * @param socket socket to send packets from
      */
-    public PeerDiscoveryManager(RobocolDatagramSocket socket, InetAddress peerDiscoveryDevice) {
+    public PeerDiscoveryManager(RobocolTransport socket, InetAddress peerDiscoveryDevice) {
+        this(socket, peerDiscoveryDevice, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param socket              socket to send packets from
+     * @param discoveryLoopService the scheduler on which to send discovery packets; if null, we
+     *                            create (and later shut down) one of our own
+     */
+    public PeerDiscoveryManager(RobocolTransport socket, InetAddress peerDiscoveryDevice, @Nullable ScheduledExecutorService discoveryLoopService) {
         this.socket = socket;
         this.message = new PeerDiscovery(PeerDiscovery.PeerType.GROUP_OWNER);
         this.peerDiscoveryDevice = peerDiscoveryDevice;
+        this.discoveryLoopService = discoveryLoopService;
         start();
     }
 
@@ -104,13 +139,65 @@ public class PeerDiscoveryManager {
             RobotLog.vv(TAG, "No need for peer discovery, we are the peer discovery device");
         } else {
             // start the peer discovery service
-            discoveryLoopService = ThreadPool.newScheduledExecutor(1, "discovery service");
-            discoveryLoopFuture = discoveryLoopService.scheduleAtFixedRate(new PeerDiscoveryRunnable(), 1, 1, TimeUnit.SECONDS);
+            if (discoveryLoopService == null) {
+                discoveryLoopService = ThreadPool.newScheduledExecutor(1, "discovery service");
+                ownsDiscoveryLoopService = true;
+            }
+            restartSchedule();
         }
 
         interlock.countDown();
     }
 
+    /**
+     * The peer has answered us. We slow to the steady interval, if we weren't there already.
+     */
+    public synchronized void onPeerFound() {
+        peerFound = true;
+    }
+
+    /**
+     * We've lost touch with the peer. We start over with a burst, straightaway.
+     */
+    public synchronized void onPeerLost() {
+        if (peerFound) {
+            RobotLog.vv(TAG, "peer lost; restarting peer discovery");
+            peerFound = false;
+            if (discoveryLoopFuture != null) {
+                discoveryLoopFuture.cancel(false);
+                restartSchedule();
+            }
+        }
+    }
+
+    private synchronized void restartSchedule() {
+        sendCount = 0;
+        discoveryRunnable = new PeerDiscoveryRunnable();
+        scheduleNext(discoveryRunnable);
+    }
+
+    private synchronized void scheduleNext(PeerDiscoveryRunnable runnable) {
+        if (stopped || discoveryLoopService == null || runnable != discoveryRunnable) return;
+        discoveryLoopFuture = discoveryLoopService.schedule(runnable, msNextDelay(), TimeUnit.MILLISECONDS);
+        sendCount++;
+    }
+
+    /**
+     * @return how long to wait before sending our next packet
+     */
+    private int msNextDelay() {
+        if (sendCount == 0) {
+            return 0;
+        } else if (peerFound) {
+            return MS_DISCOVERY_INTERVAL;
+        } else if (sendCount < BURST_COUNT) {
+            return MS_BURST_INTERVAL;
+        } else {
+            int shift = Math.min(sendCount - BURST_COUNT, 16);
+            return Math.min(MS_FIRST_BACKOFF << shift, MS_DISCOVERY_INTERVAL);
+        }
+    }
+
     /**
      * Stop peer discovery
      */
@@ -123,9 +210,19 @@ public class PeerDiscoveryManager {
             Thread.currentThread().interrupt();
         }
 
-        if (discoveryLoopFuture != null) {
-            discoveryLoopFuture.cancel(true);
-            discoveryLoopFuture = null;
+        synchronized (this) {
+            stopped = true;
+
+            if (discoveryLoopFuture != null) {
+                discoveryLoopFuture.cancel(ownsDiscoveryLoopService);
+                discoveryLoopFuture = null;
+            }
+
+            if (ownsDiscoveryLoopService) {
+                discoveryLoopService.shutdownNow();
+                discoveryLoopService = null;
+                ownsDiscoveryLoopService = false;
+            }
         }
     }
 
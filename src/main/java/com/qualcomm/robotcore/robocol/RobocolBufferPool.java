@@ -0,0 +1,260 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RobocolBufferPool
+ * <p>
+ * A bounded pool of byte[] receive buffers. Buffers are handed out in power-of-two size classes
+ * so that a buffer returned by one socket can be reused by another whose receive size differs a
+ * little, and the total number of bytes sitting idle in the pool is capped. Counters are kept
+ * so that memory use can be tuned, and, optionally, the owners of buffers can be tracked so that
+ * ones that are garbage collected without ever having been closed are reported as leaks.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolBufferPool {
+
+    //-----------------------------------------------------------------------------------------------
+    // State
+    //-----------------------------------------------------------------------------------------------
+
+    public static final String TAG = RobocolDatagram.TAG;
+
+    public static final int MIN_SIZE_CLASS_SHIFT = 9;     // 512 bytes
+    public static final int MAX_SIZE_CLASS_SHIFT = 16;    // 64k, which covers MAX_MAX_PACKET_SIZE
+
+    /**
+     * idle buffers, indexed by size class; each is its own lock
+     */
+    private final ArrayDeque<byte[]>[] idle;
+
+    private volatile int maxRetainedBytes;
+    private volatile boolean detectLeaks = false;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    private final ReferenceQueue<Object> leakQueue = new ReferenceQueue<Object>();
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+    /**
+     * A {@link Lease} tracks one owner of one buffer for the purposes of leak detection
+     */
+    public static class Lease extends WeakReference<Object> {
+        final int cbBuffer;
+
+        Lease(Object owner, int cbBuffer, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.cbBuffer = cbBuffer;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Construction
+    //-----------------------------------------------------------------------------------------------
+
+    @SuppressWarnings("unchecked")
+    public RobocolBufferPool(int maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.idle = new ArrayDeque[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new ArrayDeque<byte[]>();
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Operations
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a buffer at least as large as requested, reusing an idle one if we can
+     *
+     * @param cbMin the minimum size of the buffer
+     * @return a buffer; its length may exceed cbMin
+     */
+    public byte[] acquire(int cbMin) {
+        if (detectLeaks) reapLeases();
+
+        outstanding.incrementAndGet();
+
+        int sizeClass = sizeClassOf(cbMin);
+        if (sizeClass < 0) {
+            // too large to pool
+            misses.incrementAndGet();
+            return new byte[cbMin];
+        }
+
+        ArrayDeque<byte[]> deque = idle[sizeClass];
+        byte[] result;
+        synchronized (deque) {
+            result = deque.pollLast();
+        }
+        if (result != null) {
+            retainedBytes.addAndGet(-result.length);
+            hits.incrementAndGet();
+            return result;
+        }
+
+        misses.incrementAndGet();
+        return new byte[sizeOfClass(sizeClass)];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that aren't of a pooled size, or that would take us
+     * over our cap, are dropped for the GC to collect.
+     *
+     * @param buffer the buffer previously returned from {@link #acquire(int)}
+     * @param lease  the lease, if any, that was taken out on the buffer
+     * @see #track(Object, byte[])
+     */
+    public void release(byte[] buffer, @Nullable Lease lease) {
+        if (lease != null) {
+            leases.remove(lease);
+            lease.clear();
+        }
+
+        outstanding.decrementAndGet();
+
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass < 0 || buffer.length != sizeOfClass(sizeClass)) {
+            drops.incrementAndGet();
+            return;
+        }
+
+        if (retainedBytes.addAndGet(buffer.length) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.length);
+            drops.incrementAndGet();
+            return;
+        }
+
+        ArrayDeque<byte[]> deque = idle[sizeClass];
+        synchronized (deque) {
+            deque.addLast(buffer);
+        }
+    }
+
+    /**
+     * If leak detection is enabled, starts tracking the owner of a buffer: if the owner is
+     * collected before the buffer is released, that's counted and reported as a leak.
+     *
+     * @return the lease to later pass to {@link #release(byte[], Lease)}; null if we're not
+     * detecting leaks
+     */
+    public @Nullable Lease track(Object owner, byte[] buffer) {
+        if (!detectLeaks) return null;
+        Lease lease = new Lease(owner, buffer.length, leakQueue);
+        leases.add(lease);
+        return lease;
+    }
+
+    private void reapLeases() {
+        Object reference;
+        while ((reference = leakQueue.poll()) != null) {
+            Lease lease = (Lease) reference;
+            if (leases.remove(lease)) {
+                // The buffer went away with its owner, so it's no longer outstanding
+                outstanding.decrementAndGet();
+                long count = leaks.incrementAndGet();
+                RobotLog.ww(TAG, "receive buffer leaked: a RobocolDatagram of %d bytes was never close()d (leaks=%d)", lease.cbBuffer, count);
+            }
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Configuration and metrics
+    //-----------------------------------------------------------------------------------------------
+
+    public void setMaxRetainedBytes(int maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    public int getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    public void setDetectLeaks(boolean detectLeaks) {
+        this.detectLeaks = detectLeaks;
+    }
+
+    public boolean getDetectLeaks() {
+        return detectLeaks;
+    }
+
+    /**
+     * @return the number of acquisitions satisfied by an idle buffer
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of acquisitions that had to allocate
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of released buffers we declined to keep
+     */
+    public long getDrops() {
+        return drops.get();
+    }
+
+    /**
+     * @return the number of buffers acquired but not yet released
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of buffers whose owners were collected without releasing them
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * @return the number of bytes currently sitting idle in the pool
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RobocolBufferPool - hits:%d, misses:%d, drops:%d, outstanding:%d, leaks:%d, retained:%d/%d",
+                getHits(), getMisses(), getDrops(), getOutstanding(), getLeaks(), getRetainedBytes(), getMaxRetainedBytes());
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Utility
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * @return the index of the smallest size class that holds cb bytes; -1 if none is big enough
+     */
+    static int sizeClassOf(int cb) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(cb, 1) - 1);
+        if (shift > MAX_SIZE_CLASS_SHIFT) return -1;
+        return Math.max(shift, MIN_SIZE_CLASS_SHIFT) - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    static int sizeOfClass(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT);
+    }
+}
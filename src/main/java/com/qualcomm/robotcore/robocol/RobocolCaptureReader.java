@@ -0,0 +1,239 @@
+package com.qualcomm.robotcore.robocol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RobocolCaptureReader
+ * <p>
+ * Reads back, one record at a time and in order, the segment files written by a
+ * {@link RobocolRecorder}. Segments are memory-mapped, so walking a capture costs no more than
+ * walking memory; the accessors describe the current record until the next call to {@link #next()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolCaptureReader implements Closeable {
+
+    //-----------------------------------------------------------------------------------------------
+    // State
+    //-----------------------------------------------------------------------------------------------
+
+    private final File[] segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer mapped = null;
+    private long segmentNanotimeStart;
+    private long segmentMsWallStart;
+
+    // the current record
+    private long nanotime;
+    private byte direction;
+    private int dataOffset;
+    private int dataLength;
+    private final byte[][] peerBytes = new byte[17][];  // scratch, indexed by address length
+    private InetAddress peer = null;
+    private int peerLength = 0;
+
+    //-----------------------------------------------------------------------------------------------
+    // Construction
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * @param segments the segment files to read, in the order to read them
+     */
+    public RobocolCaptureReader(List<File> segments) {
+        this.segments = segments.toArray(new File[segments.size()]);
+    }
+
+    /**
+     * Returns the segment files in a directory, or the file itself if it's not a directory, in
+     * the order in which they were recorded
+     */
+    public static List<File> findSegments(File directoryOrFile) {
+        if (!directoryOrFile.isDirectory()) {
+            return Arrays.asList(directoryOrFile);
+        }
+        File[] files = directoryOrFile.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(RobocolRecorder.SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) files = new File[0];
+        // names are the recording's start time followed by the segment number, so sort as recorded
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    @Override
+    public void close() {
+        mapped = null;
+        segmentIndex = segments.length;
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Reading
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * Advances to the next record
+     *
+     * @return whether there is one
+     */
+    public boolean next() throws IOException {
+        for (; ; ) {
+            if (mapped != null && readRecord()) {
+                return true;
+            }
+            if (segmentIndex + 1 >= segments.length) {
+                mapped = null;
+                return false;
+            }
+            openSegment(segments[++segmentIndex]);
+        }
+    }
+
+    private boolean readRecord() throws IOException {
+        if (mapped.remaining() < RobocolRecorder.RECORD_HEADER_LENGTH) return false;
+
+        int start = mapped.position();
+        int cbRecord = mapped.getInt(start);
+        if (cbRecord == 0) return false; // the end of what was recorded
+        if (cbRecord < RobocolRecorder.RECORD_HEADER_LENGTH || cbRecord > mapped.remaining()) {
+            throw new IOException(String.format("corrupt capture record at %s:%d", segments[segmentIndex].getName(), start));
+        }
+
+        mapped.position(start + 4);
+        nanotime = mapped.getLong();
+        direction = mapped.get();
+        int cbPeer = mapped.get();
+        if (cbPeer < 0 || cbPeer >= peerBytes.length || RobocolRecorder.RECORD_HEADER_LENGTH + cbPeer > cbRecord) {
+            throw new IOException(String.format("corrupt capture record at %s:%d", segments[segmentIndex].getName(), start));
+        }
+        readPeer(cbPeer);
+
+        dataOffset = mapped.position();
+        dataLength = cbRecord - RobocolRecorder.RECORD_HEADER_LENGTH - cbPeer;
+        mapped.position(start + cbRecord);
+        return true;
+    }
+
+    /**
+     * Reads the peer's address, reusing the InetAddress we have if it's the same peer as before,
+     * as it nearly always is
+     */
+    private void readPeer(int cbPeer) throws IOException {
+        if (cbPeer == 0) {
+            peer = null;
+            return;
+        }
+        byte[] bytes = peerBytes[cbPeer];
+        if (bytes == null) bytes = peerBytes[cbPeer] = new byte[cbPeer];
+
+        boolean same = peer != null && peerLength == cbPeer;
+        for (int i = 0; i < cbPeer; i++) {
+            byte b = mapped.get();
+            if (bytes[i] != b) {
+                bytes[i] = b;
+                same = false;
+            }
+        }
+        if (!same) {
+            try {
+                peer = InetAddress.getByAddress(bytes);
+                peerLength = cbPeer;
+            } catch (UnknownHostException e) {
+                throw new IOException("corrupt capture peer address", e);
+            }
+        }
+    }
+
+    private void openSegment(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (mapped.remaining() < RobocolRecorder.SEGMENT_HEADER_LENGTH || mapped.getInt() != RobocolRecorder.MAGIC) {
+            throw new IOException("not a Robocol capture: " + file);
+        }
+        short version = mapped.getShort();
+        if (version != RobocolRecorder.VERSION) {
+            throw new IOException(String.format("unsupported capture version %d: %s", version, file));
+        }
+        int cbHeader = mapped.getShort();
+        segmentNanotimeStart = mapped.getLong();
+        segmentMsWallStart = mapped.getLong();
+        mapped.position(cbHeader);
+        peer = null;
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Accessing the current record
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * @return the System.nanoTime() at which the datagram was sent or received
+     */
+    public long getNanotime() {
+        return nanotime;
+    }
+
+    /**
+     * @return {@link RobocolRecorder#DIRECTION_SEND} or {@link RobocolRecorder#DIRECTION_RECEIVE}
+     */
+    public byte getDirection() {
+        return direction;
+    }
+
+    public @Nullable InetAddress getPeer() {
+        return peer;
+    }
+
+    /**
+     * @return the length of the datagram, in bytes
+     */
+    public int getLength() {
+        return dataLength;
+    }
+
+    public RobocolParsable.MsgType getMsgType() {
+        return dataLength > 0 ? RobocolParsable.MsgType.fromByte(mapped.get(dataOffset)) : RobocolParsable.MsgType.EMPTY;
+    }
+
+    /**
+     * Copies the datagram into the indicated array
+     */
+    public void copyTo(byte[] destination, int offset) {
+        int position = mapped.position();
+        mapped.position(dataOffset);
+        mapped.get(destination, offset, dataLength);
+        mapped.position(position);
+    }
+
+    /**
+     * @return the System.nanoTime() and wall clock time at which the current segment was begun
+     */
+    public long getSegmentNanotimeStart() {
+        return segmentNanotimeStart;
+    }
+
+    public long getSegmentMsWallStart() {
+        return segmentMsWallStart;
+    }
+
+    public @Nullable File getSegment() {
+        return segmentIndex >= 0 && segmentIndex < segments.length ? segments[segmentIndex] : null;
+    }
+}
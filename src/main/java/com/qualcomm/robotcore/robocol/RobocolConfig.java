@@ -33,6 +33,7 @@ package com.qualcomm.robotcore.robocol;
 
 import com.qualcomm.robotcore.util.Network;
 import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
 import com.qualcomm.robotcore.util.TypeConversion;
 
 import org.firstinspires.ftc.robotcore.internal.network.SendOnceRunnable;
@@ -42,7 +43,13 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Configuration Data for Robocol
@@ -70,36 +77,95 @@ public class RobocolConfig {
 
     public static final int WIFI_P2P_SUBNET_MASK = 0xFFFFFF00; // 255.255.255.0
 
+    /**
+     * The implementations of RobocolTransport that are available
+     *
+     * @see #newDatagramSocket()
+     */
+    public enum Transport {
+        SOCKET,     /// java.net.DatagramSocket, with a DatagramPacket and heap byte[] per datagram
+        CHANNEL,    /// java.nio.channels.DatagramChannel, with pooled direct ByteBuffers
+        LOOPBACK    /// in-process queues, for running both ends in one JVM; see LoopbackTransport
+    }
+
+    /**
+     * Which transport {@link #newDatagramSocket()} creates. Must be set before connecting.
+     */
+    public static Transport transport = Transport.SOCKET;
+
+    /**
+     * If true, connections don't get threads of their own: reception, send ticks and peer discovery
+     * for every session are all serviced by the shared RobocolReactor. Requires the
+     * {@link Transport#CHANNEL CHANNEL} transport. Must be set before connecting.
+     *
+     * @see org.firstinspires.ftc.robotcore.internal.network.RobocolReactor
+     */
+    public static boolean useReactor = false;
+
+    /**
+     * The most datagrams a receive loop takes from its socket per wakeup. One means no batching;
+     * larger values only help on the {@link Transport#CHANNEL CHANNEL} transport, which can
+     * tell what's queued.
+     */
+    public static int recvBatchSize = 1;
+
+    // The most bytes of idle receive buffers RobocolDatagram keeps around for reuse. Sixteen max-size
+    // datagrams' worth by default; adjust at runtime through RobocolDatagram.getReceiveBufferPool()
+    public static final int RECEIVE_POOL_MAX_RETAINED_BYTES = 16 * 65536;
+
+    // The number of idle receive datagrams a channel socket keeps around for reuse
+    public static final int CHANNEL_RECEIVE_POOL_SIZE = 8;
+
+    // The number of received datagrams a loopback transport queues before it starts dropping them
+    public static final int LOOPBACK_QUEUE_CAPACITY = 1024;
+
+    // The number of received datagrams a shared socket queues for any one peer before it starts dropping them
+    public static final int SHARED_SOCKET_PEER_QUEUE_CAPACITY = 256;
+
+    /**
+     * If either is set, sockets made by {@link #newDatagramSocket()} are wrapped in an
+     * {@link ImpairedTransport} that impairs what's sent or received accordingly. For the bench
+     * only. Must be set before connecting.
+     */
+    public static ImpairedTransport.Impairment sendImpairment = null;
+    public static ImpairedTransport.Impairment receiveImpairment = null;
+
+    /**
+     * Creates a new, unbound socket of the currently configured {@link #transport}, impaired if
+     * we've been asked to be
+     *
+     * @return a new socket
+     */
+    public static RobocolTransport newDatagramSocket() {
+        RobocolTransport result = newUnimpairedDatagramSocket();
+        if (sendImpairment != null || receiveImpairment != null) {
+            result = new ImpairedTransport(result, sendImpairment, receiveImpairment);
+        }
+        return result;
+    }
+
+    protected static RobocolTransport newUnimpairedDatagramSocket() {
+        switch (transport) {
+            case CHANNEL:
+                return new RobocolDatagramChannelSocket();
+            case LOOPBACK:
+                return new LoopbackTransport();
+            case SOCKET:
+            default:
+                return new RobocolDatagramSocket();
+        }
+    }
+
     /**
      * Find a bind address. If no bind address can be found, return the loopback
-     * address
+     * address. Interfaces aren't enumerated here: we look in what the
+     * {@link LocalAddressCache} keeps, which is kept current as interfaces come and go.
      *
      * @param destAddress destination address
      * @return address to bind to
      */
     public static InetAddress determineBindAddress(InetAddress destAddress) {
-        ArrayList<InetAddress> localIpAddresses = Network.getLocalIpAddresses();
-        localIpAddresses = Network.removeLoopbackAddresses(localIpAddresses);
-        localIpAddresses = Network.removeIPv6Addresses(localIpAddresses);
-
-        // if an iface has the destAddress, pick that one
-        for (InetAddress address : localIpAddresses) {
-            try {
-                NetworkInterface iface = NetworkInterface.getByInetAddress(address);
-                Enumeration<InetAddress> ifaceAddresses = iface.getInetAddresses();
-                while (ifaceAddresses.hasMoreElements()) {
-                    InetAddress ifaceAddress = ifaceAddresses.nextElement();
-                    if (ifaceAddress.equals(destAddress)) {
-                        return ifaceAddress; // we found a match
-                    }
-                }
-            } catch (SocketException e) {
-                RobotLog.v(String.format("socket exception while trying to get org.firstinspires.ftc.robotcore.internal.network interface of %s",
-                        address.getHostAddress()));
-            }
-        }
-
-        return determineBindAddressBasedOnWifiP2pSubnet(localIpAddresses, destAddress);
+        return LocalAddressCache.getInstance().getSnapshot().getBindAddress(destAddress);
     }
 
     /**
@@ -130,28 +196,71 @@ public class RobocolConfig {
      * Find a bind address that can reach the destAddress. If no bind address
      * can be found, return the loopback address. The InetAddress.isReachable()
      * method is used to determine if the address is reachable.
+     * <p>
+     * Every local address is probed at once, so the whole takes at most about one
+     * {@link #TIMEOUT} however many interfaces there are. The first address found to
+     * reach the destAddress wins, and we stop waiting for the probes still outstanding.
+     * Those can't be aborted, as isReachable() pays no heed to interruption, so each
+     * keeps its thread in the default pool until it times out.
      *
      * @param destAddress destination address
      * @return address to bind to
      */
-    public static InetAddress determineBindAddressBasedOnIsReachable(ArrayList<InetAddress> localIpAddresses, InetAddress destAddress) {
-        // pick the first address where the destAddress is reachable
-        for (InetAddress address : localIpAddresses) {
-            try {
-                NetworkInterface iface = NetworkInterface.getByInetAddress(address);
-                if (address.isReachable(iface, TTL, TIMEOUT)) {
+    public static InetAddress determineBindAddressBasedOnIsReachable(ArrayList<InetAddress> localIpAddresses, final InetAddress destAddress) {
+        CompletionService<InetAddress> completionService = new ExecutorCompletionService<InetAddress>(ThreadPool.getDefault());
+        List<Future<InetAddress>> probes = new ArrayList<Future<InetAddress>>(localIpAddresses.size());
+        for (final InetAddress address : localIpAddresses) {
+            probes.add(completionService.submit(new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() {
+                    return isReachableVia(address, destAddress) ? address : null;
+                }
+            }));
+        }
+
+        // take the first match, in whatever order the probes finish
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        try {
+            for (int remaining = probes.size(); remaining > 0; remaining--) {
+                Future<InetAddress> probe = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (probe == null) {
+                    break; // out of time
+                }
+                InetAddress address;
+                try {
+                    address = probe.get();
+                } catch (ExecutionException e) {
+                    // one probe failing says nothing of the others
+                    RobotLog.logExceptionHeader("RobocolConfig", e, "exception probing reachability of %s", destAddress.getHostAddress());
+                    continue;
+                }
+                if (address != null) {
                     return address; // we found a match
                 }
-            } catch (SocketException e) {
-                RobotLog.v(String.format("socket exception while trying to get org.firstinspires.ftc.robotcore.internal.network interface of %s",
-                        address.getHostAddress()));
-            } catch (IOException e) {
-                RobotLog.v(String.format("IO exception while trying to determine if %s is reachable via %s",
-                        destAddress.getHostAddress(), address.getHostAddress()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<InetAddress> probe : probes) {
+                probe.cancel(true);
             }
         }
 
         // We couldn't find a match
         return Network.getLoopbackAddress();
     }
+
+    protected static boolean isReachableVia(InetAddress address, InetAddress destAddress) {
+        try {
+            NetworkInterface iface = NetworkInterface.getByInetAddress(address);
+            return iface != null && destAddress.isReachable(iface, TTL, TIMEOUT);
+        } catch (SocketException e) {
+            RobotLog.v(String.format("socket exception while trying to get org.firstinspires.ftc.robotcore.internal.network interface of %s",
+                    address.getHostAddress()));
+        } catch (IOException e) {
+            RobotLog.v(String.format("IO exception while trying to determine if %s is reachable via %s",
+                    destAddress.getHostAddress(), address.getHostAddress()));
+        }
+        return false;
+    }
 }
@@ -6,8 +6,7 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
 
 /**
  * RobocolDatagram
@@ -32,10 +31,20 @@ public class RobocolDatagram {
      */
     private byte[] receiveBuffer = null;
 
+    /**
+     * If non-null, the leak detection lease on our receive buffer
+     */
+    private RobocolBufferPool.Lease receiveBufferLease = null;
+
+    /**
+     * lazily created view of our packet's data handed out by getByteBuffer()
+     */
+    private ByteBuffer byteBuffer = null;
+
     /**
      * the place we put old receive buffers
      */
-    static Queue<byte[]> receiveBuffers = new ConcurrentLinkedQueue<byte[]>();
+    static final RobocolBufferPool receiveBufferPool = new RobocolBufferPool(RobocolConfig.RECEIVE_POOL_MAX_RETAINED_BYTES);
 
     //-----------------------------------------------------------------------------------------------
     // Construction
@@ -67,19 +76,27 @@ public class RobocolDatagram {
      * @return a new datagram suitable for socket receiving
      */
     public static RobocolDatagram forReceive(int receiveBufferSize) {
-        byte[] buffer = receiveBuffers.poll();
-        if (buffer == null || buffer.length != receiveBufferSize) {
-            buffer = new byte[receiveBufferSize];
-        }
+        // The buffer may be larger than we asked for; the packet still only receives what we asked
+        byte[] buffer = receiveBufferPool.acquire(receiveBufferSize);
         //
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        DatagramPacket packet = new DatagramPacket(buffer, receiveBufferSize);
         //
         RobocolDatagram result = new RobocolDatagram();
         result.packet = packet;
         result.receiveBuffer = buffer;
+        result.receiveBufferLease = receiveBufferPool.track(result, buffer);
         return result;
     }
 
+    /**
+     * Returns the pool from which receive buffers are drawn, for configuration and metrics
+     *
+     * @return the receive buffer pool
+     */
+    public static RobocolBufferPool getReceiveBufferPool() {
+        return receiveBufferPool;
+    }
+
     protected RobocolDatagram() {
         this.packet = null;
     }
@@ -93,10 +110,12 @@ public class RobocolDatagram {
      */
     public void close() {
         if (this.receiveBuffer != null) {
-            receiveBuffers.add(this.receiveBuffer);
+            receiveBufferPool.release(this.receiveBuffer, this.receiveBufferLease);
             this.receiveBuffer = null;
+            this.receiveBufferLease = null;
         }
         this.packet = null;
+        this.byteBuffer = null;
     }
 
     //-----------------------------------------------------------------------------------------------
@@ -139,10 +158,39 @@ public class RobocolDatagram {
         return packet.getData();
     }
 
+    /**
+     * Gets the payload of this datagram packet as a buffer over the received bytes, suitable for
+     * passing to {@link RobocolParsable#fromByteBuffer}, which decodes from offset zero and
+     * {@link #getLength()} bytes. No copy is made. The buffer, like the array returned from
+     * {@link #getData()}, is only valid until this datagram is closed; its position and limit are
+     * the caller's to change.
+     *
+     * @return ByteBuffer data
+     */
+    public ByteBuffer getByteBuffer() {
+        byte[] data = packet.getData();
+        if (byteBuffer == null || byteBuffer.array() != data) {
+            byteBuffer = ByteBuffer.wrap(data);
+        }
+        return byteBuffer;
+    }
+
     public void setData(byte[] data) {
         packet = new DatagramPacket(data, data.length);
     }
 
+    /**
+     * Sets the payload to be the first length bytes of data. Our packet is reused if we have
+     * one, so a datagram that's sent over and over from the same scratch array doesn't allocate.
+     */
+    public void setData(byte[] data, int length) {
+        if (packet == null) {
+            packet = new DatagramPacket(data, length);
+        } else {
+            packet.setData(data, 0, length);
+        }
+    }
+
     public InetAddress getAddress() {
         return packet.getAddress();
     }
@@ -0,0 +1,320 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A RobocolDatagramSocket built on a java.nio DatagramChannel. Datagrams are received straight
+ * into a small pool of direct ByteBuffers and sent from a single direct scratch buffer, so once
+ * the pool is warm neither send() nor recv() allocates.
+ *
+ * @see RobocolConfig#transport
+ */
+public class RobocolDatagramChannelSocket extends RobocolDatagramSocket {
+
+    private static final boolean DEBUG = false;
+    private static final int MAX_SEND_ADDRESSES = 64;
+
+    private DatagramChannel channel;
+    private Selector selector;                  // only used to wait (with a timeout) in recv()
+    private ByteBuffer sendBuffer;              // guarded by sendLock
+    private final ArrayDeque<DirectRobocolDatagram> receivePool = new ArrayDeque<DirectRobocolDatagram>();
+    private final HashMap<InetAddress, InetSocketAddress> sendAddresses = new HashMap<InetAddress, InetSocketAddress>(); // guarded by sendLock
+
+    public RobocolDatagramChannelSocket() {
+        super();
+    }
+
+    @Override
+    public void bind(InetSocketAddress bindAddress) throws SocketException {
+        synchronized (this.bindCloseLock) {
+            if (state != State.CLOSED) {
+                close();
+            }
+            state = State.LISTENING;
+
+            // start up the channel. We stay non-blocking and use a selector to wait so that recv()
+            // still cycles back to RecvLoopRunnable reasonably often
+            try {
+                channel = DatagramChannel.open();
+                channel.bind(bindAddress);
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeChannel();
+                state = State.ERROR;
+                SocketException socketException = new SocketException("unable to bind datagram channel to " + bindAddress);
+                socketException.initCause(e);
+                throw socketException;
+            }
+            socket = channel.socket();
+            sendErrorReported = false;
+            recvErrorReported = false;
+
+            // limit the receive buffers we use in to avoid pointless memory usage
+            receiveBufferSize = Math.min(RobocolConfig.MAX_MAX_PACKET_SIZE, socket.getReceiveBufferSize());
+            sendBufferSize = Math.min(RobocolConfig.MAX_MAX_PACKET_SIZE, socket.getSendBufferSize());
+            msReceiveTimeout = RobocolConfig.MS_RECEIVE_TIMEOUT;
+
+            synchronized (this.sendLock) {
+                if (sendBuffer == null || sendBuffer.capacity() < sendBufferSize) {
+                    sendBuffer = ByteBuffer.allocateDirect(sendBufferSize);
+                }
+            }
+
+            RobotLog.dd(TAG, String.format("RobocolDatagramChannelSocket listening addr=%s cbRec=%d cbSend=%d msRecTO=%d", bindAddress.toString(), receiveBufferSize, sendBufferSize, msReceiveTimeout));
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.bindCloseLock) {
+            state = State.CLOSED;
+            closeChannel();
+            RobotLog.dd(TAG, "RobocolDatagramChannelSocket is closed");
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (selector != null) selector.close();
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            RobotLog.logExceptionHeader(TAG, e, "exception closing datagram channel");
+        }
+    }
+
+    @Override
+    public void send(RobocolDatagram message) {
+        synchronized (this.sendLock) {
+            try {
+                DatagramChannel channel = this.channel;
+                if (channel == null) return;
+
+                if (message.getLength() > sendBuffer.capacity()) {
+                    throw new RuntimeException(String.format("send packet too large: size=%d max=%d", message.getLength(), sendBuffer.capacity()));
+                }
+
+                sendBuffer.clear();
+                sendBuffer.put(message.getData(), 0, message.getLength());
+                sendBuffer.flip();
+
+                if (channel.isConnected()) {
+                    channel.write(sendBuffer);
+                    RobocolRecorder.tap(RobocolRecorder.DIRECTION_SEND, socket.getInetAddress(), message);
+                } else {
+                    // a shared socket sends everything unconnected, so the destinations are cached
+                    channel.send(sendBuffer, sendAddressFor(message.getAddress()));
+                    RobocolRecorder.tap(RobocolRecorder.DIRECTION_SEND, message.getAddress(), message);
+                }
+                if (DEBUG)
+                    RobotLog.vv(TAG, String.format("sent packet to=%s len=%d", String.valueOf(message.getAddress()), message.getPayloadLength()));
+
+            } catch (RuntimeException e) {
+                RobotLog.logExceptionHeader(TAG, e, "exception sending datagram");
+
+            } catch (IOException e) {
+                if (!sendErrorReported) {
+                    sendErrorReported = !DEBUG;
+                    RobotLog.logExceptionHeader(TAG, e, "exception sending datagram");
+                }
+            }
+        }
+    }
+
+    // Must hold sendLock
+    private InetSocketAddress sendAddressFor(InetAddress address) {
+        InetSocketAddress result = sendAddresses.get(address);
+        if (result == null) {
+            if (sendAddresses.size() >= MAX_SEND_ADDRESSES) sendAddresses.clear();
+            result = new InetSocketAddress(address, RobocolConfig.PORT_NUMBER);
+            sendAddresses.put(address, result);
+        }
+        return result;
+    }
+
+    /**
+     * Receive a RobocolDatagram packet. The result must be close()d when the caller is done with
+     * it so that its buffer can be reused.
+     *
+     * @return packet; or null if error or timeout
+     */
+    @Override
+    public @Nullable RobocolDatagram recv() {
+        synchronized (this.recvLock) {
+            DatagramChannel channel = this.channel;
+            Selector selector = this.selector;
+            if (channel == null) return null;
+
+            DirectRobocolDatagram result = obtainReceiveDatagram();
+            try {
+                if (!receiveInto(channel, result)) {
+                    // Nothing queued; wait a bounded time for something to show up. We deliberately
+                    // never clear the selected-key set: the key just stays in it, which spares the
+                    // set from allocating an entry on every wakeup.
+                    selector.select(msReceiveTimeout);
+                    if (!receiveInto(channel, result)) {
+                        recycle(result);
+                        return null;
+                    }
+                }
+                if (DEBUG)
+                    RobotLog.vv(TAG, String.format("received packet from=%s len=%d", String.valueOf(result.getAddress()), result.getPayloadLength()));
+
+            } catch (ClosedChannelException e) {
+                recycle(result);
+                if (!recvErrorReported) {
+                    recvErrorReported = !DEBUG;
+                    RobotLog.logExceptionHeader(TAG, e, "no packet received");
+                }
+                return null;
+
+            } catch (IOException | RuntimeException e) {
+                recycle(result);
+                RobotLog.logExceptionHeader(TAG, e, "no packet received");
+                return null;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Receive a batch of RobocolDatagram packets, acquiring our receive lock just the once for
+     * the lot. Every packet must be close()d when the caller is done with it.
+     */
+    @Override
+    public int recvBatch(RobocolDatagram[] batch, int maxCount) {
+        if (maxCount <= 0) return 0;
+        synchronized (this.recvLock) {
+            RobocolDatagram first = recv();
+            if (first == null) return 0;
+            batch[0] = first;
+            return 1 + recvNow(batch, 1, maxCount - 1);
+        }
+    }
+
+    /**
+     * Receive as many already-queued RobocolDatagram packets as will fit, without waiting.
+     *
+     * @param batch    where to put the received packets
+     * @param index    the index in batch at which to put the first packet
+     * @param maxCount the most packets to receive
+     * @return the number of packets received
+     */
+    public int recvNow(RobocolDatagram[] batch, int index, int maxCount) {
+        synchronized (this.recvLock) {
+            int count = 0;
+            while (count < maxCount) {
+                RobocolDatagram packet = recvNow();
+                if (packet == null) break;
+                batch[index + count++] = packet;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Receive a RobocolDatagram packet if one is already queued, without waiting. This is for
+     * callers that do their own waiting, such as a selector that multiplexes many channels.
+     *
+     * @return packet; or null if nothing was queued, or error
+     * @see #getChannel()
+     */
+    public @Nullable RobocolDatagram recvNow() {
+        synchronized (this.recvLock) {
+            DatagramChannel channel = this.channel;
+            if (channel == null) return null;
+
+            DirectRobocolDatagram result = obtainReceiveDatagram();
+            try {
+                if (receiveInto(channel, result)) {
+                    return result;
+                }
+            } catch (ClosedChannelException e) {
+                // we've been closed out from under our caller; that's their business
+            } catch (IOException | RuntimeException e) {
+                RobotLog.logExceptionHeader(TAG, e, "no packet received");
+            }
+            recycle(result);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the underlying channel, for registration with a selector. The channel is
+     * non-blocking; callers must not read from or write to it directly.
+     *
+     * @return the channel; or null if we're not bound
+     */
+    public @Nullable DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Attempts a non-blocking receive into the indicated datagram
+     *
+     * @return whether a datagram was actually received
+     */
+    private boolean receiveInto(DatagramChannel channel, DirectRobocolDatagram datagram) throws IOException {
+        datagram.reset();
+        ByteBuffer buffer = datagram.buffer;
+
+        if (channel.isConnected()) {
+            // read() doesn't hand back a fresh SocketAddress each time; we know who it's from
+            if (channel.read(buffer) <= 0) return false;
+            datagram.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } else {
+            SocketAddress from = channel.receive(buffer);
+            if (from == null) return false;
+            datagram.address = ((InetSocketAddress) from).getAddress();
+        }
+
+        datagram.length = buffer.position();
+        buffer.flip();
+        RobocolRecorder.tap(RobocolRecorder.DIRECTION_RECEIVE, datagram.address, datagram);
+        return true;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Pooling
+    //----------------------------------------------------------------------------------------------
+
+    private DirectRobocolDatagram obtainReceiveDatagram() {
+        synchronized (receivePool) {
+            DirectRobocolDatagram result = receivePool.pollLast();
+            if (result != null) {
+                result.pooled = false;
+                return result;
+            }
+        }
+        return new DirectRobocolDatagram(this, receiveBufferSize);
+    }
+
+    void recycle(DirectRobocolDatagram datagram) {
+        synchronized (receivePool) {
+            // Buffers left over from a smaller earlier binding aren't worth keeping. We keep
+            // enough around to fill a whole receive batch.
+            if (!datagram.pooled
+                    && datagram.buffer.capacity() >= receiveBufferSize
+                    && receivePool.size() < Math.max(RobocolConfig.CHANNEL_RECEIVE_POOL_SIZE, RobocolConfig.recvBatchSize)) {
+                datagram.pooled = true;
+                receivePool.addLast(datagram);
+            }
+        }
+    }
+}
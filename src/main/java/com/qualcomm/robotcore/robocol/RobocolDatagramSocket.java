@@ -14,7 +14,7 @@ import java.net.SocketTimeoutException;
 /**
  * Multi-threaded datagram socket with non-blocking IO.
  */
-public class RobocolDatagramSocket {
+public class RobocolDatagramSocket implements RobocolTransport {
 
     public static final String TAG = RobocolDatagram.TAG;
 
@@ -27,16 +27,16 @@ public class RobocolDatagramSocket {
         ERROR       /// Socket is in error state
     }
 
-    private DatagramSocket socket;
-    private int receiveBufferSize;
-    private int sendBufferSize;
-    private int msReceiveTimeout;
-    volatile private State state;
-    private final Object recvLock = new Object(); // only one recv() at a time
-    private final Object sendLock = new Object(); // only one send() at a time
-    private final Object bindCloseLock = new Object(); // serializes bind() vs close()
-    private boolean sendErrorReported = false;
-    private boolean recvErrorReported = false;
+    protected DatagramSocket socket;
+    protected int receiveBufferSize;
+    protected int sendBufferSize;
+    protected int msReceiveTimeout;
+    volatile protected State state;
+    protected final Object recvLock = new Object(); // only one recv() at a time
+    protected final Object sendLock = new Object(); // only one send() at a time
+    protected final Object bindCloseLock = new Object(); // serializes bind() vs close()
+    protected boolean sendErrorReported = false;
+    protected boolean recvErrorReported = false;
 
     public RobocolDatagramSocket() {
         state = State.CLOSED;
@@ -95,7 +95,13 @@ public class RobocolDatagramSocket {
                     throw new RuntimeException(String.format("send packet too large: size=%d max=%d", message.getLength(), sendBufferSize));
                 }
                 if (VERBOSE_DEBUG) RobotLog.vv(TAG, "calling socket.send()");
-                socket.send(message.getPacket());
+                DatagramPacket packet = message.getPacket();
+                if (socket.getInetAddress() == null && packet.getPort() < 0) {
+                    // unconnected, so the datagram must say where it's going: the Robocol port at its address
+                    packet.setPort(RobocolConfig.PORT_NUMBER);
+                }
+                socket.send(packet);
+                RobocolRecorder.tap(RobocolRecorder.DIRECTION_SEND, message.getAddress(), message);
                 if (DEBUG)
                     RobotLog.vv(TAG, String.format("sent packet to=%s len=%d", message.getPacket().getAddress().toString(), message.getPayloadLength()));
 
@@ -132,6 +138,7 @@ public class RobocolDatagramSocket {
                 socket.receive(packetRecv);
                 if (DEBUG)
                     RobotLog.vv(TAG, String.format("received packet from=%s len=%d", packetRecv.getAddress().toString(), result.getPayloadLength()));
+                RobocolRecorder.tap(RobocolRecorder.DIRECTION_RECEIVE, packetRecv.getAddress(), result);
 
             } catch (SocketException | SocketTimeoutException e) {
                 if (!recvErrorReported) {
@@ -149,6 +156,24 @@ public class RobocolDatagramSocket {
         }
     }
 
+    /**
+     * Receive a batch of RobocolDatagram packets. Blocks as {@link #recv()} does until a packet
+     * arrives, then also takes whatever further packets are already queued, up to the size of
+     * the batch. This base implementation can't tell what's queued, so it only ever receives one;
+     * subclasses do better.
+     *
+     * @param batch    where to put the received packets, starting at index zero
+     * @param maxCount the most packets to receive; at most batch.length
+     * @return the number of packets received; zero if error or timeout
+     */
+    public int recvBatch(RobocolDatagram[] batch, int maxCount) {
+        if (maxCount <= 0) return 0;
+        RobocolDatagram packet = recv();
+        if (packet == null) return 0;
+        batch[0] = packet;
+        return 1;
+    }
+
     public State getState() {
         return state;
     }
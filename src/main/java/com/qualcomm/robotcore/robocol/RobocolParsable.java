@@ -33,6 +33,8 @@ package com.qualcomm.robotcore.robocol;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.RobotLog;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface implemented by objects that want to be sendable via a RobocolDatagram.
  *
@@ -135,6 +137,16 @@ public interface RobocolParsable {
      */
     boolean shouldTransmit(long nanotimeNow);
 
+    /**
+     * Returns whether or not this parsable is due for a (re)transmission, given that it is to be
+     * retransmitted no more often than the indicated interval
+     *
+     * @param nanotimeNow      the current nanotime on the system clock
+     * @param nanotimeInterval the minimum interval between transmissions
+     * @return whether or not a (re)transmission is due
+     */
+    boolean shouldTransmit(long nanotimeNow, long nanotimeInterval);
+
     /**
      * Serializes the object for the purposes of org.firstinspires.ftc.robotcore.internal.network transmission, which is assumed will take
      * place virtually immediately. Internal state regarding the time of last transmission may thus
@@ -154,6 +166,28 @@ public interface RobocolParsable {
      */
     byte[] toByteArray() throws RobotCoreException;
 
+    /**
+     * Serializes the object into a buffer, starting at the buffer's current position and leaving
+     * the position just past the last byte written. Nothing is allocated, so a caller that reuses
+     * its buffer can serialize as many messages as it likes without creating garbage. The bytes
+     * written are exactly those that toByteArray() would have returned.
+     *
+     * @param buffer the buffer to write into
+     * @return the number of bytes written
+     * @throws RobotCoreException if error, including there being insufficient room in the buffer
+     */
+    int writeTo(ByteBuffer buffer) throws RobotCoreException;
+
+    /**
+     * Serializes the object into a buffer, as {@link #writeTo(ByteBuffer)} does, for the purposes
+     * of transmission, as {@link #toByteArrayForTransmission()} does.
+     *
+     * @param buffer the buffer to write into
+     * @return the number of bytes written
+     * @throws RobotCoreException if error
+     */
+    int writeToForTransmission(ByteBuffer buffer) throws RobotCoreException;
+
     /**
      * Populate the fields of this object based on values of this byte array.
      *
@@ -161,4 +195,17 @@ public interface RobocolParsable {
      * @throws RobotCoreException if unable to parse the byte array.
      */
     void fromByteArray(byte[] byteArray) throws RobotCoreException;
+
+    /**
+     * Populate the fields of this object from a range of a buffer, reading the bytes where they
+     * lie rather than from a copy. This is the way to decode straight out of a received
+     * RobocolDatagram's buffer. The buffer's position and limit are not preserved.
+     *
+     * @param byteBuffer buffer from which to populate this object
+     * @param offset     absolute index in the buffer of the first byte of the serialized object
+     * @param length     number of bytes of the serialized object that are present
+     * @throws RobotCoreException if unable to parse the bytes
+     * @see RobocolDatagram#getByteBuffer()
+     */
+    void fromByteBuffer(ByteBuffer byteBuffer, int offset, int length) throws RobotCoreException;
 }
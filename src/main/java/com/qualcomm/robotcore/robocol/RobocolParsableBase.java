@@ -37,6 +37,7 @@ import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.TypeConversion;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -93,6 +94,20 @@ public abstract class RobocolParsableBase implements RobocolParsable {
         setSequenceNumber((short) nextSequenceNumber.getAndIncrement());
     }
 
+    /**
+     * Takes the next sequence number from the indicated sequence space rather than the shared
+     * one, so that several sessions can each number their traffic independently
+     *
+     * @param sequenceNumbers the sequence space to draw from; if null, the shared one is used
+     */
+    public void setSequenceNumber(AtomicInteger sequenceNumbers) {
+        if (sequenceNumbers == null) {
+            setSequenceNumber();
+        } else {
+            setSequenceNumber((short) sequenceNumbers.getAndIncrement());
+        }
+    }
+
     /**
      * Serialize, but also record timestamp if for transmission
      */
@@ -103,9 +118,24 @@ public abstract class RobocolParsableBase implements RobocolParsable {
         return result;
     }
 
+    /**
+     * Serialize into a buffer, but also record timestamp
+     */
+    @Override
+    public int writeToForTransmission(ByteBuffer buffer) throws RobotCoreException {
+        int result = writeTo(buffer);
+        this.nanotimeTransmit = System.nanoTime();
+        return result;
+    }
+
     @Override
     public boolean shouldTransmit(long nanotimeNow) {
-        return this.nanotimeTransmit == 0 || (nanotimeNow - this.nanotimeTransmit > nanotimeTransmitInterval);
+        return shouldTransmit(nanotimeNow, nanotimeTransmitInterval);
+    }
+
+    @Override
+    public boolean shouldTransmit(long nanotimeNow, long nanotimeInterval) {
+        return this.nanotimeTransmit == 0 || (nanotimeNow - this.nanotimeTransmit > nanotimeInterval);
     }
 
     //----------------------------------------------------------------------------------------------
@@ -122,14 +152,29 @@ public abstract class RobocolParsableBase implements RobocolParsable {
 
     protected ByteBuffer getWriteBuffer(int payloadSize) {
         ByteBuffer result = allocateWholeWriteBuffer(HEADER_LENGTH + payloadSize);
-        //
-        result.put(getRobocolMsgType().asByte());
-        result.putShort((short) payloadSize);
-        result.putShort((short) this.sequenceNumber);
-        //
+        putHeader(result, payloadSize);
         return result;
     }
 
+    protected void putHeader(ByteBuffer buffer, int payloadSize) {
+        buffer.put(getRobocolMsgType().asByte());
+        buffer.putShort((short) payloadSize);
+        buffer.putShort((short) this.sequenceNumber);
+    }
+
+    /**
+     * Serializes into a new array of exactly the indicated size by way of writeTo()
+     */
+    protected byte[] writeToNewArray(int overallSize) throws RobotCoreException {
+        ByteBuffer buffer = allocateWholeWriteBuffer(overallSize);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    protected RobotCoreException bufferTooSmall(BufferOverflowException e, ByteBuffer buffer) {
+        return RobotCoreException.createChained(e, "no room to serialize %s: %d bytes remaining", getRobocolMsgType(), buffer.remaining());
+    }
+
     protected ByteBuffer getReadBuffer(byte[] byteArray) {
         int cbHeaderWithoutSeqNum = HEADER_LENGTH - 2;
         ByteBuffer result = ByteBuffer.wrap(byteArray, cbHeaderWithoutSeqNum, byteArray.length - cbHeaderWithoutSeqNum);
@@ -138,4 +183,21 @@ public abstract class RobocolParsableBase implements RobocolParsable {
         //
         return result;
     }
+
+    protected ByteBuffer getWholeReadBuffer(ByteBuffer byteBuffer, int offset, int length) {
+        byteBuffer.clear();
+        byteBuffer.limit(offset + length);
+        byteBuffer.position(offset);
+        return byteBuffer;
+    }
+
+    protected ByteBuffer getReadBuffer(ByteBuffer byteBuffer, int offset, int length) {
+        int cbHeaderWithoutSeqNum = HEADER_LENGTH - 2;
+        ByteBuffer result = getWholeReadBuffer(byteBuffer, offset, length);
+        result.position(offset + cbHeaderWithoutSeqNum);
+        //
+        setSequenceNumber(result.getShort());
+        //
+        return result;
+    }
 }
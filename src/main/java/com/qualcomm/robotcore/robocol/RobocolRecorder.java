@@ -0,0 +1,303 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * RobocolRecorder
+ * <p>
+ * Captures every datagram our sockets send and receive into append-only segment files, which are
+ * memory-mapped so that recording a packet is no more than a copy into memory: no system call, no
+ * allocation. That's cheap enough to leave on for every match. Once a segment fills, recording
+ * rolls over into a new one, and the oldest segments beyond the configured count are deleted.
+ * <p>
+ * A segment starts with a {@link #SEGMENT_HEADER_LENGTH}-byte header: the {@link #MAGIC} int,
+ * the {@link #VERSION} short, the header length as a short, and the System.nanoTime() and wall
+ * clock time at which the segment was begun, as longs. Records follow back to back, big-endian:
+ * <pre>
+ *     int     total length of the record, this int included
+ *     long    System.nanoTime() at which the datagram was sent or received
+ *     byte    direction: {@link #DIRECTION_SEND} or {@link #DIRECTION_RECEIVE}
+ *     byte    length of the peer address: 0, 4 or 16
+ *     byte[]  peer address
+ *     byte[]  the datagram, as on the wire
+ * </pre>
+ * A record's length is written after the rest of it, so a zero length marks the end of the
+ * segment, even one left behind by a crash.
+ *
+ * @see #setActive(RobocolRecorder)
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolRecorder {
+
+    //-----------------------------------------------------------------------------------------------
+    // State
+    //-----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobocolRecorder";
+
+    public static final int MAGIC = 0x5242434C; // "RBCL"
+    public static final short VERSION = 1;
+    public static final int SEGMENT_HEADER_LENGTH = 32;
+    public static final int RECORD_HEADER_LENGTH = 4 + 8 + 1 + 1;
+    public static final String SEGMENT_SUFFIX = ".rbcap";
+
+    public static final byte DIRECTION_SEND = 0;
+    public static final byte DIRECTION_RECEIVE = 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 << 20;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static volatile RobocolRecorder active = null;
+
+    private final File directory;
+    private final String prefix;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<File> segments = new ArrayDeque<File>();  // oldest first
+    private MappedByteBuffer mapped = null;                              // guarded by lock
+    private int segmentNumber = 0;
+    private boolean closed = false;
+
+    // the peer whose address we last recorded, so we needn't ask it for its bytes every time
+    private InetAddress lastPeer = null;
+    private byte[] lastPeerBytes = null;
+
+    private long recordCount = 0;
+    private long byteCount = 0;
+    private long dropCount = 0;
+
+    //-----------------------------------------------------------------------------------------------
+    // Construction
+    //-----------------------------------------------------------------------------------------------
+
+    public RobocolRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * @param directory   where to put the segment files; created if need be
+     * @param segmentSize the size of each segment file, in bytes
+     * @param maxSegments the most segment files to keep; older ones are deleted
+     */
+    public RobocolRecorder(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH + RobocolConfig.MAX_MAX_PACKET_SIZE + 16) {
+            throw new IllegalArgumentException("segment size too small to hold a maximal datagram: " + segmentSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create capture directory " + directory);
+        }
+        this.directory = directory;
+        this.prefix = "robocol-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+
+        synchronized (lock) {
+            openSegment();
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Activation
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * Makes the indicated recorder the one our sockets record to, closing any previous one
+     *
+     * @param recorder the recorder to use; null stops recording
+     */
+    public static void setActive(@Nullable RobocolRecorder recorder) {
+        RobocolRecorder previous;
+        synchronized (RobocolRecorder.class) {
+            previous = active;
+            active = recorder;
+        }
+        if (previous != null && previous != recorder) previous.close();
+    }
+
+    public static @Nullable RobocolRecorder getActive() {
+        return active;
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Recording
+    //-----------------------------------------------------------------------------------------------
+
+    /**
+     * Records a datagram, if a recorder is active
+     *
+     * @param direction {@link #DIRECTION_SEND} or {@link #DIRECTION_RECEIVE}
+     * @param peer      who the datagram went to or came from, if known
+     * @param datagram  the datagram
+     */
+    public static void tap(byte direction, @Nullable InetAddress peer, RobocolDatagram datagram) {
+        RobocolRecorder recorder = active;
+        if (recorder != null) recorder.record(direction, peer, datagram);
+    }
+
+    public void record(byte direction, @Nullable InetAddress peer, RobocolDatagram datagram) {
+        long nanotime = System.nanoTime();
+        int length = datagram.getLength();
+
+        synchronized (lock) {
+            if (closed) return;
+
+            byte[] peerBytes = null;
+            if (peer != null) {
+                if (peer != lastPeer) {
+                    lastPeerBytes = peer.getAddress();
+                    lastPeer = peer;
+                }
+                peerBytes = lastPeerBytes;
+            }
+            int cbPeer = peerBytes == null ? 0 : peerBytes.length;
+            int cbRecord = RECORD_HEADER_LENGTH + cbPeer + length;
+
+            // Leave room for the zero length that terminates the segment
+            if (mapped.remaining() < cbRecord + 4 && !rollSegment()) {
+                dropCount++;
+                return;
+            }
+
+            int start = mapped.position();
+            mapped.position(start + 4);
+            mapped.putLong(nanotime);
+            mapped.put(direction);
+            mapped.put((byte) cbPeer);
+            if (peerBytes != null) mapped.put(peerBytes);
+
+            DatagramPacket packet = datagram.getPacket();
+            if (packet != null) {
+                mapped.put(packet.getData(), packet.getOffset(), length);
+            } else {
+                // a direct datagram; its buffer's position and limit are its reader's, so we restore them
+                ByteBuffer source = datagram.getByteBuffer();
+                int position = source.position();
+                int limit = source.limit();
+                source.limit(length).position(0);
+                mapped.put(source);
+                source.limit(limit).position(position);
+            }
+
+            // the length goes in last, so that an incomplete record is never mistaken for a complete one
+            mapped.putInt(start, cbRecord);
+
+            recordCount++;
+            byteCount += cbRecord;
+        }
+    }
+
+    /**
+     * Stops recording, and flushes what we've recorded to the files
+     */
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            if (mapped != null) {
+                mapped.force();
+                mapped = null;
+            }
+            RobotLog.vv(TAG, "closed: %s", this);
+        }
+        synchronized (RobocolRecorder.class) {
+            if (active == this) active = null;
+        }
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Segments
+    //-----------------------------------------------------------------------------------------------
+
+    private boolean rollSegment() {
+        try {
+            // No force() here: the OS writes the pages of the old segment back in its own time,
+            // and making the packet at hand wait on the disk is just what we mustn't do
+            openSegment();
+            return true;
+        } catch (IOException e) {
+            RobotLog.logExceptionHeader(TAG, e, "unable to roll capture segment; recording stopped");
+            closed = true;
+            return false;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%s-%04d%s", prefix, segmentNumber++, SEGMENT_SUFFIX));
+
+        // The mapping outlives the file and channel, so those can be closed straightaway
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(segmentSize);
+            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        mapped.putInt(MAGIC);
+        mapped.putShort(VERSION);
+        mapped.putShort((short) SEGMENT_HEADER_LENGTH);
+        mapped.putLong(System.nanoTime());
+        mapped.putLong(System.currentTimeMillis());
+        mapped.position(SEGMENT_HEADER_LENGTH);
+
+        segments.addLast(file);
+        while (segments.size() > maxSegments) {
+            File oldest = segments.removeFirst();
+            if (!oldest.delete()) RobotLog.ww(TAG, "unable to delete old capture segment %s", oldest);
+        }
+        RobotLog.vv(TAG, "recording to %s", file);
+    }
+
+    //-----------------------------------------------------------------------------------------------
+    // Metrics
+    //-----------------------------------------------------------------------------------------------
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getRecordCount() {
+        synchronized (lock) {
+            return recordCount;
+        }
+    }
+
+    public long getByteCount() {
+        synchronized (lock) {
+            return byteCount;
+        }
+    }
+
+    /**
+     * @return the number of datagrams we were unable to record
+     */
+    public long getDropCount() {
+        synchronized (lock) {
+            return dropCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format(Locale.US, "RobocolRecorder - dir:%s, segments:%d, records:%d, bytes:%d, drops:%d",
+                    directory, segmentNumber, recordCount, byteCount, dropCount);
+        }
+    }
+}
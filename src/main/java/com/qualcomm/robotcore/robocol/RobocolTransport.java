@@ -0,0 +1,68 @@
+package com.qualcomm.robotcore.robocol;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+/**
+ * {@link RobocolTransport} is what the Robocol stack sends and receives datagrams through.
+ * {@link RobocolDatagramSocket} and its subclasses implement it over real UDP;
+ * {@link LoopbackTransport} implements it in memory, so that both ends of a connection can be
+ * run at full speed in a single process.
+ *
+ * @see RobocolConfig#newDatagramSocket()
+ */
+@SuppressWarnings("WeakerAccess")
+public interface RobocolTransport {
+
+    /**
+     * Binds to a local address suitable for talking to the indicated destination
+     */
+    void listenUsingDestination(InetAddress destAddress) throws SocketException;
+
+    void bind(InetSocketAddress bindAddress) throws SocketException;
+
+    /**
+     * Restricts us to the Robocol port at the indicated address. Datagrams sent without an
+     * address of their own go there.
+     */
+    void connect(InetAddress connectAddress) throws SocketException;
+
+    void close();
+
+    void send(RobocolDatagram message);
+
+    /**
+     * Receive a RobocolDatagram packet, waiting a while for one to arrive. The caller is to
+     * close() the packet once done with it.
+     *
+     * @return packet; or null if error or timeout
+     */
+    @Nullable RobocolDatagram recv();
+
+    /**
+     * Receive a batch of RobocolDatagram packets. Blocks as {@link #recv()} does until a packet
+     * arrives, then also takes whatever further packets are already queued, up to the size of
+     * the batch.
+     *
+     * @param batch    where to put the received packets, starting at index zero
+     * @param maxCount the most packets to receive; at most batch.length
+     * @return the number of packets received; zero if error or timeout
+     */
+    int recvBatch(RobocolDatagram[] batch, int maxCount);
+
+    RobocolDatagramSocket.State getState();
+
+    /**
+     * @return the address we're connected to; null if not connected
+     */
+    @Nullable InetAddress getInetAddress();
+
+    @Nullable InetAddress getLocalAddress();
+
+    boolean isRunning();
+
+    boolean isClosed();
+}
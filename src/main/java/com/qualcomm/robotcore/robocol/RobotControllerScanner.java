@@ -0,0 +1,245 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.util.Network;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.TypeConversion;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RobotControllerScanner
+ * <p>
+ * Finds the robot controllers on our local networks, so that the operator needn't know their
+ * addresses. A PeerDiscovery probe is sent to every host on every IPv4 subnet we're on, and
+ * whoever answers as a peer is a robot controller.
+ * <p>
+ * All the probing is done through the one non-blocking channel: we send as fast as the channel
+ * will take probes, and collect answers as they arrive, so that hosts are effectively probed all
+ * at once and a scan takes about as long as we're prepared to wait for answers. Answers come to
+ * the Robocol port, as that's where a robot controller replies to, so a scan is to be done
+ * before the driver station's own socket is bound. By default we listen on every address; a
+ * robot controller simulated on this machine has the port on its address, though, and then we
+ * must be told an address of our own to listen on instead.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobotControllerScanner {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobotControllerScanner";
+
+    public static final int MS_SCAN_TIMEOUT = 300;      // how long we listen for answers
+    public static final int MS_RESEND_DELAY = 100;      // unanswered probes go again after this, as some are lost while ARP resolves
+    public static final int MIN_PREFIX_LENGTH = 22;     // of bigger subnets, we only scan this much around our own address
+
+    public interface Listener {
+        /**
+         * A robot controller has answered. Called on the scanning thread.
+         */
+        void onRobotControllerFound(InetAddress rcAddr);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final int msTimeout;
+    protected final @Nullable InetAddress bindAddress;
+    protected final PeerDiscovery probe = new PeerDiscovery(PeerDiscovery.PeerType.GROUP_OWNER);
+    protected final PeerDiscovery answer = PeerDiscovery.forReceive();
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public RobotControllerScanner() {
+        this(MS_SCAN_TIMEOUT, null);
+    }
+
+    /**
+     * @param msTimeout   how long to wait for answers
+     * @param bindAddress where to listen for answers; if null, on every address
+     */
+    public RobotControllerScanner(int msTimeout, @Nullable InetAddress bindAddress) {
+        this.msTimeout = msTimeout;
+        this.bindAddress = bindAddress;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Scanning
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Scans all our local subnets
+     *
+     * @see #scan(List, Listener)
+     */
+    public List<InetAddress> scan(@Nullable Listener listener) throws IOException {
+        return scan(getScanTargets(), listener);
+    }
+
+    /**
+     * Probes the indicated hosts, returning once we've waited long enough for their answers
+     *
+     * @param targets  the hosts to probe
+     * @param listener if non-null, told of each robot controller as soon as it answers
+     * @return the robot controllers that answered, in the order they did so
+     */
+    public synchronized List<InetAddress> scan(List<InetAddress> targets, @Nullable Listener listener) throws IOException {
+        LinkedHashSet<InetAddress> found = new LinkedHashSet<InetAddress>();
+        RobotLog.vv(TAG, "scanning %d hosts", targets.size());
+
+        DatagramChannel channel = DatagramChannel.open();
+        Selector selector = null;
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(bindAddress, RobocolConfig.PORT_NUMBER));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+            ByteBuffer probeBuffer = ByteBuffer.allocate(PeerDiscovery.cbBufferHistorical);
+            probe.writeTo(probeBuffer);
+            probeBuffer.flip();
+            ByteBuffer receiveBuffer = ByteBuffer.allocate(RobocolConfig.MAX_MAX_PACKET_SIZE);
+
+            long nanotimeStart = System.nanoTime();
+            long nanotimeDeadline = nanotimeStart + TimeUnit.MILLISECONDS.toNanos(msTimeout);
+            long nanotimeResend = nanotimeStart + TimeUnit.MILLISECONDS.toNanos(MS_RESEND_DELAY);
+            boolean resent = false;
+            int iNextTarget = 0;
+
+            for (;;) {
+                iNextTarget = sendProbes(channel, probeBuffer, targets, iNextTarget, found);
+                receiveAnswers(channel, receiveBuffer, found, listener);
+
+                long now = System.nanoTime();
+                if (now >= nanotimeDeadline) {
+                    break;
+                }
+                if (!resent && iNextTarget == targets.size() && now >= nanotimeResend) {
+                    resent = true;
+                    iNextTarget = 0;
+                    continue;
+                }
+
+                // wait for answers, or for room to send more probes
+                key.interestOps(iNextTarget < targets.size() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                long nanotimeWake = resent ? nanotimeDeadline : Math.min(nanotimeDeadline, nanotimeResend);
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanotimeWake - now)));
+                selector.selectedKeys().clear();
+            }
+        } catch (RobotCoreException e) {
+            throw new IOException("unable to serialize peer discovery probe", e);
+        } finally {
+            if (selector != null) selector.close();
+            channel.close();
+        }
+
+        RobotLog.vv(TAG, "scan found %s", Network.getHostAddresses(found));
+        return new ArrayList<InetAddress>(found);
+    }
+
+    /**
+     * Sends probes to as many of the targets as the channel will take without blocking
+     *
+     * @return the index of the first target not yet probed
+     */
+    protected int sendProbes(DatagramChannel channel, ByteBuffer probeBuffer, List<InetAddress> targets, int iTarget, HashSet<InetAddress> found) {
+        for (; iTarget < targets.size(); iTarget++) {
+            InetAddress target = targets.get(iTarget);
+            if (found.contains(target)) continue;
+            probeBuffer.rewind();
+            try {
+                if (channel.send(probeBuffer, new InetSocketAddress(target, RobocolConfig.PORT_NUMBER)) == 0) {
+                    break; // the channel is full; we'll carry on when it has room
+                }
+            } catch (IOException e) {
+                // typically an unreachable network; nothing to be done about that but move on
+                RobotLog.vv(TAG, "unable to probe %s: %s", target.getHostAddress(), e.getMessage());
+            }
+        }
+        return iTarget;
+    }
+
+    /**
+     * Reads whatever answers have arrived, telling the listener of those that are new
+     */
+    protected void receiveAnswers(DatagramChannel channel, ByteBuffer receiveBuffer, HashSet<InetAddress> found, @Nullable Listener listener) throws IOException {
+        for (;;) {
+            receiveBuffer.clear();
+            SocketAddress from = channel.receive(receiveBuffer);
+            if (from == null) return;
+
+            int length = receiveBuffer.position();
+            if (length < PeerDiscovery.cbBufferHistorical || receiveBuffer.get(0) != RobocolParsable.MsgType.PEER_DISCOVERY.asByte()) {
+                continue; // a robot controller we've found may already be talking to us
+            }
+            InetAddress rcAddr = ((InetSocketAddress) from).getAddress();
+            try {
+                answer.fromByteBuffer(receiveBuffer, 0, length);
+            } catch (RobotCoreException e) {
+                RobotLog.ww(TAG, "%s answered, but: %s", rcAddr.getHostAddress(), e.getMessage());
+                continue;
+            }
+            // our own probes come back to us from any of our addresses that we scan
+            if (answer.getPeerType() == PeerDiscovery.PeerType.PEER && found.add(rcAddr)) {
+                RobotLog.vv(TAG, "robot controller found at %s", rcAddr.getHostAddress());
+                if (listener != null) listener.onRobotControllerFound(rcAddr);
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Targets
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @return every host on every IPv4 subnet we're on, less ourselves
+     */
+    public static List<InetAddress> getScanTargets() {
+        LinkedHashSet<InetAddress> result = new LinkedHashSet<InetAddress>();
+        List<InterfaceAddress> subnets = Network.getLocalIpv4Subnets();
+        HashSet<InetAddress> ourselves = new HashSet<InetAddress>();
+        for (InterfaceAddress subnet : subnets) {
+            ourselves.add(subnet.getAddress());
+        }
+
+        for (InterfaceAddress subnet : subnets) {
+            int prefixLength = Math.max(subnet.getNetworkPrefixLength(), MIN_PREFIX_LENGTH);
+            if (prefixLength >= 31) continue; // point to point; there's no one to look for
+
+            int hostMask = (1 << (32 - prefixLength)) - 1;
+            int network = TypeConversion.byteArrayToInt(subnet.getAddress().getAddress()) & ~hostMask;
+            // skipping the network and broadcast addresses
+            for (int host = 1; host < hostMask; host++) {
+                try {
+                    InetAddress target = InetAddress.getByAddress(TypeConversion.intToByteArray(network | host));
+                    if (!ourselves.contains(target)) result.add(target);
+                } catch (UnknownHostException e) {
+                    // can't happen with four bytes
+                }
+            }
+        }
+        return new ArrayList<InetAddress>(result);
+    }
+}
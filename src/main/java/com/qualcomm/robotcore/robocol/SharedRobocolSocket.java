@@ -0,0 +1,438 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SharedRobocolSocket
+ * <p>
+ * Lets any number of robot controllers be talked to through the one socket bound to the Robocol
+ * port. The socket is never connected. A single receive thread takes everything that arrives and
+ * sorts it by source address into a queue for each {@link Peer}; each peer is a
+ * {@link RobocolTransport} of its own, which sends by addressing each datagram explicitly to its
+ * robot controller. So however many robots there are, there's one kernel socket buffer and one
+ * thread receiving.
+ * <p>
+ * Datagrams are sorted by source address alone: Robocol peers always send from the Robocol port,
+ * and our datagrams don't carry the port they came from. Those from addresses with no peer are
+ * dropped.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SharedRobocolSocket {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "SharedRobocolSocket";
+    public static boolean DEBUG = false;
+
+    /**
+     * Told, on the shared receive thread, that datagrams have been queued for a peer. A listener
+     * that drains the peer's queue then and there makes that thread the only one receiving.
+     */
+    public interface Listener {
+        void onDatagramsQueued(Peer peer);
+    }
+
+    /**
+     * {@link Peer} is the shared socket as seen by one robot controller: sends go to it, and
+     * recv() returns only what came from it. It behaves as a connected socket would, but
+     * needn't (and can't) be bound itself.
+     */
+    public class Peer implements RobocolTransport {
+        protected final InetAddress address;
+        protected final Queue<RobocolDatagram> inbound = new ConcurrentLinkedQueue<RobocolDatagram>();
+        protected final AtomicInteger queued = new AtomicInteger(0);
+        protected final Object recvLock = new Object();
+        protected volatile @Nullable Listener listener = null;
+        protected volatile Thread receiver = null;
+        protected volatile boolean closed = false;
+
+        protected Peer(InetAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * @param listener told whenever datagrams are queued for us; null if recv() is to be used
+         */
+        public void setListener(@Nullable Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void listenUsingDestination(InetAddress destAddress) throws SocketException {
+            throw new IllegalStateException("a shared socket peer is bound by its shared socket");
+        }
+
+        @Override
+        public void bind(InetSocketAddress bindAddress) throws SocketException {
+            throw new IllegalStateException("a shared socket peer is bound by its shared socket");
+        }
+
+        @Override
+        public void connect(InetAddress connectAddress) throws SocketException {
+            if (!address.equals(connectAddress)) {
+                throw new SocketException("a shared socket peer can't be reconnected: " + connectAddress);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            peers.remove(address, this);
+            RobocolDatagram packet;
+            while ((packet = inbound.poll()) != null) {
+                queued.decrementAndGet();
+                packet.close();
+            }
+            Thread receiver = this.receiver;
+            if (receiver != null) LockSupport.unpark(receiver);
+        }
+
+        /**
+         * Sends the datagram to our robot controller. Its address is set accordingly.
+         */
+        @Override
+        public void send(RobocolDatagram message) {
+            if (closed) return;
+            message.setAddress(address);
+            transport.send(message);
+        }
+
+        @Override
+        public @Nullable RobocolDatagram recv() {
+            synchronized (recvLock) {
+                RobocolDatagram result = inbound.poll();
+                if (result == null && !closed) {
+                    long nanotimeDeadline = System.nanoTime() + RobocolConfig.MS_RECEIVE_TIMEOUT * ElapsedTime.MILLIS_IN_NANO;
+                    receiver = Thread.currentThread();
+                    try {
+                        // Look again once we're registered, lest a datagram slip in between and not wake us
+                        while ((result = inbound.poll()) == null) {
+                            long nanosRemaining = nanotimeDeadline - System.nanoTime();
+                            if (nanosRemaining <= 0 || closed || Thread.currentThread().isInterrupted()) break;
+                            LockSupport.parkNanos(this, nanosRemaining);
+                        }
+                    } finally {
+                        receiver = null;
+                    }
+                }
+                if (result != null) queued.decrementAndGet();
+                return result;
+            }
+        }
+
+        @Override
+        public int recvBatch(RobocolDatagram[] batch, int maxCount) {
+            if (maxCount <= 0) return 0;
+            synchronized (recvLock) {
+                RobocolDatagram packet = recv();
+                if (packet == null) return 0;
+                batch[0] = packet;
+                return 1 + recvNow(batch, 1, maxCount - 1);
+            }
+        }
+
+        /**
+         * Takes as many already-queued datagrams as will fit, without waiting
+         *
+         * @return the number of datagrams taken
+         */
+        public int recvNow(RobocolDatagram[] batch, int index, int maxCount) {
+            int count = 0;
+            RobocolDatagram packet;
+            while (count < maxCount && (packet = inbound.poll()) != null) {
+                queued.decrementAndGet();
+                batch[index + count++] = packet;
+            }
+            return count;
+        }
+
+        protected boolean enqueue(RobocolDatagram packet) {
+            if (closed) return false;
+            if (queued.incrementAndGet() > RobocolConfig.SHARED_SOCKET_PEER_QUEUE_CAPACITY) {
+                queued.decrementAndGet();
+                return false;
+            }
+            inbound.add(packet);
+            if (closed && inbound.remove(packet)) {
+                // we were closed while adding, and close() may already have drained the queue
+                queued.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        protected void notifyQueued() {
+            Listener listener = this.listener;
+            if (listener != null) {
+                try {
+                    listener.onDatagramsQueued(this);
+                } catch (RuntimeException e) {
+                    RobotLog.ee(TAG, e, "exception in listener for %s", address.getHostAddress());
+                }
+            } else {
+                Thread receiver = this.receiver;
+                if (receiver != null) LockSupport.unpark(receiver);
+            }
+        }
+
+        @Override
+        public RobocolDatagramSocket.State getState() {
+            return closed ? RobocolDatagramSocket.State.CLOSED : transport.getState();
+        }
+
+        /**
+         * @return our robot controller: we're as good as connected to it
+         */
+        @Override
+        public @Nullable InetAddress getInetAddress() {
+            return closed ? null : address;
+        }
+
+        @Override
+        public @Nullable InetAddress getLocalAddress() {
+            return transport.getLocalAddress();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return !closed && transport.isRunning();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed || transport.isClosed();
+        }
+
+        /**
+         * @return the number of datagrams waiting to be received
+         */
+        public int getQueuedCount() {
+            return queued.get();
+        }
+
+        public SharedRobocolSocket getSharedSocket() {
+            return SharedRobocolSocket.this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SharedRobocolSocket.Peer - %s queued:%d", address.getHostAddress(), queued.get());
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final RobocolTransport transport;
+    protected final ConcurrentHashMap<InetAddress, Peer> peers = new ConcurrentHashMap<InetAddress, Peer>();
+    protected @Nullable ExecutorService recvService = null;
+
+    protected final AtomicLong receivedCount = new AtomicLong(0);
+    protected final AtomicLong unroutedCount = new AtomicLong(0);
+    protected final AtomicLong droppedCount = new AtomicLong(0);
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public SharedRobocolSocket() {
+        this(RobocolConfig.newDatagramSocket());
+    }
+
+    /**
+     * @param transport the socket to share; it's never to be connected
+     */
+    public SharedRobocolSocket(@NotNull RobocolTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Binds to the Robocol port on a local address suitable for talking to the indicated
+     * destination, and starts receiving
+     */
+    public void listenUsingDestination(InetAddress destAddress) throws SocketException {
+        transport.listenUsingDestination(destAddress);
+        start();
+    }
+
+    /**
+     * Binds to the indicated address, and starts receiving
+     */
+    public void bind(InetSocketAddress bindAddress) throws SocketException {
+        transport.bind(bindAddress);
+        start();
+    }
+
+    protected synchronized void start() {
+        if (recvService != null) return;
+        recvService = ThreadPool.newSingleThreadExecutor("robocol shared receive");
+        recvService.execute(new RecvLoop());
+        RobotLog.vv(TAG, "shared socket listening on %s", transport.getLocalAddress());
+    }
+
+    /**
+     * Closes every peer, then the socket itself
+     */
+    public void close() {
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        transport.close();
+        ExecutorService recvService;
+        synchronized (this) {
+            recvService = this.recvService;
+            this.recvService = null;
+        }
+        if (recvService != null) {
+            recvService.shutdownNow();
+            ThreadPool.awaitTerminationOrExitApplication(recvService, 5, TimeUnit.SECONDS, "SharedRobocolSocket", "internal error");
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Peers
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a transport through which to talk to the robot controller at the indicated address
+     *
+     * @throws IllegalStateException if there's already a peer at that address
+     */
+    public Peer openPeer(@NotNull InetAddress address) {
+        Peer peer = new Peer(address);
+        if (peers.putIfAbsent(address, peer) != null) {
+            throw new IllegalStateException("already a peer at " + address.getHostAddress());
+        }
+        return peer;
+    }
+
+    public @Nullable Peer getPeer(InetAddress address) {
+        return peers.get(address);
+    }
+
+    public RobocolTransport getTransport() {
+        return transport;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Receiving
+    //----------------------------------------------------------------------------------------------
+
+    protected class RecvLoop implements Runnable {
+        @Override
+        public void run() {
+            ThreadPool.logThreadLifeCycle("SharedRobocolSocket.RecvLoop", new Runnable() {
+                @Override
+                public void run() {
+                    RobocolDatagram[] batch = new RobocolDatagram[Math.max(1, RobocolConfig.recvBatchSize)];
+                    Peer[] touched = new Peer[batch.length];
+
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int count = transport.recvBatch(batch, batch.length);
+                        if (count == 0) {
+                            if (transport.isClosed()) return;
+                            continue;
+                        }
+                        receivedCount.addAndGet(count);
+
+                        // Sort the batch into the peers' queues, then tell each peer the once
+                        int touchedCount = 0;
+                        for (int i = 0; i < count; i++) {
+                            RobocolDatagram packet = batch[i];
+                            batch[i] = null;
+                            Peer peer = route(packet);
+                            if (peer == null) continue;
+                            if (!contains(touched, touchedCount, peer)) touched[touchedCount++] = peer;
+                        }
+                        for (int i = 0; i < touchedCount; i++) {
+                            touched[i].notifyQueued();
+                            touched[i] = null;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a received datagram for the peer it came from
+     *
+     * @return the peer; or null if there's none, or its queue is full, in which case the datagram is closed
+     */
+    protected @Nullable Peer route(RobocolDatagram packet) {
+        InetAddress from = packet.getAddress();
+        Peer peer = from == null ? null : peers.get(from);
+        if (peer == null) {
+            unroutedCount.incrementAndGet();
+            if (DEBUG) RobotLog.vv(TAG, "no peer for datagram from %s; dropped", from);
+            packet.close();
+            return null;
+        }
+        if (!peer.enqueue(packet)) {
+            droppedCount.incrementAndGet();
+            if (DEBUG) RobotLog.vv(TAG, "queue full for %s; datagram dropped", from);
+            packet.close();
+            return null;
+        }
+        return peer;
+    }
+
+    protected static boolean contains(Peer[] peers, int count, Peer peer) {
+        for (int i = 0; i < count; i++) {
+            if (peers[i] == peer) return true;
+        }
+        return false;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Metrics
+    //----------------------------------------------------------------------------------------------
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    public long getReceivedCount() {
+        return receivedCount.get();
+    }
+
+    /**
+     * @return the number of datagrams dropped because no peer was expecting them
+     */
+    public long getUnroutedCount() {
+        return unroutedCount.get();
+    }
+
+    /**
+     * @return the number of datagrams dropped because their peer's queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SharedRobocolSocket - local:%s peers:%d received:%d unrouted:%d dropped:%d",
+                transport.getLocalAddress(), peers.size(), receivedCount.get(), unroutedCount.get(), droppedCount.get());
+    }
+}
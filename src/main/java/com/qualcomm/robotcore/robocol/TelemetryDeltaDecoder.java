@@ -0,0 +1,123 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.OrderedFloatMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * TelemetryDeltaDecoder
+ * <p>
+ * The receiving end of a {@link TelemetryDeltaEncoder}: keeps the keyframes of each telemetry
+ * stream, by tag, so that {@link TelemetryMessage#fromByteBuffer(java.nio.ByteBuffer, int, int, TelemetryDeltaDecoder)}
+ * can rebuild the whole telemetry from a delta. Each keyframe received is passed to a listener,
+ * whose job it is to acknowledge it to the sender, most simply by sending it a
+ * {@link TelemetryDeltaEncoder#newAcknowledgement(String, int)}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TelemetryDeltaDecoder {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public interface KeyframeListener {
+        /**
+         * A keyframe has been received, and may now be acknowledged
+         */
+        void onKeyframe(String tag, int keyframeId);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    // The sender may make deltas relative to any keyframe it still has pending, as well as to its
+    // current one, so we keep that many
+    protected static final int MAX_KEYFRAMES = TelemetryDeltaEncoder.MAX_PENDING_KEYFRAMES + 1;
+    protected static final int MAX_KEYFRAMES_OVERTAKEN = 4 * MAX_KEYFRAMES;   // any further behind, and the sender has started over
+
+    protected final HashMap<String, ArrayDeque<TelemetryDeltaEncoder.Keyframe>> keyframesByTag = new HashMap<String, ArrayDeque<TelemetryDeltaEncoder.Keyframe>>();
+    protected final @Nullable KeyframeListener listener;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public TelemetryDeltaDecoder(@Nullable KeyframeListener listener) {
+        this.listener = listener;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Forgets all keyframes, as when the sender has changed
+     */
+    public synchronized void reset() {
+        keyframesByTag.clear();
+    }
+
+    void onKeyframe(String tag, int keyframeId, Map<String, String> strings, OrderedFloatMap numbers) {
+        synchronized (this) {
+            ArrayDeque<TelemetryDeltaEncoder.Keyframe> keyframes = keyframesByTag.get(tag);
+            if (keyframes == null) {
+                keyframes = new ArrayDeque<TelemetryDeltaEncoder.Keyframe>(MAX_KEYFRAMES);
+                keyframesByTag.put(tag, keyframes);
+            }
+            // a sender that's started over reuses ids
+            TelemetryDeltaEncoder.Keyframe newest = null;
+            for (Iterator<TelemetryDeltaEncoder.Keyframe> iterator = keyframes.iterator(); iterator.hasNext(); ) {
+                TelemetryDeltaEncoder.Keyframe keyframe = iterator.next();
+                if (keyframe.id == keyframeId) {
+                    iterator.remove();
+                } else if (newest == null || idsBehind(newest.id, keyframe.id) > 0) {
+                    newest = keyframe;
+                }
+            }
+            if (newest != null && idsBehind(keyframeId, newest.id) > MAX_KEYFRAMES_OVERTAKEN) {
+                keyframes.clear();
+            }
+            if (keyframes.size() >= MAX_KEYFRAMES) {
+                // Keyframes can arrive out of order, so the one to go is the oldest, not the first
+                // to have arrived: the sender's deltas are relative to the newest it knows we have.
+                // If the oldest is the one that's just arrived, it's of no use to anyone.
+                TelemetryDeltaEncoder.Keyframe oldest = null;
+                for (TelemetryDeltaEncoder.Keyframe keyframe : keyframes) {
+                    if (oldest == null || idsBehind(keyframe.id, oldest.id) > 0) oldest = keyframe;
+                }
+                if (idsBehind(keyframeId, oldest.id) > 0) return;
+                keyframes.remove(oldest);
+            }
+            keyframes.addLast(new TelemetryDeltaEncoder.Keyframe(keyframeId, strings, numbers));
+        }
+        if (listener != null) listener.onKeyframe(tag, keyframeId);
+    }
+
+    synchronized @Nullable TelemetryDeltaEncoder.Keyframe getKeyframe(String tag, int keyframeId) {
+        ArrayDeque<TelemetryDeltaEncoder.Keyframe> keyframes = keyframesByTag.get(tag);
+        if (keyframes != null) {
+            for (TelemetryDeltaEncoder.Keyframe keyframe : keyframes) {
+                if (keyframe.id == keyframeId) return keyframe;
+            }
+        }
+        return null;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @return how many keyframes the first id is behind the second, allowing for their wrapping
+     * round; negative if it's ahead
+     */
+    protected static int idsBehind(int keyframeId, int otherKeyframeId) {
+        int behind = (otherKeyframeId - keyframeId) & TelemetryDeltaEncoder.KEYFRAME_ID_MASK;
+        return behind > TelemetryDeltaEncoder.KEYFRAME_ID_MASK / 2 ? behind - (TelemetryDeltaEncoder.KEYFRAME_ID_MASK + 1) : behind;
+    }
+}
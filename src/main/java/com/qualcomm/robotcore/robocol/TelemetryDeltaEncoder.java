@@ -0,0 +1,305 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.util.OrderedFloatMap;
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * TelemetryDeltaEncoder
+ * <p>
+ * Lets a {@link TelemetryMessage} stream be sent as deltas. Every so often we send a keyframe,
+ * which is an ordinary telemetry message carrying everything, with the keyframe's id tacked on
+ * the end. The frames in between carry only what's changed since a keyframe the receiver has, so
+ * that telemetry in which only a few numbers change from frame to frame costs little to send or
+ * to decode. Each delta is relative to the keyframe, not to the previous delta, so a lost delta
+ * loses nothing further.
+ * <p>
+ * By default, we only send deltas relative to keyframes that the receiver has acknowledged, by
+ * sending us a {@link #CMD_ACKNOWLEDGE_KEYFRAME} command. Until one has, all we send is keyframes,
+ * which any receiver can read as ordinary telemetry; a receiver that knows nothing of deltas thus
+ * just never gets any.
+ *
+ * @see TelemetryMessage#setDeltaEncoder(TelemetryDeltaEncoder)
+ * @see TelemetryDeltaDecoder
+ */
+@SuppressWarnings("WeakerAccess")
+public class TelemetryDeltaEncoder {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "TelemetryDelta";
+
+    /**
+     * Sent by the receiver of a keyframe. The extra data is the keyframe id, a space, and the tag.
+     */
+    public static final String CMD_ACKNOWLEDGE_KEYFRAME = "CMD_ACKNOWLEDGE_TELEMETRY_KEYFRAME";
+
+    public static final int KEYFRAME_INTERVAL = 32;         // frames between keyframes, at most
+    public static final int MAX_PENDING_KEYFRAMES = 4;      // sent but not yet acknowledged
+    public static final int KEYFRAME_ID_MASK = 0xFFFF;      // ids are sent in two bytes
+
+    /**
+     * The content of a keyframe, which deltas are made relative to. The keyframe is also the
+     * dictionary of the keys in deltas relative to it: a key it has is sent as its index here,
+     * in a byte, rather than spelt out.
+     */
+    static class Keyframe {
+        final int id;
+        final LinkedHashMap<String, String> strings;
+        final OrderedFloatMap numbers;
+        final String[] stringKeys;
+        final String[] numberKeys;
+        final HashMap<String, Integer> stringOrder = new HashMap<String, Integer>();
+
+        Keyframe(int id, Map<String, String> strings, OrderedFloatMap numbers) {
+            this.id = id;
+            this.strings = new LinkedHashMap<String, String>(strings);
+            this.numbers = new OrderedFloatMap(numbers);
+            this.stringKeys = this.strings.keySet().toArray(new String[this.strings.size()]);
+            this.numberKeys = new String[numbers.size()];
+            for (String key : stringKeys) stringOrder.put(key, stringOrder.size());
+            for (int i = 0; i < numberKeys.length; i++) numberKeys[i] = numbers.keyAt(i);
+        }
+
+        /**
+         * @return the index of the string key, or -1 if we haven't got it
+         */
+        int stringIndexOf(String key) {
+            Integer index = stringOrder.get(key);
+            return index == null ? -1 : index;
+        }
+
+        int numberIndexOf(String key) {
+            return numbers.indexOf(key);
+        }
+    }
+
+    /**
+     * What to send this time: either a keyframe, or a delta relative to one
+     */
+    static class Frame {
+        boolean isKeyframe;
+        int keyframeId;     // of this keyframe, or of the one this delta is relative to
+        @Nullable Keyframe base;   // that a delta is relative to
+        final ArrayList<String> changedStrings = new ArrayList<String>();   // changed or added
+        final ArrayList<String> changedNumbers = new ArrayList<String>();
+        final ArrayList<String> removedStrings = new ArrayList<String>();
+        final ArrayList<String> removedNumbers = new ArrayList<String>();
+
+        void clear() {
+            changedStrings.clear();
+            changedNumbers.clear();
+            removedStrings.clear();
+            removedNumbers.clear();
+        }
+
+        int changeCount() {
+            return changedStrings.size() + changedNumbers.size() + removedStrings.size() + removedNumbers.size();
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final boolean requireAcknowledgement;
+    protected final Frame frame = new Frame();      // reused from frame to frame
+    protected final ArrayDeque<Keyframe> pendingKeyframes = new ArrayDeque<Keyframe>();
+    protected @Nullable Keyframe baseKeyframe = null;
+    protected int nextKeyframeId = 0;
+    protected int framesSinceKeyframe = 0;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public TelemetryDeltaEncoder() {
+        this(true);
+    }
+
+    /**
+     * @param requireAcknowledgement if false, deltas are sent relative to the latest keyframe
+     *                               straightaway, on the assumption that it arrived
+     */
+    public TelemetryDeltaEncoder(boolean requireAcknowledgement) {
+        this.requireAcknowledgement = requireAcknowledgement;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Acknowledgement
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * The receiver has the indicated keyframe, so we may send deltas relative to it
+     */
+    public synchronized void onKeyframeAcknowledged(int keyframeId) {
+        if (keyframeId < 0) return;
+        keyframeId &= KEYFRAME_ID_MASK;
+        for (Keyframe keyframe : pendingKeyframes) {
+            if (keyframe.id == keyframeId) {
+                // older keyframes will now never be wanted
+                Keyframe removed;
+                do {
+                    removed = pendingKeyframes.removeFirst();
+                } while (removed != keyframe);
+                baseKeyframe = keyframe;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets what the receiver has, as when it's a different receiver; we start over with keyframes
+     */
+    public synchronized void reset() {
+        pendingKeyframes.clear();
+        baseKeyframe = null;
+        framesSinceKeyframe = 0;
+    }
+
+    /**
+     * @return a command acknowledging the indicated keyframe of the indicated telemetry
+     */
+    public static Command newAcknowledgement(String tag, int keyframeId) {
+        return new Command(CMD_ACKNOWLEDGE_KEYFRAME, String.format("%d %s", keyframeId, tag));
+    }
+
+    /**
+     * @return the tag of the telemetry acknowledged by a {@link #CMD_ACKNOWLEDGE_KEYFRAME}
+     */
+    public static String getAcknowledgedTag(Command command) {
+        String extra = command.getExtra();
+        int ich = extra.indexOf(' ');
+        return ich < 0 ? "" : extra.substring(ich + 1);
+    }
+
+    /**
+     * @return the keyframe acknowledged by a {@link #CMD_ACKNOWLEDGE_KEYFRAME}, or -1 if it's garbled
+     */
+    public static int getAcknowledgedKeyframe(Command command) {
+        String extra = command.getExtra();
+        int ich = extra.indexOf(' ');
+        try {
+            return Integer.parseInt(ich < 0 ? extra : extra.substring(0, ich));
+        } catch (NumberFormatException e) {
+            RobotLog.ww(TAG, "garbled keyframe acknowledgement: %s", extra);
+            return -1;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Encoding; only used by TelemetryMessage, which holds its own lock while it's using the frame
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Works out what to send of the indicated telemetry
+     */
+    synchronized Frame plan(Map<String, String> strings, OrderedFloatMap numbers) {
+        frame.clear();
+        Keyframe base = baseKeyframe;
+        if (base == null || framesSinceKeyframe + 1 >= KEYFRAME_INTERVAL
+                || !diff(strings, base.strings, base.stringOrder, frame.changedStrings, frame.removedStrings)
+                || !diff(numbers, base.numbers, frame.changedNumbers, frame.removedNumbers)
+                || frame.changeCount() * 2 > strings.size() + numbers.size()) {
+            // A delta would be no great saving, if we can make one at all
+            frame.clear();
+            frame.isKeyframe = true;
+            frame.keyframeId = nextKeyframeId;
+            frame.base = null;
+        } else {
+            frame.isKeyframe = false;
+            frame.keyframeId = base.id;
+            frame.base = base;
+        }
+        return frame;
+    }
+
+    /**
+     * Records that the planned frame was indeed sent
+     */
+    synchronized void sent(Frame frame, Map<String, String> strings, OrderedFloatMap numbers) {
+        if (frame.isKeyframe) {
+            Keyframe keyframe = new Keyframe(frame.keyframeId, strings, numbers);
+            nextKeyframeId = (nextKeyframeId + 1) & KEYFRAME_ID_MASK;
+            framesSinceKeyframe = 0;
+            if (requireAcknowledgement) {
+                if (pendingKeyframes.size() >= MAX_PENDING_KEYFRAMES) pendingKeyframes.removeFirst();
+                pendingKeyframes.addLast(keyframe);
+            } else {
+                baseKeyframe = keyframe;
+            }
+        } else {
+            framesSinceKeyframe++;
+        }
+    }
+
+    /**
+     * Finds what's changed and been removed since the keyframe
+     *
+     * @return false if the order of the entries has changed, which a delta can't express
+     */
+    protected static <V> boolean diff(Map<String, V> current, Map<String, V> base, HashMap<String, Integer> baseOrder, ArrayList<String> changed, ArrayList<String> removed) {
+        int lastIndex = -1;
+        int addedCount = 0;
+        for (Entry<String, V> entry : current.entrySet()) {
+            Integer index = baseOrder.get(entry.getKey());
+            if (index == null) {
+                // new entries go at the end, and must stay there
+                addedCount++;
+                changed.add(entry.getKey());
+            } else {
+                if (addedCount > 0 || index < lastIndex) return false;
+                lastIndex = index;
+                V value = entry.getValue();
+                V baseValue = base.get(entry.getKey());
+                if (value == null ? baseValue != null : !value.equals(baseValue)) {
+                    changed.add(entry.getKey());
+                }
+            }
+        }
+        if (current.size() - addedCount < base.size()) {
+            for (String key : base.keySet()) {
+                if (!current.containsKey(key)) removed.add(key);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * As {@link #diff(Map, Map, HashMap, ArrayList, ArrayList)}, for numbers, without boxing them
+     */
+    protected static boolean diff(OrderedFloatMap current, OrderedFloatMap base, ArrayList<String> changed, ArrayList<String> removed) {
+        int lastIndex = -1;
+        int addedCount = 0;
+        for (int i = 0; i < current.size(); i++) {
+            String key = current.keyAt(i);
+            int index = base.indexOf(key);
+            if (index < 0) {
+                addedCount++;
+                changed.add(key);
+            } else {
+                if (addedCount > 0 || index < lastIndex) return false;
+                lastIndex = index;
+                if (Float.floatToIntBits(current.valueAt(i)) != Float.floatToIntBits(base.valueAt(index))) {
+                    changed.add(key);
+                }
+            }
+        }
+        if (current.size() - addedCount < base.size()) {
+            for (int i = 0; i < base.size(); i++) {
+                String key = base.keyAt(i);
+                if (!current.containsKey(key)) removed.add(key);
+            }
+        }
+        return true;
+    }
+}
@@ -32,13 +32,18 @@ package com.qualcomm.robotcore.robocol;
 
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.robot.RobotState;
+import com.qualcomm.robotcore.util.OrderedFloatMap;
 import com.qualcomm.robotcore.util.TypeConversion;
+import com.qualcomm.robotcore.util.Utf8StringCache;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Hold telemtry data
@@ -47,14 +52,16 @@ import java.util.Map.Entry;
 public class TelemetryMessage extends RobocolParsableBase {
 
     public static final String DEFAULT_TAG = "TELEMETRY_DATA";
-    private static final Charset CHARSET = Charset.forName("UTF-8");
 
     private final Map<String, String> dataStrings = new LinkedHashMap<String, String>();  // linked so as to preserve addition order as iteration order
-    private final Map<String, Float> dataNumbers = new LinkedHashMap<String, Float>();
+    private final OrderedFloatMap dataNumbers = new OrderedFloatMap();                      // ordered too, and unboxed
     private String tag = "";     // an empty tag is treated as the default tag
     private long timestamp = 0;      // when was this telemetry transmitted (ms)
     private boolean isSorted = true;   // should this telemetry be sorted on the driver station
     private RobotState robotState = RobotState.UNKNOWN;
+    private @Nullable TelemetryDeltaEncoder deltaEncoder = null;
+    private final Utf8StringCache decodedStrings = new Utf8StringCache();  // those of the last message we decoded, by position
+    private int decodedStringCount = 0;                                     // in the message we're decoding
 
     public TelemetryMessage() {
         // default constructor
@@ -64,6 +71,10 @@ public class TelemetryMessage extends RobocolParsableBase {
         fromByteArray(byteArray);
     }
 
+    public TelemetryMessage(ByteBuffer byteBuffer, int offset, int length) throws RobotCoreException {
+        fromByteBuffer(byteBuffer, offset, length);
+    }
+
     /**
      * Timestamp this message was sent. Timestamp is in wall time.
      *
@@ -102,6 +113,22 @@ public class TelemetryMessage extends RobocolParsableBase {
         this.robotState = robotState;
     }
 
+    /**
+     * Sets whether, and how, this telemetry is to be sent as deltas. A message that's used to
+     * send the same telemetry over and over should have an encoder of its own; a null encoder
+     * sends everything every time, as usual.
+     *
+     * @param deltaEncoder the encoder to use, or null
+     * @see TelemetryDeltaEncoder
+     */
+    public synchronized void setDeltaEncoder(@Nullable TelemetryDeltaEncoder deltaEncoder) {
+        this.deltaEncoder = deltaEncoder;
+    }
+
+    public synchronized @Nullable TelemetryDeltaEncoder getDeltaEncoder() {
+        return deltaEncoder;
+    }
+
     /**
      * Set the optional tag value.
      * <p>
@@ -183,7 +210,7 @@ public class TelemetryMessage extends RobocolParsableBase {
     }
 
     public synchronized Map<String, Float> getDataNumbers() {
-        return dataNumbers;
+        return dataNumbers.asMap();
     }
 
     /**
@@ -213,7 +240,37 @@ public class TelemetryMessage extends RobocolParsableBase {
 
     @Override
     public synchronized byte[] toByteArray() throws RobotCoreException {
-        // See countMessageBytes(...) for information about data format
+        // We write into a reused buffer, growing it if need be, rather than first walking all the
+        // strings to size an exact one, then walking them all again to write them
+        ByteBuffer buffer = encodeBuffer.get();
+        for (;;) {
+            buffer.clear();
+            try {
+                int cbWritten = write(buffer);
+                return Arrays.copyOf(buffer.array(), cbWritten);
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                encodeBuffer.set(buffer);
+            }
+        }
+    }
+
+    @Override
+    public synchronized int writeTo(ByteBuffer buffer) throws RobotCoreException {
+        try {
+            return write(buffer);
+        } catch (BufferOverflowException e) {
+            throw bufferTooSmall(e, buffer);
+        }
+    }
+
+    /**
+     * Serializes us in one pass, each string being encoded only as it's written
+     *
+     * @throws BufferOverflowException if the buffer is too small, having written some of us
+     */
+    private int write(ByteBuffer buffer) throws RobotCoreException {
+        // See the data format, below
 
         timestamp = System.currentTimeMillis();
 
@@ -225,108 +282,218 @@ public class TelemetryMessage extends RobocolParsableBase {
             throw new RobotCoreException("Cannot have more than %d number data points", cCountMax);
         }
 
-        int payloadSize = countMessageBytes();
-        int totalSize = RobocolParsable.HEADER_LENGTH + payloadSize;
+        TelemetryDeltaEncoder.Frame frame = deltaEncoder == null ? null : deltaEncoder.plan(dataStrings, dataNumbers);
+        boolean isDelta = frame != null && !frame.isKeyframe;
+
+        int positionStart = buffer.position();
 
-        ByteBuffer buffer = getWriteBuffer(payloadSize);
+        // the payload size is filled in once we know it
+        putHeader(buffer, 0);
 
         // timestamp
         buffer.putLong(timestamp);
 
-        // sorted
-        buffer.put((byte) (isSorted ? 1 : 0));
+        // sorted, and whether this is a delta
+        buffer.put((byte) ((isSorted ? FLAG_SORTED : 0) | (isDelta ? FLAG_DELTA : 0)));
 
         // robot state
         buffer.put(robotState.asByte());
 
-        // tag
-        if (tag.length() == 0) {
-            putTagLen(buffer, 0);
+        // tag, whose length is filled in once it's written
+        int positionTagLen = buffer.position();
+        putTagLen(buffer, 0);
+        int cbTag = TypeConversion.putUtf8(buffer, tag);
+        if (cbTag > cbTagMax) {
+            throw new RobotCoreException(String.format("Telemetry tag cannot exceed %d bytes [%s]", cbTagMax, tag));
+        }
+        buffer.put(positionTagLen, (byte) cbTag);
+
+        if (isDelta) {
+            // the keyframe we're relative to, then just what's changed
+            putKeyframeId(buffer, frame.keyframeId);
+
+            // keys the keyframe has go by their index in it
+            TelemetryDeltaEncoder.Keyframe base = frame.base;
+
+            putCount(buffer, frame.changedStrings.size());
+            for (String key : frame.changedStrings) {
+                putStringDataPoint(buffer, key, dataStrings.get(key), true, base.stringIndexOf(key));
+            }
+
+            putCount(buffer, frame.changedNumbers.size());
+            for (String key : frame.changedNumbers) {
+                putNumberDataPoint(buffer, key, dataNumbers.get(key, 0), true, base.numberIndexOf(key));
+            }
+
+            putCount(buffer, frame.removedStrings.size());
+            for (String key : frame.removedStrings) {
+                putKey(buffer, key, true, base.stringIndexOf(key));
+            }
+
+            putCount(buffer, frame.removedNumbers.size());
+            for (String key : frame.removedNumbers) {
+                putKey(buffer, key, true, base.numberIndexOf(key));
+            }
+
         } else {
-            byte tagBytes[] = tag.getBytes(CHARSET);
+            // data strings
+            putCount(buffer, dataStrings.size());
+            for (Entry<String, String> entry : dataStrings.entrySet()) {
+                putStringDataPoint(buffer, entry.getKey(), entry.getValue(), false, -1);
+            }
 
-            if (tagBytes.length > cbTagMax) {
-                throw new RobotCoreException(String.format("Telemetry tag cannot exceed %d bytes [%s]", cbTagMax, tag));
+            // data numbers
+            putCount(buffer, dataNumbers.size());
+            for (int i = 0; i < dataNumbers.size(); i++) {
+                putNumberDataPoint(buffer, dataNumbers.keyAt(i), dataNumbers.valueAt(i), false, -1);
             }
 
-            putTagLen(buffer, tagBytes.length);
-            buffer.put(tagBytes);
+            // keyframes say which they are at the end, where receivers that know nothing of them won't look
+            if (frame != null) {
+                putKeyframeId(buffer, frame.keyframeId);
+            }
         }
 
-        // data strings
-        putCount(buffer, dataStrings.size());
-        for (Entry<String, String> entry : dataStrings.entrySet()) {
-            byte[] key = entry.getKey().getBytes(CHARSET);
-            byte[] value = entry.getValue().getBytes(CHARSET);
-
-            if (key.length > cbKeyMax)
-                throw new RobotCoreException("telemetry key '%s' too long: %d bytes; max %d bytes", entry.getKey(), key.length, cbKeyMax);
-            if (value.length > cbValueMax)
-                throw new RobotCoreException("telemetry value '%s' too long: %d bytes; max %d bytes", entry.getValue(), value.length, cbValueMax);
-
-            putKeyLen(buffer, key.length);
-            buffer.put(key);
-            putValueLen(buffer, value.length);
-            buffer.put(value);
+        if (frame != null) {
+            deltaEncoder.sent(frame, dataStrings, dataNumbers);
         }
 
-        // data numbers
-        putCount(buffer, dataNumbers.size());
-        for (Entry<String, Float> entry : dataNumbers.entrySet()) {
-            byte[] key = entry.getKey().getBytes(CHARSET);
-            float val = entry.getValue();
-
-            if (key.length > cbKeyMax)
-                throw new RobotCoreException("telemetry key '%s' too long: %d bytes; max %d bytes", entry.getKey(), key.length, cbKeyMax);
+        // done
+        int cbWritten = buffer.position() - positionStart;
+        buffer.putShort(positionStart + 1, (short) (cbWritten - RobocolParsable.HEADER_LENGTH));
+        return cbWritten;
+    }
 
-            putKeyLen(buffer, key.length);
-            buffer.put(key);
-            buffer.putFloat(val);
+    /**
+     * Writes a key. If indexed, that's as its index in the keyframe if it has one (index >= 0),
+     * else as itself.
+     */
+    private static void putKey(ByteBuffer buffer, String key, boolean indexed, int index) throws RobotCoreException {
+        if (indexed) {
+            if (index >= 0) {
+                putKeyIndex(buffer, index);
+                return;
+            }
+            putKeyIndex(buffer, KEY_INDEX_NONE);
         }
 
-        // done
-        return buffer.array();
+        byte[] utf8Key = getUtf8Key(key);
+        putKeyLen(buffer, utf8Key.length);
+        buffer.put(utf8Key);
+    }
+
+    private static void putStringDataPoint(ByteBuffer buffer, String key, String value, boolean indexed, int index) throws RobotCoreException {
+        // no string is shorter in UTF-8 than it is in chars
+        if (value.length() > cbValueMax) throw valueTooLong(value, TypeConversion.utf8Length(value));
+
+        putKey(buffer, key, indexed, index);
+
+        // the value's length is filled in once it's written
+        int positionValueLen = buffer.position();
+        putValueLen(buffer, 0);
+        int cbValue = TypeConversion.putUtf8(buffer, value);
+        if (cbValue > cbValueMax) throw valueTooLong(value, cbValue);
+        buffer.putShort(positionValueLen, (short) cbValue);
+    }
+
+    private static RobotCoreException valueTooLong(String value, int cbValue) {
+        return new RobotCoreException("telemetry value '%s' too long: %d bytes; max %d bytes", value, cbValue, cbValueMax);
+    }
+
+    private static void putNumberDataPoint(ByteBuffer buffer, String key, float value, boolean indexed, int index) throws RobotCoreException {
+        putKey(buffer, key, indexed, index);
+        buffer.putFloat(value);
+    }
+
+    /**
+     * Returns the UTF-8 encoding of a key. Telemetry keys are by and large the same from one frame
+     * to the next, so we remember their encodings rather than encoding them afresh every time.
+     */
+    private static byte[] getUtf8Key(String key) throws RobotCoreException {
+        byte[] result = utf8Keys.get(key);
+        if (result == null) {
+            result = new byte[TypeConversion.utf8Length(key)];
+            TypeConversion.putUtf8(ByteBuffer.wrap(result), key);
+            if (result.length > cbKeyMax)
+                throw new RobotCoreException("telemetry key '%s' too long: %d bytes; max %d bytes", key, result.length, cbKeyMax);
+
+            // keys that do keep changing mustn't make us grow without bound
+            if (utf8Keys.size() >= cUtf8KeysMax) utf8Keys.clear();
+            utf8Keys.put(key, result);
+        }
+        return result;
     }
 
     @Override
     public synchronized void fromByteArray(byte[] byteArray) throws RobotCoreException {
+        fromByteBuffer(ByteBuffer.wrap(byteArray), 0, byteArray.length);
+    }
+
+    @Override
+    public synchronized void fromByteBuffer(ByteBuffer byteBuffer, int offset, int length) throws RobotCoreException {
+        fromByteBuffer(byteBuffer, offset, length, null);
+    }
+
+    /**
+     * Deserializes telemetry that may have been sent as deltas
+     *
+     * @param deltaDecoder the keyframes received so far, and to which to add any this is; if null,
+     *                     deltas can't be decoded, though keyframes can
+     * @throws RobotCoreException if this is a delta, and we lack the keyframe it's relative to;
+     *                            the next keyframe will set things right
+     */
+    public synchronized void fromByteBuffer(ByteBuffer byteBuffer, int offset, int length, @Nullable TelemetryDeltaDecoder deltaDecoder) throws RobotCoreException {
 
         clearData();
 
-        ByteBuffer buffer = getReadBuffer(byteArray);
+        ByteBuffer buffer = getReadBuffer(byteBuffer, offset, length);
 
         // timestamp
         timestamp = buffer.getLong();
 
-        // sorted
-        isSorted = buffer.get() != 0;
+        // sorted, and whether this is a delta
+        int flags = buffer.get();
+        isSorted = (flags & FLAG_SORTED) != 0;
+        boolean isDelta = (flags & FLAG_DELTA) != 0;
 
         // robot state
         robotState = RobotState.fromByte(buffer.get());
 
+        // Telemetry is mostly the same from one message to the next, so each string, as it comes,
+        // is likely the same as the one at the same position in the last message we decoded; if it
+        // is, we reuse that rather than make another
+        decodedStringCount = 0;
+
         // tag
         int tagLength = getTagLen(buffer);
         if (tagLength == 0) {
             tag = "";
         } else {
-            byte[] tagBytes = new byte[tagLength];
-            buffer.get(tagBytes);
-            tag = new String(tagBytes, CHARSET);
+            tag = decodeString(buffer, tagLength);
+        }
+
+        // a delta's keys are mostly indices into its keyframe's
+        String[] stringKeys = null;
+        String[] numberKeys = null;
+        if (isDelta) {
+            int keyframeId = getKeyframeId(buffer);
+            TelemetryDeltaEncoder.Keyframe keyframe = deltaDecoder == null ? null : deltaDecoder.getKeyframe(tag, keyframeId);
+            if (keyframe == null) {
+                throw new RobotCoreException("telemetry delta relative to keyframe %d of '%s', which we lack", keyframeId, getTag());
+            }
+            dataStrings.putAll(keyframe.strings);
+            dataNumbers.putAll(keyframe.numbers);
+            stringKeys = keyframe.stringKeys;
+            numberKeys = keyframe.numberKeys;
         }
 
         // data strings
         int stringDataPoints = getCount(buffer);
         for (int i = 0; i < stringDataPoints; i++) {
-            int keyLength = getKeyLen(buffer);
-            byte[] keyBytes = new byte[keyLength];
-            buffer.get(keyBytes);
+            String key = getKey(buffer, stringKeys);
 
             int valLength = getValueLen(buffer);
-            byte[] valBytes = new byte[valLength];
-            buffer.get(valBytes);
-
-            String key = new String(keyBytes, CHARSET);
-            String val = new String(valBytes, CHARSET);
+            String val = decodeString(buffer, valLength);
 
             dataStrings.put(key, val);
         }
@@ -334,16 +501,52 @@ public class TelemetryMessage extends RobocolParsableBase {
         // data numbers
         int numberDataPoints = getCount(buffer);
         for (int i = 0; i < numberDataPoints; i++) {
-            int keyLength = getKeyLen(buffer);
-            byte[] keyBytes = new byte[keyLength];
-            buffer.get(keyBytes);
-            String key = new String(keyBytes, CHARSET);
+            String key = getKey(buffer, numberKeys);
             float val = buffer.getFloat();
 
             dataNumbers.put(key, val);
         }
+
+        if (isDelta) {
+            int count = getCount(buffer);
+            for (int i = 0; i < count; i++) {
+                dataStrings.remove(getKey(buffer, stringKeys));
+            }
+            count = getCount(buffer);
+            for (int i = 0; i < count; i++) {
+                dataNumbers.remove(getKey(buffer, numberKeys));
+            }
+        } else if (buffer.remaining() >= cbKeyframeId && deltaDecoder != null) {
+            deltaDecoder.onKeyframe(tag, getKeyframeId(buffer), dataStrings, dataNumbers);
+        }
+    }
+
+    /**
+     * Reads a key, looking it up in the dictionary if it's an index into it
+     */
+    private String getKey(ByteBuffer buffer, @Nullable String[] dictionary) throws RobotCoreException {
+        if (dictionary != null) {
+            int index = getKeyIndex(buffer);
+            if (index != KEY_INDEX_NONE) {
+                if (index >= dictionary.length) {
+                    throw new RobotCoreException("telemetry key index %d out of range; keyframe has %d keys", index, dictionary.length);
+                }
+                return dictionary[index];
+            }
+        }
+        int keyLength = getKeyLen(buffer);
+        return decodeString(buffer, keyLength);
     }
 
+    /**
+     * Decodes the next string in the message. Only strings actually in it count, not keys sent as
+     * indices, so a string's slot doesn't depend on how the keys ahead of it were sent.
+     */
+    private String decodeString(ByteBuffer buffer, int cbString) {
+        return decodedStrings.utf8ToString(decodedStringCount++, buffer, cbString);
+    }
+
+
     //------------------------------------------------------------------------------------------------
     // Sizing
     //------------------------------------------------------------------------------------------------
@@ -356,12 +559,31 @@ public class TelemetryMessage extends RobocolParsableBase {
     static final int cbKeyLen = 2;
     static final int cbValueLen = 2;
     static final int cbFloat = 4;
+    static final int cbKeyframeId = 2;
+    static final int cbKeyIndex = 1;
+
+    static final int KEY_INDEX_NONE = (1 << (cbKeyIndex * 8)) - 1;     // the key follows instead; cCountMax keys need only indices below this
+
+    static final int FLAG_SORTED = 0x01;
+    static final int FLAG_DELTA = 0x80;
 
     public final static int cbTagMax = (1 << (cbTagLen * 8)) - 1;
     public final static int cCountMax = (1 << (cbCountLen * 8)) - 1;
     public final static int cbKeyMax = (1 << (cbKeyLen * 8)) - 1;
     public final static int cbValueMax = (1 << (cbValueLen * 8)) - 1;
 
+    static final int cbEncodeBufferInitial = 1024;
+    static final int cUtf8KeysMax = 4 * cCountMax;                    // keys whose encodings we remember
+
+    private static final ConcurrentHashMap<String, byte[]> utf8Keys = new ConcurrentHashMap<String, byte[]>();
+
+    private static final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(cbEncodeBufferInitial);
+        }
+    };
+
     static void putCount(ByteBuffer buffer, int count) {
         buffer.put((byte) count);
     }
@@ -394,62 +616,78 @@ public class TelemetryMessage extends RobocolParsableBase {
         return getKeyLen(buffer);
     }
 
-    private int countMessageBytes() {
-
-        /*
-         * Data format
-         *
-         * bytes    | format | value
-         * ---------|--------|---------------------------------
-         *  8       | int64  | timestamp
-         *  1       | uint8  | isSorted
-         *  1       | uint8  | robotState
-         *  1       | uint8  | length of tag (may be zero)
-         *  varies  | UTF-8  | value of tag
-         *  1       | uint8  | count of string data points
-         *  varies  | varies | string data points
-         *  1       | uint8  | count of number data points
-         *  varies  | varies | number data points
-         *
-         *
-         * String Data Points (repeating)
-         *
-         * bytes    | format | value
-         * ---------|--------|---------------------------------
-         *  2       | uint16 | length of key
-         *  varies  | UTF-8  | key
-         *  2       | uint16 | length of value
-         *  varies  | UTF-8  | value
-         *
-         * Number Data Points (repeating)
-         *
-         * bytes    | format | value
-         * ---------|--------|---------------------------------
-         *  2       | uint16 | length of key
-         *  varies  | UTF-8  | key
-         *  4       | float  | value
-         */
-
-        int count = cbTimestamp + cbSorted + cbRobotState;
-
-        // count the length of the tag
-        count += cbTagLen + tag.getBytes(CHARSET).length;
-
-        // count the string data
-        count += cbCountLen;
-        for (Entry<String, String> entry : dataStrings.entrySet()) {
-            count += cbKeyLen + entry.getKey().getBytes(CHARSET).length;
-            count += cbValueLen + entry.getValue().getBytes(CHARSET).length;
-        }
+    static void putKeyIndex(ByteBuffer buffer, int index) {
+        buffer.put((byte) index);
+    }
 
-        // count the number data
-        count += cbCountLen;
-        for (Entry<String, Float> entry : dataNumbers.entrySet()) {
-            count += cbKeyLen + entry.getKey().getBytes(CHARSET).length;
-            count += cbFloat;
-        }
+    static int getKeyIndex(ByteBuffer buffer) {
+        return TypeConversion.unsignedByteToInt(buffer.get());
+    }
 
-        return count;
+    static void putKeyframeId(ByteBuffer buffer, int keyframeId) {
+        buffer.putShort((short) keyframeId);
     }
 
+    static int getKeyframeId(ByteBuffer buffer) {
+        return TypeConversion.unsignedShortToInt(buffer.getShort());
+    }
+
+    /*
+     * Data format
+     *
+     * bytes    | format | value
+     * ---------|--------|---------------------------------
+     *  8       | int64  | timestamp
+     *  1       | uint8  | isSorted
+     *  1       | uint8  | robotState
+     *  1       | uint8  | length of tag (may be zero)
+     *  varies  | UTF-8  | value of tag
+     *  1       | uint8  | count of string data points
+     *  varies  | varies | string data points
+     *  1       | uint8  | count of number data points
+     *  varies  | varies | number data points
+     *  0 or 2  | uint16 | keyframe id, if sent by a TelemetryDeltaEncoder
+     *
+     * The isSorted byte also has FLAG_DELTA set in a delta from a TelemetryDeltaEncoder, whose
+     * format is instead
+     *
+     * bytes    | format | value
+     * ---------|--------|---------------------------------
+     *  8       | int64  | timestamp
+     *  1       | uint8  | isSorted | FLAG_DELTA
+     *  1       | uint8  | robotState
+     *  1       | uint8  | length of tag (may be zero)
+     *  varies  | UTF-8  | value of tag
+     *  2       | uint16 | id of the keyframe this is relative to
+     *  1       | uint8  | count of changed or added string data points
+     *  varies  | varies | string data points
+     *  1       | uint8  | count of changed or added number data points
+     *  varies  | varies | number data points
+     *  1       | uint8  | count of removed string data points
+     *  varies  | varies | keys of removed string data points
+     *  1       | uint8  | count of removed number data points
+     *  varies  | varies | keys of removed number data points
+     *
+     * In a delta, every key (of a data point or removed) starts with a uint8 index into the
+     * keys of the same kind in the keyframe; if that's KEY_INDEX_NONE, the key follows, as usual.
+     *
+     *
+     * String Data Points (repeating)
+     *
+     * bytes    | format | value
+     * ---------|--------|---------------------------------
+     *  2       | uint16 | length of key
+     *  varies  | UTF-8  | key
+     *  2       | uint16 | length of value
+     *  varies  | UTF-8  | value
+     *
+     * Number Data Points (repeating)
+     *
+     * bytes    | format | value
+     * ---------|--------|---------------------------------
+     *  2       | uint16 | length of key
+     *  varies  | UTF-8  | key
+     *  4       | float  | value
+     */
+
 }
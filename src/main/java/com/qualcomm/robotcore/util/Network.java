@@ -33,6 +33,7 @@ package com.qualcomm.robotcore.util;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
@@ -104,6 +105,32 @@ public class Network {
         return addresses;
     }
 
+    /**
+     * Get the IPv4 subnets we're on, other than loopback
+     *
+     * @return a collection of local IPv4 addresses, each with its network prefix length
+     */
+    public static ArrayList<InterfaceAddress> getLocalIpv4Subnets() {
+
+        ArrayList<InterfaceAddress> subnets = new ArrayList<InterfaceAddress>();
+
+        try {
+            for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                for (InterfaceAddress ifaceAddress : iface.getInterfaceAddresses()) {
+                    InetAddress addr = ifaceAddress.getAddress();
+                    if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
+                        subnets.add(ifaceAddress);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // NetworkInterface.getNetworkInterfaces() threw an exception
+            // return an empty collection
+        }
+
+        return subnets;
+    }
+
     /**
      * Remove all IPv6 addresses from a collection
      *
@@ -0,0 +1,358 @@
+package com.qualcomm.robotcore.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * OrderedFloatMap
+ * <p>
+ * A map from strings to floats that remembers the order in which keys were first added, as does
+ * a LinkedHashMap, but without boxing a Float or allocating an entry for each value. The keys and
+ * values are kept in parallel arrays, in order, with an open-addressed hash table of positions in
+ * those arrays to find keys by; once the arrays have grown to size, neither putting nor getting
+ * allocates. Removal is linear, as it's expected to be rare.
+ * <p>
+ * Where a {@link Map} is called for, {@link #asMap()} provides a view, which boxes as it goes.
+ * As there's no float that's null, the view can't hold null values, and won't take them. Not
+ * thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OrderedFloatMap {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected static final int INITIAL_CAPACITY = 16;
+
+    protected String[] keys;
+    protected float[] values;
+    protected int size = 0;
+    protected int[] table;          // each a position in keys plus one, or zero if empty
+    protected int tableShift;       // 32 - log2(table.length)
+    protected @Nullable Map<String, Float> mapView = null;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public OrderedFloatMap() {
+        keys = new String[INITIAL_CAPACITY];
+        values = new float[INITIAL_CAPACITY];
+        setTableLength(INITIAL_CAPACITY * 2);
+    }
+
+    public OrderedFloatMap(OrderedFloatMap them) {
+        keys = Arrays.copyOf(them.keys, Math.max(them.size, INITIAL_CAPACITY));
+        values = Arrays.copyOf(them.values, keys.length);
+        size = them.size;
+        table = them.table.clone();
+        tableShift = them.tableShift;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the position of the key in the order of addition, or -1 if we haven't got it
+     */
+    public int indexOf(String key) {
+        int slot = slotOf(key);
+        return table[slot] - 1;
+    }
+
+    public boolean containsKey(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the key's value, or defaultValue if we haven't got it
+     */
+    public float get(String key, float defaultValue) {
+        int index = indexOf(key);
+        return index < 0 ? defaultValue : values[index];
+    }
+
+    public String keyAt(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+
+    public float valueAt(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    public void setValueAt(int index, float value) {
+        checkIndex(index);
+        values[index] = value;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Updating
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Sets the key's value. A key that's new goes at the end of the order; one we already have
+     * keeps its place.
+     *
+     * @return the position of the key
+     */
+    public int put(String key, float value) {
+        int slot = slotOf(key);
+        int index = table[slot] - 1;
+        if (index >= 0) {
+            values[index] = value;
+            return index;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        index = size++;
+        keys[index] = key;
+        values[index] = value;
+
+        // keep the table at most half full
+        if (size * 2 > table.length) {
+            setTableLength(table.length * 2);
+        } else {
+            table[slot] = index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Makes us a copy of them
+     */
+    public void putAll(OrderedFloatMap them) {
+        if (size == 0 && them.table.length == table.length && keys.length >= them.size) {
+            // the common case, of copying a map no bigger than we've been before
+            System.arraycopy(them.keys, 0, keys, 0, them.size);
+            System.arraycopy(them.values, 0, values, 0, them.size);
+            System.arraycopy(them.table, 0, table, 0, table.length);
+            size = them.size;
+        } else {
+            for (int i = 0; i < them.size; i++) {
+                put(them.keys[i], them.values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return whether we had the key
+     */
+    public boolean remove(String key) {
+        int index = indexOf(key);
+        if (index < 0) return false;
+        System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        keys[--size] = null;
+        setTableLength(table.length);   // the positions after the key have all moved
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Hashing
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @return the slot in the table that has the key, or the empty one where it would go
+     */
+    protected int slotOf(String key) {
+        int mask = table.length - 1;
+        int slot = (key.hashCode() * 0x9E3779B9) >>> tableShift;
+        for (;;) {
+            int entry = table[slot];
+            if (entry == 0 || keys[entry - 1].equals(key)) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * (Re)builds the table, at the indicated length, which must be a power of two
+     */
+    protected void setTableLength(int length) {
+        if (table == null || table.length != length) {
+            table = new int[length];
+            tableShift = 32 - Integer.numberOfTrailingZeros(length);
+        } else {
+            Arrays.fill(table, 0);
+        }
+        for (int index = 0; index < size; index++) {
+            table[slotOf(keys[index])] = index + 1;
+        }
+    }
+
+    protected void checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(String.format("index=%d size=%d", index, size));
+    }
+
+    protected static void checkValue(@Nullable Float value) {
+        if (value == null) throw new NullPointerException("OrderedFloatMap can't hold null values");
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Map view
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @return a live view of us as a Map, in our order. Changes to either show in the other.
+     */
+    public Map<String, Float> asMap() {
+        if (mapView == null) {
+            mapView = new MapView();
+        }
+        return mapView;
+    }
+
+    protected class MapView extends AbstractMap<String, Float> {
+        protected final EntrySet entrySet = new EntrySet();
+
+        @Override
+        public Set<Entry<String, Float>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && OrderedFloatMap.this.containsKey((String) key);
+        }
+
+        @Override
+        public Float get(Object key) {
+            if (!(key instanceof String)) return null;
+            int index = indexOf((String) key);
+            return index < 0 ? null : values[index];
+        }
+
+        @Override
+        public Float put(String key, Float value) {
+            checkValue(value);
+            Float result = get(key);
+            OrderedFloatMap.this.put(key, value);
+            return result;
+        }
+
+        @Override
+        public Float remove(Object key) {
+            Float result = get(key);
+            if (result != null) OrderedFloatMap.this.remove((String) key);
+            return result;
+        }
+
+        @Override
+        public void clear() {
+            OrderedFloatMap.this.clear();
+        }
+    }
+
+    protected class EntrySet extends AbstractSet<Map.Entry<String, Float>> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Float>> iterator() {
+            return new Iterator<Map.Entry<String, Float>>() {
+                int next = 0;
+                int current = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public Map.Entry<String, Float> next() {
+                    if (next >= size) throw new NoSuchElementException();
+                    current = next++;
+                    return new Entry(current);
+                }
+
+                @Override
+                public void remove() {
+                    if (current < 0) throw new IllegalStateException();
+                    OrderedFloatMap.this.remove(keys[current]);
+                    next = current;
+                    current = -1;
+                }
+            };
+        }
+    }
+
+    protected class Entry implements Map.Entry<String, Float> {
+        protected final String key;
+        protected float value;
+
+        protected Entry(int index) {
+            this.key = keys[index];
+            this.value = values[index];
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Float getValue() {
+            return value;
+        }
+
+        @Override
+        public Float setValue(Float value) {
+            checkValue(value);
+            float result = this.value;
+            this.value = value;
+            put(key, value);
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> them = (Map.Entry<?, ?>) o;
+            return key.equals(them.getKey()) && getValue().equals(them.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ Float.floatToIntBits(value);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.qualcomm.robotcore.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimerWheel
+ * <p>
+ * A hashed timer wheel: runs very many short, imprecise timeouts from a single thread. Time is
+ * divided into ticks, and a timeout is filed in the slot of the wheel for the tick in which it
+ * expires, along with how many whole turns of the wheel it has yet to wait. Scheduling and
+ * expiry are thus constant time whatever the number of timeouts outstanding, where a
+ * ScheduledExecutorService pays a heap operation for each. Timeouts run up to a tick late, and
+ * run on the wheel's thread, so must be quick. When there's nothing to time, the thread sleeps
+ * rather than ticking.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TimerWheel {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "TimerWheel";
+
+    protected static class Timeout {
+        final long nanotimeDeadline;
+        final Runnable task;
+        long rounds;
+
+        Timeout(long nanotimeDeadline, Runnable task) {
+            this.nanotimeDeadline = nanotimeDeadline;
+            this.task = task;
+        }
+    }
+
+    protected final long nanosTick;
+    protected final int mask;
+    protected final ArrayDeque<Timeout>[] wheel;                         // only touched by our thread
+    protected final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+    protected final ExecutorService service;
+    protected final long nanotimeStart;
+    protected long tick = 0;                                             // the next tick to expire
+    protected int outstanding = 0;                                       // timeouts in the wheel
+    protected volatile Thread thread = null;
+    protected volatile boolean idle = false;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @param name       the name for the wheel's thread
+     * @param msTick     the resolution of the wheel
+     * @param wheelSize  the number of slots; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(String name, long msTick, int wheelSize) {
+        this.nanosTick = Math.max(1, msTick) * ElapsedTime.MILLIS_IN_NANO;
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.mask = size - 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<Timeout>();
+        }
+        this.nanotimeStart = System.nanoTime();
+        this.service = ThreadPool.newSingleThreadExecutor(name);
+        this.service.execute(new Worker());
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Arranges for the task to be run on the wheel's thread once the delay has passed
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        pending.add(new Timeout(System.nanoTime() + unit.toNanos(delay), task));
+        if (idle) {
+            Thread thread = this.thread;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the wheel. Timeouts that have yet to expire never will.
+     */
+    public void shutdown() {
+        service.shutdownNow();
+    }
+
+    protected class Worker implements Runnable {
+        @Override
+        public void run() {
+            ThreadPool.logThreadLifeCycle("TimerWheel", new Runnable() {
+                @Override
+                public void run() {
+                    thread = Thread.currentThread();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        if (outstanding == 0 && pending.isEmpty()) {
+                            // Nothing to do until something's scheduled. Being idle must be
+                            // visible before we look at pending for the last time, lest we miss
+                            // the unpark() of a schedule() that slips in between.
+                            idle = true;
+                            if (pending.isEmpty()) LockSupport.park(TimerWheel.this);
+                            idle = false;
+                            tick = Math.max(tick, (System.nanoTime() - nanotimeStart) / nanosTick);
+                            continue;
+                        }
+
+                        long nanotimeTick = nanotimeStart + (tick + 1) * nanosTick;
+                        long nanosWait;
+                        while ((nanosWait = nanotimeTick - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(nanosWait);
+                            if (Thread.currentThread().isInterrupted()) return;
+                        }
+                        transferPending();
+                        expire(wheel[(int) (tick & mask)]);
+                        tick++;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Files newly scheduled timeouts into their slots
+     */
+    protected void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long ticks = Math.max(0, (timeout.nanotimeDeadline - nanotimeStart + nanosTick - 1) / nanosTick - 1);
+            long expiryTick = Math.max(tick, ticks);    // anything overdue goes in the current slot
+            timeout.rounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+            outstanding++;
+        }
+    }
+
+    protected void expire(ArrayDeque<Timeout> slot) {
+        Iterator<Timeout> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            iterator.remove();
+            outstanding--;
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                RobotLog.ee(TAG, e, "exception in timeout");
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@
 
 package com.qualcomm.robotcore.util;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
@@ -243,4 +244,102 @@ public class TypeConversion {
     public static String utf8ToString(byte[] utf8String) {
         return new String(utf8String, UTF8_CHARSET);
     }
+
+    /**
+     * Returns the number of bytes that {@link #putUtf8(ByteBuffer, String)} will write for the
+     * indicated String, which is the length of its UTF-8 encoding. Nothing is allocated.
+     */
+    public static int utf8Length(String javaString) {
+        int cb = 0;
+        int cch = javaString.length();
+        for (int ich = 0; ich < cch; ich++) {
+            char ch = javaString.charAt(ich);
+            if (ch < 0x80) {
+                cb += 1;
+            } else if (ch < 0x800) {
+                cb += 2;
+            } else if (Character.isHighSurrogate(ch) && ich + 1 < cch && Character.isLowSurrogate(javaString.charAt(ich + 1))) {
+                cb += 4;
+                ich++;
+            } else if (Character.isSurrogate(ch)) {
+                cb += 1;    // unpaired; encoded as '?', as String.getBytes() does
+            } else {
+                cb += 3;
+            }
+        }
+        return cb;
+    }
+
+    /**
+     * Encode a String as UTF-8 into a buffer at its current position, advancing the position past
+     * the bytes written. Unlike {@link #stringToUtf8(String)}, no intermediate byte[] is allocated.
+     *
+     * @param buffer     the buffer to write to
+     * @param javaString the String to encode
+     * @return the number of bytes written
+     * @see #utf8Length(String)
+     */
+    public static int putUtf8(ByteBuffer buffer, String javaString) {
+        int positionStart = buffer.position();
+        int cch = javaString.length();
+        for (int ich = 0; ich < cch; ich++) {
+            char ch = javaString.charAt(ich);
+            if (ch < 0x80) {
+                buffer.put((byte) ch);
+            } else if (ch < 0x800) {
+                buffer.put((byte) (0xC0 | (ch >> 6)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            } else if (Character.isHighSurrogate(ch) && ich + 1 < cch && Character.isLowSurrogate(javaString.charAt(ich + 1))) {
+                int codePoint = Character.toCodePoint(ch, javaString.charAt(++ich));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(ch)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (ch >> 12)));
+                buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (ch & 0x3F)));
+            }
+        }
+        return buffer.position() - positionStart;
+    }
+
+    /**
+     * Decode a String from the next cbString bytes of a buffer, advancing its position past
+     * them. Heap buffers are decoded in place; direct ones by way of a reused per-thread scratch
+     * array rather than a fresh byte[] per string.
+     *
+     * @param buffer   the buffer to read from
+     * @param cbString the number of UTF-8 bytes in the string
+     * @return the decoded String
+     */
+    public static String utf8ToString(ByteBuffer buffer, int cbString) {
+        if (cbString > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String result;
+        if (buffer.hasArray()) {
+            result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), cbString, UTF8_CHARSET);
+            buffer.position(buffer.position() + cbString);
+        } else {
+            byte[] scratch = utf8Scratch.get();
+            if (scratch.length < cbString) {
+                scratch = new byte[cbString];
+                utf8Scratch.set(scratch);
+            }
+            buffer.get(scratch, 0, cbString);
+            result = new String(scratch, 0, cbString, UTF8_CHARSET);
+        }
+        return result;
+    }
+
+    private static final ThreadLocal<byte[]> utf8Scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[256];
+        }
+    };
 }
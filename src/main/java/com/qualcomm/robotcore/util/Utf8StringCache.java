@@ -0,0 +1,106 @@
+package com.qualcomm.robotcore.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Utf8StringCache
+ * <p>
+ * Decodes UTF-8 strings from a stream of messages much like one another, such as telemetry,
+ * without making a new String each time the same bytes come round again. Each string decoded
+ * goes in a slot, typically its position in the message; if the bytes in that slot are the
+ * same as last time, the String from last time is returned, and nothing is allocated.
+ * <p>
+ * Long strings aren't remembered, so that the cache stays small. Not thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class Utf8StringCache {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final int CB_CACHED_MAX = 1024;      // longer strings are decoded afresh every time
+
+    protected byte[][] slotBytes = new byte[0][];      // the bytes last seen in each slot
+    protected int[] slotLengths = new int[0];          // how many of those bytes are in use
+    protected String[] slotStrings = new String[0];    // and what they decoded to
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * As {@link TypeConversion#utf8ToString(ByteBuffer, int)}, but reusing the String last decoded
+     * in the slot if the bytes are the same
+     *
+     * @param slot     which string this is, in the message
+     * @param buffer   the buffer to decode from; its position is advanced past the string
+     * @param cbString the length of the string, in bytes
+     */
+    public String utf8ToString(int slot, ByteBuffer buffer, int cbString) {
+        if (cbString > CB_CACHED_MAX) {
+            return TypeConversion.utf8ToString(buffer, cbString);
+        }
+        if (cbString > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (slot >= slotStrings.length) {
+            grow(slot + 1);
+        }
+
+        int position = buffer.position();
+        if (slotStrings[slot] != null && slotLengths[slot] == cbString && matches(slotBytes[slot], buffer, position, cbString)) {
+            buffer.position(position + cbString);
+            return slotStrings[slot];
+        }
+
+        byte[] bytes = slotBytes[slot];
+        if (bytes == null || bytes.length < cbString) {
+            bytes = new byte[Math.max(cbString, 16)];
+            slotBytes[slot] = bytes;
+        }
+        buffer.get(bytes, 0, cbString);
+        buffer.position(position);
+
+        String result = TypeConversion.utf8ToString(buffer, cbString);
+        slotLengths[slot] = cbString;
+        slotStrings[slot] = result;
+        return result;
+    }
+
+    /**
+     * Forgets everything, as when the stream of messages has changed
+     */
+    public void clear() {
+        Arrays.fill(slotBytes, null);
+        Arrays.fill(slotStrings, null);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    protected static boolean matches(byte[] bytes, ByteBuffer buffer, int position, int cb) {
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + position;
+            for (int ib = 0; ib < cb; ib++) {
+                if (bytes[ib] != array[offset + ib]) return false;
+            }
+        } else {
+            for (int ib = 0; ib < cb; ib++) {
+                if (bytes[ib] != buffer.get(position + ib)) return false;
+            }
+        }
+        return true;
+    }
+
+    protected void grow(int slotCount) {
+        int length = Math.max(slotCount, slotStrings.length * 2);
+        slotBytes = Arrays.copyOf(slotBytes, length);
+        slotLengths = Arrays.copyOf(slotLengths, length);
+        slotStrings = Arrays.copyOf(slotStrings, length);
+    }
+}
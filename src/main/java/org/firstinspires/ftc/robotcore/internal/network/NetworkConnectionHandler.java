@@ -31,12 +31,17 @@
 package org.firstinspires.ftc.robotcore.internal.network;
 
 import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.hardware.Gamepad;
 import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.LocalAddressCache;
 import com.qualcomm.robotcore.robocol.PeerDiscovery;
+import com.qualcomm.robotcore.robocol.RobocolConfig;
 import com.qualcomm.robotcore.robocol.RobocolDatagram;
-import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
+import com.qualcomm.robotcore.robocol.RobocolTransport;
 import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.openftc.network.SetupRunnable;
@@ -44,14 +49,14 @@ import org.openftc.network.SetupRunnable;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("WeakerAccess")
-public class NetworkConnectionHandler {
+public class NetworkConnectionHandler implements Gamepad.GamepadCallback, RecvLoopRunnable.ConnectionCallback {
 
     //----------------------------------------------------------------------------------------------
     // Static State
@@ -71,10 +76,11 @@ public class NetworkConnectionHandler {
 
     protected ElapsedTime lastRecvPacket = new ElapsedTime();
     protected InetAddress rcAddr;
-    protected RobocolDatagramSocket socket;
+    protected RobocolTransport socket;
     protected ScheduledExecutorService sendLoopService = Executors.newSingleThreadScheduledExecutor();
-    protected ScheduledFuture<?> sendLoopFuture;
-    protected SendOnceRunnable sendOnceRunnable;
+    protected ExecutorService prioritySendService = null;
+    protected Future<?> sendLoopFuture;
+    protected volatile SendOnceRunnable sendOnceRunnable;
     protected SetupRunnable setupRunnable;
 
     protected RecvLoopRunnable recvLoopRunnable;
@@ -137,7 +143,7 @@ public class NetworkConnectionHandler {
 
         // Actually parse the packet in order to verify Robocol version compatibility
         PeerDiscovery peerDiscovery = PeerDiscovery.forReceive();
-        peerDiscovery.fromByteArray(packet.getData());
+        peerDiscovery.fromByteBuffer(packet.getByteBuffer(), 0, packet.getLength());
 
         // update rcAddr with latest address
         rcAddr = packet.getAddress();
@@ -157,8 +163,16 @@ public class NetworkConnectionHandler {
             // start send loop, if needed
             if (sendLoopFuture == null || sendLoopFuture.isDone()) {
                 RobotLog.vv(TAG, "starting sending loop");
-                sendOnceRunnable = new SendOnceRunnable(clientCallback, socket, lastRecvPacket, parameters);
-                sendLoopFuture = sendLoopService.scheduleAtFixedRate(sendOnceRunnable, 0, 40, TimeUnit.MILLISECONDS);
+                sendOnceRunnable = new SendOnceRunnable(clientCallback, socket, lastRecvPacket, parameters, getSendLoopService());
+                if (RobocolConfig.useReactor) {
+                    // the reactor's whole point is not to have threads per connection
+                    sendLoopFuture = getSendLoopService().scheduleAtFixedRate(sendOnceRunnable, 0, 40, TimeUnit.MILLISECONDS);
+                } else {
+                    if (prioritySendService == null) {
+                        prioritySendService = ThreadPool.newSingleThreadExecutor("robocol sender");
+                    }
+                    sendLoopFuture = prioritySendService.submit(new PrioritySendLoop(sendOnceRunnable));
+                }
             }
 
             if (sendOnceRunnable != null) sendOnceRunnable.onPeerConnected(true);
@@ -166,6 +180,11 @@ public class NetworkConnectionHandler {
         }
     }
 
+    protected ScheduledExecutorService getSendLoopService() {
+        // with the reactor, the send loop shares its scheduler rather than having a thread of its own
+        return RobocolConfig.useReactor ? RobocolReactor.getInstance().getScheduler() : sendLoopService;
+    }
+
     // synchronized avoids race with shutdown()
     public synchronized boolean removeCommand(Command cmd) {
         return (sendOnceRunnable != null) && sendOnceRunnable.removeCommand(cmd);
@@ -201,6 +220,7 @@ public class NetworkConnectionHandler {
         }
     }
 
+    @Override
     public CallbackResult processAcknowledgments(Command command) throws RobotCoreException {
         if (command.isAcknowledged()) {
             if (SendOnceRunnable.DEBUG)
@@ -214,6 +234,29 @@ public class NetworkConnectionHandler {
         return CallbackResult.NOT_HANDLED;
     }
 
+    /**
+     * Gamepads created with us as their {@link Gamepad.GamepadCallback} have their changes sent to
+     * the robot controller as soon as they happen rather than at the next send tick.
+     *
+     * @see SendOnceRunnable.Parameters#sendGamepadsOnChange
+     */
+    @Override
+    public void gamepadChanged(Gamepad gamepad) {
+        // deliberately not synchronized: we're on the input path, and mustn't wait on a connection change
+        SendOnceRunnable sendOnceRunnable = this.sendOnceRunnable;
+        if (sendOnceRunnable != null) sendOnceRunnable.onGamepadChanged(gamepad);
+    }
+
+    /**
+     * Hands a received heartbeat to the connection's send rate controller, which measures round
+     * trip times from the echoes of the heartbeats we originate
+     */
+    @Override
+    public void processHeartbeat(Heartbeat heartbeat, long tReceived) {
+        SendOnceRunnable sendOnceRunnable = this.sendOnceRunnable;
+        if (sendOnceRunnable != null) sendOnceRunnable.getSendRateController().onHeartbeatEchoed(heartbeat, tReceived);
+    }
+
     public synchronized void sendDatagram(RobocolDatagram datagram) {
         if (socket != null && socket.getInetAddress() != null) socket.send(datagram);
     }
@@ -232,7 +275,7 @@ public class NetworkConnectionHandler {
         }
 
         if (sendLoopFuture != null) {
-            sendLoopFuture.cancel(true);
+            sendLoopFuture.cancel(!RobocolConfig.useReactor); // don't interrupt a shared thread
             sendOnceRunnable = null;
             sendLoopFuture = null;
         }
@@ -246,6 +289,9 @@ public class NetworkConnectionHandler {
         // reset the client
         rcAddr = null;
 
+        // nobody's binding sockets for now, so the interfaces needn't be watched
+        LocalAddressCache.stopInstance();
+
         // reset need for handleConnectionInfoAvailable
         setupNeeded = true;
     }
@@ -269,123 +315,11 @@ public class NetworkConnectionHandler {
         }
     }
 
-    protected class RecvLoopCallbackChainer implements RecvLoopRunnable.RecvLoopCallback {
-
-        protected final CopyOnWriteArrayList<RecvLoopRunnable.RecvLoopCallback> callbacks = new CopyOnWriteArrayList<RecvLoopRunnable.RecvLoopCallback>();
-
-        void push(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
-            synchronized (callbacks) {  // for uniqueness testing
-                remove(callback);
-                if (callback != null && !callbacks.contains(callback)) {
-                    callbacks.add(0, callback);
-                }
-            }
-        }
-
-        void remove(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
-            synchronized (callbacks) {
-                if (callback != null) callbacks.remove(callback);
-            }
-        }
-
-        @Override
-        public CallbackResult packetReceived(RobocolDatagram packet) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.packetReceived(packet);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult peerDiscoveryEvent(RobocolDatagram packet) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.peerDiscoveryEvent(packet);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult heartbeatEvent(RobocolDatagram packet, long tReceived) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.heartbeatEvent(packet, tReceived);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult commandEvent(Command command) throws RobotCoreException {
-            boolean handled = false;
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.commandEvent(command);
-                handled = handled || result.isHandled();
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-
-            if (!handled) {
-                // Make an informative trace message as to who was around that all refused to process the command
-                StringBuilder callbackNames = new StringBuilder();
-                for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                    if (callbackNames.length() > 0) callbackNames.append(",");
-                    callbackNames.append(callback.getClass().getSimpleName());
-                }
-                RobotLog.vv(RobocolDatagram.TAG, "unable to process command %s callbacks=%s", command.getName(), callbackNames.toString());
-            }
-            return handled ? CallbackResult.HANDLED : CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult telemetryEvent(RobocolDatagram packet) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.telemetryEvent(packet);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult gamepadEvent(RobocolDatagram packet) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.gamepadEvent(packet);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult emptyEvent(RobocolDatagram packet) throws RobotCoreException {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.emptyEvent(packet);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
-
-        @Override
-        public CallbackResult reportGlobalError(String error, boolean recoverable) {
-            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
-                CallbackResult result = callback.reportGlobalError(error, recoverable);
-                if (result.stopDispatch()) {
-                    return CallbackResult.HANDLED;
-                }
-            }
-            return CallbackResult.NOT_HANDLED;
-        }
+    /**
+     * Returns the callback we install in the receive loop, which delegates in turn to everyone
+     * who has pushed a callback of their own
+     */
+    public RecvLoopRunnable.RecvLoopCallback getReceiveLoopCallback() {
+        return theRecvLoopCallback;
     }
 }
@@ -0,0 +1,206 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link PrioritySendLoop} drives a {@link SendOnceRunnable} from a thread of its own. Rather
+ * than doing everything in one fixed-rate pass, each {@link SendOnceRunnable.Lane lane} of
+ * traffic is paced separately and serviced in priority order: whenever anything is due, gamepads
+ * go first, then the heartbeat, then acks, and only then commands awaiting (re)transmission. The
+ * command lane is worked through a few commands at a time, so however many of them are backed up,
+ * a gamepad frame that comes due waits for at most a handful of sends.
+ * <p>
+ * Acks and new commands don't wait for their lane's next pass; queueing one wakes us.
+ *
+ * @see SendRateController
+ */
+@SuppressWarnings("WeakerAccess")
+public class PrioritySendLoop implements Runnable {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "PrioritySendLoop";
+
+    public static final int MS_DISCONNECTED_POLL_INTERVAL = 40;
+    public static final int MAX_COMMANDS_PER_PASS = 4;
+    public static final int MS_FAILED_LANE_RETRY_INTERVAL = 40;   // for lanes that are otherwise only serviced when signalled
+
+    protected static final SendOnceRunnable.Lane[] LANES = SendOnceRunnable.Lane.values();
+
+    protected final SendOnceRunnable sendOnceRunnable;
+    protected final long[] nanotimeLaneDue = new long[LANES.length];       // only touched by our thread
+    protected final AtomicInteger signalledLanes = new AtomicInteger(0);   // bit per lane
+    protected volatile Thread thread = null;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public PrioritySendLoop(@NotNull SendOnceRunnable sendOnceRunnable) {
+        this.sendOnceRunnable = sendOnceRunnable;
+
+        // everything is due straightaway
+        long nanotimeNow = System.nanoTime();
+        for (int i = 0; i < LANES.length; i++) {
+            nanotimeLaneDue[i] = nanotimeNow;
+        }
+
+        sendOnceRunnable.setSendLoop(this);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Asks that the indicated lane be serviced as soon as the lanes ahead of it allow
+     */
+    public void signal(SendOnceRunnable.Lane lane) {
+        int bit = 1 << lane.ordinal();
+        for (; ; ) {
+            int signalled = signalledLanes.get();
+            if ((signalled & bit) != 0 || signalledLanes.compareAndSet(signalled, signalled | bit))
+                break;
+        }
+        Thread thread = this.thread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        ThreadPool.logThreadLifeCycle("PrioritySendLoop", new Runnable() {
+            @Override
+            public void run() {
+                thread = Thread.currentThread();
+                try {
+                    loop();
+                } finally {
+                    sendOnceRunnable.setSendLoop(null);
+                    thread = null;
+                }
+            }
+        });
+    }
+
+    protected void loop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long nanotimeNow = System.nanoTime();
+
+            boolean disconnected;
+            try {
+                disconnected = sendOnceRunnable.checkDisconnected();
+            } catch (RuntimeException e) {
+                RobotLog.ee(TAG, e, "exception checking for disconnection");
+                disconnected = true;
+            }
+            if (disconnected) {
+                // Signals are left standing, so that what was queued meanwhile (acks, in particular,
+                // whose lane is only ever serviced when signalled) goes once we're connected again
+                LockSupport.parkNanos(MS_DISCONNECTED_POLL_INTERVAL * ElapsedTime.MILLIS_IN_NANO);
+                continue;
+            }
+
+            // signalled lanes are due now
+            int signalled = signalledLanes.getAndSet(0);
+            for (int i = 0; i < LANES.length; i++) {
+                if ((signalled & (1 << i)) != 0) nanotimeLaneDue[i] = nanotimeNow;
+            }
+
+            // Service the highest priority lane that's due, then look again from the top, as
+            // something more important may have come due in the meantime
+            SendOnceRunnable.Lane lane = firstDueLane(nanotimeNow);
+            if (lane != null) {
+                boolean more = false;
+                boolean failed = false;
+                try {
+                    more = service(lane);
+                } catch (Exception e) {
+                    // as in SendOnceRunnable.run(), we soldier on
+                    RobotLog.ee(TAG, e, "exception sending %s", lane);
+                    failed = true;
+                }
+                long nanotimeInterval = laneInterval(lane);
+                if (more) {
+                    nanotimeLaneDue[lane.ordinal()] = nanotimeNow;
+                } else if (nanotimeInterval != 0) {
+                    nanotimeLaneDue[lane.ordinal()] = nanotimeNow + nanotimeInterval;
+                } else if (failed) {
+                    // nothing may signal the lane again, so whatever it was left holding gets another go
+                    nanotimeLaneDue[lane.ordinal()] = nanotimeNow + MS_FAILED_LANE_RETRY_INTERVAL * ElapsedTime.MILLIS_IN_NANO;
+                } else {
+                    nanotimeLaneDue[lane.ordinal()] = Long.MAX_VALUE;
+                }
+                continue;
+            }
+
+            // Nothing's due: sleep until something is, or until we're signalled
+            long nanotimeWait = Long.MAX_VALUE;
+            for (int i = 0; i < LANES.length; i++) {
+                if (nanotimeLaneDue[i] != Long.MAX_VALUE) {
+                    nanotimeWait = Math.min(nanotimeWait, nanotimeLaneDue[i] - nanotimeNow);
+                }
+            }
+            if (signalledLanes.get() == 0) {
+                LockSupport.parkNanos(nanotimeWait);
+            }
+        }
+        RobotLog.vv(TAG, "interrupted; %s returning", Thread.currentThread().getName());
+    }
+
+    /**
+     * Returns how long until the lane should be serviced again; zero means only when signalled.
+     * The intervals come from the send rate controller, and so track the link.
+     */
+    protected long laneInterval(SendOnceRunnable.Lane lane) {
+        SendRateController controller = sendOnceRunnable.getSendRateController();
+        switch (lane) {
+            case GAMEPAD:
+                return controller.getGamepadIntervalNanos();
+            case HEARTBEAT:
+                return controller.getHeartbeatIntervalNanos();
+            case ACK:
+                return 0;
+            case RETRANSMIT:
+            default:
+                // commands pace themselves by the RTO, but we check on them as often as gamepads
+                return controller.getGamepadIntervalNanos();
+        }
+    }
+
+    protected SendOnceRunnable.Lane firstDueLane(long nanotimeNow) {
+        for (int i = 0; i < LANES.length; i++) {
+            if (nanotimeLaneDue[i] != Long.MAX_VALUE && nanotimeNow - nanotimeLaneDue[i] >= 0) {
+                return LANES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the lane has more to send right away
+     */
+    protected boolean service(SendOnceRunnable.Lane lane) throws Exception {
+        switch (lane) {
+            case GAMEPAD:
+                sendOnceRunnable.sendGamepads();
+                return false;
+            case HEARTBEAT:
+                sendOnceRunnable.sendHeartbeat();
+                return false;
+            case ACK:
+                sendOnceRunnable.sendAcks();
+                return false;
+            case RETRANSMIT:
+            default:
+                return sendOnceRunnable.sendCommands(MAX_COMMANDS_PER_PASS);
+        }
+    }
+}
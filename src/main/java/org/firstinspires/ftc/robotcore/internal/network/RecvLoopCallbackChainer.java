@@ -0,0 +1,148 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.RobocolDatagram;
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link RecvLoopCallbackChainer} is the callback actually installed in a receive loop. It keeps
+ * a chain of the callbacks that have been pushed on it, most recent first, and offers each event
+ * to them in turn until one stops the dispatch.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RecvLoopCallbackChainer implements RecvLoopRunnable.RecvLoopBatchCallback {
+
+    protected final CopyOnWriteArrayList<RecvLoopRunnable.RecvLoopCallback> callbacks = new CopyOnWriteArrayList<RecvLoopRunnable.RecvLoopCallback>();
+
+    void push(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
+        synchronized (callbacks) {  // for uniqueness testing
+            remove(callback);
+            if (callback != null && !callbacks.contains(callback)) {
+                callbacks.add(0, callback);
+            }
+        }
+    }
+
+    void remove(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
+        synchronized (callbacks) {
+            if (callback != null) callbacks.remove(callback);
+        }
+    }
+
+    @Override
+    public CallbackResult packetReceived(RobocolDatagram packet) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.packetReceived(packet);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult packetsReceived(RobocolDatagram[] packets, int count) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            if (callback instanceof RecvLoopRunnable.RecvLoopBatchCallback) {
+                CallbackResult result = ((RecvLoopRunnable.RecvLoopBatchCallback) callback).packetsReceived(packets, count);
+                if (result.stopDispatch()) {
+                    return CallbackResult.HANDLED;
+                }
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult peerDiscoveryEvent(RobocolDatagram packet) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.peerDiscoveryEvent(packet);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult heartbeatEvent(RobocolDatagram packet, long tReceived) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.heartbeatEvent(packet, tReceived);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult commandEvent(Command command) throws RobotCoreException {
+        boolean handled = false;
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.commandEvent(command);
+            handled = handled || result.isHandled();
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+
+        if (!handled) {
+            // Make an informative trace message as to who was around that all refused to process the command
+            StringBuilder callbackNames = new StringBuilder();
+            for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+                if (callbackNames.length() > 0) callbackNames.append(",");
+                callbackNames.append(callback.getClass().getSimpleName());
+            }
+            RobotLog.vv(RobocolDatagram.TAG, "unable to process command %s callbacks=%s", command.getName(), callbackNames.toString());
+        }
+        return handled ? CallbackResult.HANDLED : CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult telemetryEvent(RobocolDatagram packet) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.telemetryEvent(packet);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult gamepadEvent(RobocolDatagram packet) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.gamepadEvent(packet);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult emptyEvent(RobocolDatagram packet) throws RobotCoreException {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.emptyEvent(packet);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    @Override
+    public CallbackResult reportGlobalError(String error, boolean recoverable) {
+        for (RecvLoopRunnable.RecvLoopCallback callback : callbacks) {
+            CallbackResult result = callback.reportGlobalError(error, recoverable);
+            if (result.stopDispatch()) {
+                return CallbackResult.HANDLED;
+            }
+        }
+        return CallbackResult.NOT_HANDLED;
+    }
+}
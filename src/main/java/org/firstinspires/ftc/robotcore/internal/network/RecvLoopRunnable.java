@@ -3,8 +3,9 @@ package org.firstinspires.ftc.robotcore.internal.network;
 import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.robocol.Command;
 import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.RobocolConfig;
 import com.qualcomm.robotcore.robocol.RobocolDatagram;
-import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
+import com.qualcomm.robotcore.robocol.RobocolTransport;
 import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.RobotLog;
 import com.qualcomm.robotcore.util.ThreadPool;
@@ -36,6 +37,37 @@ public class RecvLoopRunnable implements Runnable {
         CallbackResult reportGlobalError(String error, boolean recoverable);
     }
 
+    /**
+     * An optional extension of {@link RecvLoopCallback} for callbacks that would like to see
+     * everything received in one wakeup all at once. It's called before any of the individual
+     * packets are dispatched, however few were received, even just the one; if it returns
+     * {@link CallbackResult#HANDLED}, they aren't.
+     *
+     * @see RobocolConfig#recvBatchSize
+     */
+    public interface RecvLoopBatchCallback extends RecvLoopCallback {
+        /**
+         * @param packets the packets received; only the first count entries are meaningful
+         * @param count   the number of packets received
+         */
+        CallbackResult packetsReceived(RobocolDatagram[] packets, int count) throws RobotCoreException;
+    }
+
+    /**
+     * The connection whose send side hears about what the receive loop gets: heartbeat echoes,
+     * from which round trip times are measured, and command acknowledgments. Ordinarily that's
+     * the {@link NetworkConnectionHandler}, but each {@link RobocolSession} is its own.
+     */
+    public interface ConnectionCallback {
+        void processHeartbeat(Heartbeat heartbeat, long tReceived);
+
+        /**
+         * @return {@link CallbackResult#HANDLED} if the command was an ack, and so needs no
+         * further processing
+         */
+        CallbackResult processAcknowledgments(Command command) throws RobotCoreException;
+    }
+
     /**
      * A degenerate implementation so that individual callbacks need not themselves implement a bunch of trivial methods
      */
@@ -85,18 +117,27 @@ public class RecvLoopRunnable implements Runnable {
     protected ElapsedTime packetProcessingTimer;
     protected ElapsedTime commandProcessingTimer;
     protected double sProcessingTimerReportingThreshold;
-    protected RobocolDatagramSocket socket;
+    protected RobocolTransport socket;
     protected RecvLoopCallback callback;
+    protected ConnectionCallback connectionCallback;
     protected LinkedBlockingDeque<Command> commandsToProcess = new LinkedBlockingDeque<Command>();
+    protected RobocolDatagram[] batch;
+    protected final Heartbeat heartbeatRecv = new Heartbeat();    // only touched by whoever dispatches
 
     // Modified for Desktop: replaced @NonNull annotations
-    public RecvLoopRunnable(RecvLoopCallback callback, @NotNull RobocolDatagramSocket socket, @NotNull ElapsedTime lastRecvPacket) {
+    public RecvLoopRunnable(RecvLoopCallback callback, @NotNull RobocolTransport socket, @NotNull ElapsedTime lastRecvPacket) {
+        this(callback, NetworkConnectionHandler.getInstance(), socket, lastRecvPacket);
+    }
+
+    public RecvLoopRunnable(RecvLoopCallback callback, @NotNull ConnectionCallback connectionCallback, @NotNull RobocolTransport socket, @NotNull ElapsedTime lastRecvPacket) {
         this.callback = callback;
+        this.connectionCallback = connectionCallback;
         this.socket = socket;
         this.lastRecvPacket = lastRecvPacket;
         this.packetProcessingTimer = new ElapsedTime();
         this.commandProcessingTimer = new ElapsedTime();
         this.sProcessingTimerReportingThreshold = 0.5;
+        this.batch = new RobocolDatagram[Math.max(1, RobocolConfig.recvBatchSize)];
         RobotLog.vv(TAG, "RecvLoopRunnable created");
     }
 
@@ -110,29 +151,49 @@ public class RecvLoopRunnable implements Runnable {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
                     // Wait for a command to appear, then process it
-                    Command command = commandsToProcess.takeFirst();
-                    commandProcessingTimer.reset();
-                    //
-                    if (DEBUG) RobotLog.vv(TAG, "command=%s...", command.getName());
-                    callback.commandEvent(command);
-                    if (DEBUG) RobotLog.vv(TAG, "...command=%s", command.getName());
-                    //
-                    double seconds = commandProcessingTimer.seconds();
-                    if (seconds > sProcessingTimerReportingThreshold) {
-                        RobotLog.ee(TAG, "command processing took %.3f s: command=%s", seconds, command.getName());
-                    }
+                    processCommand(commandsToProcess.takeFirst());
                 } catch (InterruptedException e) {
                     // Just get out of here
                     return;
-                } catch (RobotCoreException | RuntimeException e) {
-                    // Report the error, but stay alive
-                    RobotLog.ee(TAG, e, "exception in %s", Thread.currentThread().getName());
-                    callback.reportGlobalError(e.getMessage(), false);
                 }
             }
         }
     }
 
+    /**
+     * Processes the commands that are currently queued, if any, without waiting for more. This
+     * is for use when there is no dedicated {@link CommandProcessor} thread.
+     */
+    public void processQueuedCommands() {
+        Command command;
+        while ((command = commandsToProcess.pollFirst()) != null) {
+            processCommand(command);
+        }
+    }
+
+    public boolean hasQueuedCommands() {
+        return !commandsToProcess.isEmpty();
+    }
+
+    protected void processCommand(Command command) {
+        try {
+            commandProcessingTimer.reset();
+            //
+            if (DEBUG) RobotLog.vv(TAG, "command=%s...", command.getName());
+            callback.commandEvent(command);
+            if (DEBUG) RobotLog.vv(TAG, "...command=%s", command.getName());
+            //
+            double seconds = commandProcessingTimer.seconds();
+            if (seconds > sProcessingTimerReportingThreshold) {
+                RobotLog.ee(TAG, "command processing took %.3f s: command=%s", seconds, command.getName());
+            }
+        } catch (RobotCoreException | RuntimeException e) {
+            // Report the error, but stay alive
+            RobotLog.ee(TAG, e, "exception in %s", Thread.currentThread().getName());
+            callback.reportGlobalError(e.getMessage(), false);
+        }
+    }
+
     public void injectReceivedCommand(Command cmd) {
         commandsToProcess.addLast(cmd);
     }
@@ -146,16 +207,18 @@ public class RecvLoopRunnable implements Runnable {
                 while (!Thread.currentThread().isInterrupted()) {
 
                     // Block until a packet is received, a timeout or other error occurs, or the socket is closed.
-                    // In the second and third cases, null is returned.
-                    RobocolDatagram packet = socket.recv();
+                    // In the second and third cases, nothing is returned. If we're batching, also take
+                    // whatever else happens to be queued at the time.
+                    int count = socket.recvBatch(batch, batch.length);
                     long tReceived = Heartbeat.getMsTimeSyncTime();
 
                     // We might have waited for a while in the recv(), and been interrupted in the meantime
                     if (Thread.currentThread().isInterrupted()) {
+                        closeBatch(count);
                         return;
                     }
 
-                    if (packet == null) {
+                    if (count == 0) {
                         if (socket.isClosed()) {
                             RobotLog.vv(TAG, "socket closed; %s returning", Thread.currentThread().getName());
                             return;
@@ -163,60 +226,121 @@ public class RecvLoopRunnable implements Runnable {
                         Thread.yield();
                         continue;
                     }
-                    if (lastRecvPacket != null) lastRecvPacket.reset();
-
-                    try {
-                        packetProcessingTimer.reset();
-                        if (callback.packetReceived(packet) != CallbackResult.HANDLED) {
-
-                            switch (packet.getMsgType()) {
-
-                                case PEER_DISCOVERY:
-                                    callback.peerDiscoveryEvent(packet);
-                                    break;
-                                case HEARTBEAT:
-                                    callback.heartbeatEvent(packet, tReceived);
-                                    break;
-                                case COMMAND:
-                                    // Handle acks here so they get back to sender quickly, then queue for
-                                    // internal processing. The queue allows command processing to take a
-                                    // long time w/o adversely affecting network responsiveness, which could
-                                    // otherwise lead to apparent disconnects.
-                                    Command command = new Command(packet.getData());
-                                    CallbackResult result = NetworkConnectionHandler.getInstance().processAcknowledgments(command);
-                                    if (!result.isHandled()) {
-                                        RobotLog.vv(RobocolDatagram.TAG, "received command: %s(%d) %s", command.getName(), command.getSequenceNumber(), command.getExtra());
-                                        commandsToProcess.addLast(command);
-                                    }
-                                    break;
-                                case TELEMETRY:
-                                    callback.telemetryEvent(packet);
-                                    break;
-                                case GAMEPAD:
-                                    callback.gamepadEvent(packet);
-                                    break;
-                                case EMPTY:
-                                    callback.emptyEvent(packet);
-                                    break;
-                                default:
-                                    RobotLog.ee(TAG, "Unhandled message type: " + packet.getMsgType().name());
-                                    break;
-                            }
-                        }
-                        double seconds = packetProcessingTimer.seconds();
-                        if (seconds > sProcessingTimerReportingThreshold) {
-                            RobotLog.vv(TAG, "packet processing took %.3f s: type=%s", seconds, packet.getMsgType().toString());
-                        }
-                    } catch (RobotCoreException | RuntimeException e) {
-                        RobotLog.ee(TAG, e, "exception in %s", Thread.currentThread().getName());
-                        callback.reportGlobalError(e.getMessage(), false);
-                    } finally {
-                        // proactively reclaim the receive buffer of the message (don't wait for GC)
-                        packet.close();
-                    }
+
+                    dispatchBatch(count, tReceived);
                 }
                 RobotLog.vv(TAG, "interrupted; %s returning", Thread.currentThread().getName());
             }
         });
     }
+
+    /**
+     * Returns the array into which batches are to be received
+     *
+     * @see #dispatchBatch(int, long)
+     */
+    public RobocolDatagram[] getBatch() {
+        return batch;
+    }
+
+    /**
+     * Runs the first count packets of the {@link #getBatch() batch} through the callback chain,
+     * then closes them.
+     *
+     * @param count     the number of packets in the batch
+     * @param tReceived the time sync time at which they were received
+     */
+    public void dispatchBatch(int count, long tReceived) {
+        if (callback instanceof RecvLoopBatchCallback) {
+            if (lastRecvPacket != null) lastRecvPacket.reset();
+            try {
+                if (((RecvLoopBatchCallback) callback).packetsReceived(batch, count) == CallbackResult.HANDLED) {
+                    closeBatch(count);
+                    return;
+                }
+            } catch (RobotCoreException | RuntimeException e) {
+                RobotLog.ee(TAG, e, "exception in %s", Thread.currentThread().getName());
+                callback.reportGlobalError(e.getMessage(), false);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            RobocolDatagram packet = batch[i];
+            batch[i] = null;
+            dispatch(packet, tReceived);
+        }
+    }
+
+    protected void closeBatch(int count) {
+        for (int i = 0; i < count; i++) {
+            batch[i].close();
+            batch[i] = null;
+        }
+    }
+
+    /**
+     * Runs a received packet through the callback chain, then closes it. Commands are queued for
+     * later processing rather than being processed here.
+     *
+     * @param packet    the packet that was received
+     * @param tReceived the time sync time at which it was received
+     * @see #processQueuedCommands()
+     */
+    public void dispatch(RobocolDatagram packet, long tReceived) {
+        if (lastRecvPacket != null) lastRecvPacket.reset();
+
+        try {
+            packetProcessingTimer.reset();
+            if (callback.packetReceived(packet) != CallbackResult.HANDLED) {
+
+                switch (packet.getMsgType()) {
+
+                    case PEER_DISCOVERY:
+                        callback.peerDiscoveryEvent(packet);
+                        break;
+                    case HEARTBEAT:
+                        // Round trip times are measured from heartbeats, so get this one to the
+                        // send rate controller before anyone else's processing can skew it
+                        heartbeatRecv.fromByteBuffer(packet.getByteBuffer(), 0, packet.getLength());
+                        connectionCallback.processHeartbeat(heartbeatRecv, tReceived);
+                        callback.heartbeatEvent(packet, tReceived);
+                        break;
+                    case COMMAND:
+                        // Handle acks here so they get back to sender quickly, then queue for
+                        // internal processing. The queue allows command processing to take a
+                        // long time w/o adversely affecting network responsiveness, which could
+                        // otherwise lead to apparent disconnects.
+                        Command command = new Command(packet.getByteBuffer(), 0, packet.getLength());
+                        CallbackResult result = connectionCallback.processAcknowledgments(command);
+                        if (!result.isHandled()) {
+                            RobotLog.vv(RobocolDatagram.TAG, "received command: %s(%d) %s", command.getName(), command.getSequenceNumber(), command.getExtra());
+                            commandsToProcess.addLast(command);
+                        }
+                        break;
+                    case TELEMETRY:
+                        callback.telemetryEvent(packet);
+                        break;
+                    case GAMEPAD:
+                        callback.gamepadEvent(packet);
+                        break;
+                    case EMPTY:
+                        callback.emptyEvent(packet);
+                        break;
+                    default:
+                        RobotLog.ee(TAG, "Unhandled message type: " + packet.getMsgType().name());
+                        break;
+                }
+            }
+            double seconds = packetProcessingTimer.seconds();
+            if (seconds > sProcessingTimerReportingThreshold) {
+                RobotLog.vv(TAG, "packet processing took %.3f s: type=%s", seconds, packet.getMsgType().toString());
+            }
+        } catch (RobotCoreException | RuntimeException e) {
+            RobotLog.ee(TAG, e, "exception in %s", Thread.currentThread().getName());
+            callback.reportGlobalError(e.getMessage(), false);
+        } finally {
+            // proactively reclaim the receive buffer of the message (don't wait for GC)
+            packet.close();
+        }
+    }
 }
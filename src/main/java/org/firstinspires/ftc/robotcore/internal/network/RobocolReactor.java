@@ -0,0 +1,247 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.RobocolDatagram;
+import com.qualcomm.robotcore.robocol.RobocolDatagramChannelSocket;
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link RobocolReactor} services any number of Robocol sessions with a fixed pair of threads.
+ * One thread waits on a Selector for every registered channel and runs received packets through
+ * each session's {@link RecvLoopRunnable#dispatch dispatch}; the other is a shared scheduler that
+ * runs send ticks, peer discovery and queued command processing for all sessions. Thread count
+ * thus stays flat no matter how many robots are connected.
+ * <p>
+ * Sessions must use a {@link RobocolDatagramChannelSocket}.
+ *
+ * @see com.qualcomm.robotcore.robocol.RobocolConfig#useReactor
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolReactor {
+
+    //----------------------------------------------------------------------------------------------
+    // Static State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobocolReactor";
+    private static final boolean DEBUG = false;
+
+    // Max packets we'll take from one session per wakeup before giving the others a turn
+    public static final int MAX_PACKETS_PER_WAKEUP = 64;
+
+    private static RobocolReactor theInstance = null;
+
+    public synchronized static RobocolReactor getInstance() {
+        if (theInstance == null) {
+            theInstance = new RobocolReactor();
+        }
+        return theInstance;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * A {@link Session} is one socket's worth of reception state registered with the reactor
+     */
+    public class Session {
+        protected final RobocolDatagramChannelSocket socket;
+        protected final RecvLoopRunnable recvLoopRunnable;
+        protected final AtomicBoolean commandProcessingScheduled = new AtomicBoolean(false);
+        protected volatile SelectionKey key = null;
+        protected volatile boolean closed = false;
+
+        protected final Runnable commandProcessor = new Runnable() {
+            @Override
+            public void run() {
+                commandProcessingScheduled.set(false);
+                recvLoopRunnable.processQueuedCommands();
+            }
+        };
+
+        protected Session(RobocolDatagramChannelSocket socket, RecvLoopRunnable recvLoopRunnable) {
+            this.socket = socket;
+            this.recvLoopRunnable = recvLoopRunnable;
+        }
+
+        public RecvLoopRunnable getRecvLoopRunnable() {
+            return recvLoopRunnable;
+        }
+
+        /**
+         * Returns the scheduler on which this session's timers (send loop, discovery) should run
+         */
+        public ScheduledExecutorService getScheduler() {
+            return scheduler;
+        }
+
+        /**
+         * Queues a command as if it had been received, and sees to it that it gets processed
+         */
+        public void injectReceivedCommand(Command cmd) {
+            recvLoopRunnable.injectReceivedCommand(cmd);
+            scheduleCommandProcessing();
+        }
+
+        /**
+         * Stops servicing this session. The socket itself is left for the caller to close.
+         */
+        public void close() {
+            closed = true;
+            SelectionKey key = this.key;
+            if (key != null) key.cancel();
+            selector.wakeup();
+        }
+
+        protected void drain() {
+            long tReceived = Heartbeat.getMsTimeSyncTime();
+            RobocolDatagram[] batch = recvLoopRunnable.getBatch();
+            int total = 0;
+            while (total < MAX_PACKETS_PER_WAKEUP) {
+                int count = socket.recvNow(batch, 0, batch.length);
+                if (count == 0) break;
+                recvLoopRunnable.dispatchBatch(count, tReceived);
+                total += count;
+                if (count < batch.length) break;
+            }
+            scheduleCommandProcessing();
+        }
+
+        protected void scheduleCommandProcessing() {
+            if (recvLoopRunnable.hasQueuedCommands() && commandProcessingScheduled.compareAndSet(false, true)) {
+                scheduler.execute(commandProcessor);
+            }
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final Selector selector;
+    protected final ExecutorService selectorService;
+    protected final ScheduledExecutorService scheduler;
+    protected final Queue<Session> pendingRegistrations = new ConcurrentLinkedQueue<Session>();
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    protected RobocolReactor() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("unable to open selector", e);
+        }
+        scheduler = ThreadPool.newScheduledExecutor(1, "robocol scheduler");
+        selectorService = ThreadPool.newSingleThreadExecutor("robocol reactor");
+        selectorService.execute(new SelectLoop());
+        RobotLog.vv(TAG, "RobocolReactor created");
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a bound socket with the reactor. Received packets will be dispatched to the
+     * indicated callback exactly as a dedicated {@link RecvLoopRunnable} thread would have.
+     *
+     * @param socket         a bound, and usually connected, channel socket
+     * @param callback       the callback to dispatch to
+     * @param lastRecvPacket reset whenever a packet is received
+     * @return the new session
+     */
+    public Session register(@NotNull RobocolDatagramChannelSocket socket, RecvLoopRunnable.RecvLoopCallback callback, @NotNull ElapsedTime lastRecvPacket) {
+        return register(socket, callback, NetworkConnectionHandler.getInstance(), lastRecvPacket);
+    }
+
+    /**
+     * As {@link #register(RobocolDatagramChannelSocket, RecvLoopRunnable.RecvLoopCallback, ElapsedTime)},
+     * but for a session whose heartbeats and acks go to a connection other than the
+     * {@link NetworkConnectionHandler}'s
+     */
+    public Session register(@NotNull RobocolDatagramChannelSocket socket, RecvLoopRunnable.RecvLoopCallback callback,
+                            @NotNull RecvLoopRunnable.ConnectionCallback connectionCallback, @NotNull ElapsedTime lastRecvPacket) {
+        Session session = new Session(socket, new RecvLoopRunnable(callback, connectionCallback, socket, lastRecvPacket));
+        // Registering with a selector that is blocked in select() would block us too, so we
+        // let the selector thread do it
+        pendingRegistrations.add(session);
+        selector.wakeup();
+        return session;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    protected void processPendingRegistrations() {
+        Session session;
+        while ((session = pendingRegistrations.poll()) != null) {
+            if (session.closed) continue;
+            DatagramChannel channel = session.socket.getChannel();
+            if (channel == null) {
+                RobotLog.ee(TAG, "session socket isn't bound; ignored");
+                continue;
+            }
+            try {
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                if (DEBUG) RobotLog.vv(TAG, "registered session local=%s", session.socket.getLocalAddress());
+            } catch (ClosedChannelException e) {
+                RobotLog.ww(TAG, "session socket closed before registration; ignored");
+            }
+        }
+    }
+
+    protected class SelectLoop implements Runnable {
+        @Override
+        public void run() {
+            ThreadPool.logThreadLifeCycle("RobocolReactor.SelectLoop", new Runnable() {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        try {
+                            selector.select();
+                        } catch (IOException e) {
+                            RobotLog.ee(TAG, e, "select() failed; reactor exiting");
+                            return;
+                        }
+
+                        processPendingRegistrations();
+
+                        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                        while (iterator.hasNext()) {
+                            SelectionKey key = iterator.next();
+                            iterator.remove();
+                            Session session = (Session) key.attachment();
+                            if (!key.isValid() || session.closed) continue;
+                            try {
+                                session.drain();
+                            } catch (RuntimeException e) {
+                                RobotLog.ee(TAG, e, "exception servicing session");
+                            }
+                        }
+                    }
+                    RobotLog.vv(TAG, "interrupted; %s returning", Thread.currentThread().getName());
+                }
+            });
+        }
+    }
+}
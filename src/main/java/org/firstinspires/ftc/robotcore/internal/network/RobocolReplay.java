@@ -0,0 +1,213 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.LoopbackTransport;
+import com.qualcomm.robotcore.robocol.RobocolCaptureReader;
+import com.qualcomm.robotcore.robocol.RobocolDatagram;
+import com.qualcomm.robotcore.robocol.RobocolParsable;
+import com.qualcomm.robotcore.robocol.RobocolRecorder;
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link RobocolReplay} plays a capture made by a {@link RobocolRecorder} back through the very
+ * same dispatch path, {@link RecvLoopRunnable#dispatch}, that live traffic takes, and on into
+ * whatever callback it's given: ordinarily {@link NetworkConnectionHandler#getReceiveLoopCallback()
+ * the chain the NetworkConnectionHandler installs}. Commands are processed as they're dispatched,
+ * rather than on a thread of their own, so a replay is repeatable.
+ * <p>
+ * Replay either keeps to the capture's original timing, for reproducing what happened in a
+ * match, or goes as fast as it can, for measuring how fast we process what we receive. Either
+ * way, a {@link Report} of throughput and of processing time by message type comes out at the end.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolReplay {
+
+    //----------------------------------------------------------------------------------------------
+    // Types
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobocolReplay";
+
+    public enum Mode {
+        ORIGINAL_TIMING,    /// packets are dispatched as far apart as they were received
+        MAX_SPEED           /// packets are dispatched back to back
+    }
+
+    /**
+     * What a replay did, and how long it took about it
+     */
+    public static class Report {
+        protected static final RobocolParsable.MsgType[] MSG_TYPES = RobocolParsable.MsgType.values();
+
+        protected long packets;
+        protected long bytes;
+        protected long nanosElapsed;
+        protected final long[] packetsByType = new long[MSG_TYPES.length];
+        protected final long[] nanosByType = new long[MSG_TYPES.length];
+
+        public long getPackets() {
+            return packets;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getSecondsElapsed() {
+            return nanosElapsed / (double) ElapsedTime.SECOND_IN_NANO;
+        }
+
+        public double getPacketsPerSecond() {
+            return nanosElapsed == 0 ? 0 : packets / getSecondsElapsed();
+        }
+
+        public long getPackets(RobocolParsable.MsgType msgType) {
+            return packetsByType[msgType.ordinal()];
+        }
+
+        /**
+         * @return the mean time spent dispatching a packet of the indicated type, in microseconds
+         */
+        public double getMeanProcessingMicros(RobocolParsable.MsgType msgType) {
+            long count = packetsByType[msgType.ordinal()];
+            return count == 0 ? 0 : nanosByType[msgType.ordinal()] / 1000.0 / count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append(String.format(Locale.US, "RobocolReplay - packets:%d, bytes:%d, seconds:%.3f, packets/sec:%.0f",
+                    packets, bytes, getSecondsElapsed(), getPacketsPerSecond()));
+            for (RobocolParsable.MsgType msgType : MSG_TYPES) {
+                if (packetsByType[msgType.ordinal()] == 0) continue;
+                result.append(String.format(Locale.US, "%n    %-14s packets:%d, mean:%.2f us",
+                        msgType, getPackets(msgType), getMeanProcessingMicros(msgType)));
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Stands in for the live connection during a replay: heartbeats are ignored, and commands are
+     * neither acked nor matched against those we have outstanding. Acks are consumed, as the
+     * connection would have; other commands go on to be processed.
+     */
+    protected static class ReplayConnectionCallback implements RecvLoopRunnable.ConnectionCallback {
+        @Override
+        public void processHeartbeat(Heartbeat heartbeat, long tReceived) {
+        }
+
+        @Override
+        public CallbackResult processAcknowledgments(Command command) {
+            return command.isAcknowledged() ? CallbackResult.HANDLED : CallbackResult.NOT_HANDLED;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final RobocolCaptureReader reader;
+    protected final RecvLoopRunnable recvLoopRunnable;
+    protected final Mode mode;
+    protected boolean replaySent = false;
+    protected boolean replayReceived = true;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * @param reader   the capture to replay
+     * @param callback the callback to dispatch to
+     * @param mode     how to pace the replay
+     */
+    public RobocolReplay(@NotNull RobocolCaptureReader reader, @NotNull RecvLoopRunnable.RecvLoopCallback callback, @NotNull Mode mode) {
+        this.reader = reader;
+        this.mode = mode;
+        // We only ever dispatch, so the receive loop's socket is never used; an unbound one will do.
+        // The connection mustn't see what we replay, lest it ack to, or time its link by, the past.
+        this.recvLoopRunnable = new RecvLoopRunnable(callback, new ReplayConnectionCallback(), new LoopbackTransport(), new ElapsedTime());
+    }
+
+    /**
+     * Selects which of the captured datagrams to replay. By default, that's just those that were
+     * received, as those are what went through dispatch in the first place.
+     */
+    public void setDirections(boolean replaySent, boolean replayReceived) {
+        this.replaySent = replaySent;
+        this.replayReceived = replayReceived;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Replays the capture on the calling thread, stopping early if it's interrupted
+     *
+     * @return what was replayed, and how long it took
+     */
+    public Report run() throws IOException {
+        Report report = new Report();
+        long nanotimeStart = System.nanoTime();
+        long nanotimeAnchor = nanotimeStart;    // when we replay the packet captured at nanotimeCaptureStart
+        long nanotimeCaptureStart = 0;
+        long nanotimeCapturePrevious = 0;
+        boolean first = true;
+
+        while (!Thread.currentThread().isInterrupted() && reader.next()) {
+            boolean sent = reader.getDirection() == RobocolRecorder.DIRECTION_SEND;
+            if (sent ? !replaySent : !replayReceived) continue;
+
+            if (mode == Mode.ORIGINAL_TIMING) {
+                long nanotimeCapture = reader.getNanotime();
+                if (first || nanotimeCapture < nanotimeCapturePrevious) {
+                    // the start of the capture, or of another recording within it: go from here
+                    nanotimeCaptureStart = nanotimeCapture;
+                    nanotimeAnchor = System.nanoTime();
+                }
+                nanotimeCapturePrevious = nanotimeCapture;
+                waitUntil(nanotimeAnchor + (nanotimeCapture - nanotimeCaptureStart));
+            }
+            first = false;
+
+            // Copy the datagram into a receive buffer, just as a socket would have
+            int length = reader.getLength();
+            RobocolParsable.MsgType msgType = reader.getMsgType();
+            RobocolDatagram packet = RobocolDatagram.forReceive(length);
+            reader.copyTo(packet.getData(), 0);
+            packet.setData(packet.getData(), length);
+            packet.setAddress(reader.getPeer());
+
+            long nanotimeDispatch = System.nanoTime();
+            recvLoopRunnable.dispatch(packet, Heartbeat.getMsTimeSyncTime());
+            recvLoopRunnable.processQueuedCommands();
+            long nanotimeDone = System.nanoTime();
+
+            report.packets++;
+            report.bytes += length;
+            report.packetsByType[msgType.ordinal()]++;
+            report.nanosByType[msgType.ordinal()] += nanotimeDone - nanotimeDispatch;
+            report.nanosElapsed = nanotimeDone - nanotimeStart;
+        }
+
+        RobotLog.vv(TAG, "%s", report);
+        return report;
+    }
+
+    protected static void waitUntil(long nanotimeDue) {
+        for (; ; ) {
+            long nanosRemaining = nanotimeDue - System.nanoTime();
+            if (nanosRemaining <= 0 || Thread.currentThread().isInterrupted()) return;
+            LockSupport.parkNanos(nanosRemaining);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import com.qualcomm.robotcore.hardware.Gamepad;
+import com.qualcomm.robotcore.robocol.Command;
+import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.PeerDiscovery;
+import com.qualcomm.robotcore.robocol.PeerDiscoveryManager;
+import com.qualcomm.robotcore.robocol.RobocolConfig;
+import com.qualcomm.robotcore.robocol.RobocolDatagram;
+import com.qualcomm.robotcore.robocol.RobocolDatagramChannelSocket;
+import com.qualcomm.robotcore.robocol.RobocolTransport;
+import com.qualcomm.robotcore.robocol.SharedRobocolSocket;
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link RobocolSession} is one connection to one robot controller. It does for its robot what
+ * the {@link NetworkConnectionHandler} does for the one robot it knows about, but with nothing
+ * static about it, so that a {@link RobocolSessionManager} can run any number of them side by
+ * side. Each session has its own socket, sequence space, pending commands and callback chain.
+ * <p>
+ * What a session doesn't have is threads. Its send ticks, peer discovery and command processing
+ * all run on the manager's shared scheduler, and if its socket is a
+ * {@link RobocolDatagramChannelSocket}, the {@link RobocolReactor} receives for it too. Other
+ * kinds of socket can't be waited on by the reactor, and so get a receive thread of their own.
+ * If the manager has a {@link SharedRobocolSocket}, though, sessions have no sockets of their
+ * own at all, just a peer of the shared one, whose receive thread dispatches for everyone.
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolSession implements Gamepad.GamepadCallback, RecvLoopRunnable.ConnectionCallback {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobocolSession";
+
+    public static final int MS_SEND_INTERVAL = 40;
+
+    protected final RobocolSessionManager manager;
+    protected final InetAddress rcAddr;
+    protected final @Nullable InetSocketAddress bindAddress;
+    protected final SendOnceRunnable.Parameters parameters;
+    protected final @Nullable SendOnceRunnable.ClientCallback clientCallback;
+    protected final ScheduledExecutorService scheduler;
+    protected final AtomicInteger sequenceNumbers = new AtomicInteger(0);
+    protected final ElapsedTime lastRecvPacket = new ElapsedTime();
+    protected final ElapsedTime sinceOpened = new ElapsedTime();
+    protected final SessionCallback theRecvLoopCallback = new SessionCallback();
+    protected final AtomicBoolean commandProcessingScheduled = new AtomicBoolean(false);
+    protected final Runnable commandProcessor = new Runnable() {
+        @Override
+        public void run() {
+            commandProcessingScheduled.set(false);
+            recvLoopRunnable.processQueuedCommands();
+        }
+    };
+
+    protected RobocolTransport socket;
+    protected RecvLoopRunnable recvLoopRunnable;
+    protected SendOnceRunnable sendOnceRunnable;
+    protected volatile @Nullable RobocolReactor.Session reactorSession = null;
+    protected @Nullable ExecutorService recvLoopService = null;
+    protected @Nullable PeerDiscoveryManager peerDiscoveryManager = null;
+    protected @Nullable Future<?> sendLoopFuture = null;
+    protected boolean closed = false;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Sessions are made by {@link RobocolSessionManager#open}
+     */
+    protected RobocolSession(@NotNull RobocolSessionManager manager,
+                             @NotNull InetAddress rcAddr,
+                             @Nullable InetSocketAddress bindAddress,
+                             @Nullable SendOnceRunnable.Parameters parameters,
+                             @Nullable SendOnceRunnable.ClientCallback clientCallback) {
+        this.manager = manager;
+        this.rcAddr = rcAddr;
+        this.bindAddress = bindAddress;
+        // a copy, as the same parameters are commonly used for every session
+        this.parameters = parameters == null ? new SendOnceRunnable.Parameters() : new SendOnceRunnable.Parameters(parameters);
+        this.parameters.sequenceNumbers = sequenceNumbers;
+        this.clientCallback = clientCallback;
+        this.scheduler = manager.getScheduler();
+    }
+
+    /**
+     * Binds and connects our socket, and starts looking for our robot controller. We start
+     * sending once it answers.
+     */
+    protected synchronized void open() throws SocketException {
+        SharedRobocolSocket sharedSocket = manager.getSharedSocket();
+        if (sharedSocket != null) {
+            // The shared socket's one receive thread queues what's ours, and we dispatch it there and then
+            SharedRobocolSocket.Peer peer = sharedSocket.openPeer(rcAddr);
+            socket = peer;
+            recvLoopRunnable = new RecvLoopRunnable(theRecvLoopCallback, this, socket, lastRecvPacket);
+            peer.setListener(new SharedSocketListener());
+        } else {
+            socket = RobocolConfig.newDatagramSocket();
+            try {
+                if (bindAddress != null) {
+                    socket.bind(bindAddress);
+                } else {
+                    socket.listenUsingDestination(rcAddr);
+                }
+                socket.connect(rcAddr);
+            } catch (SocketException e) {
+                socket.close();
+                throw e;
+            }
+
+            if (socket instanceof RobocolDatagramChannelSocket) {
+                reactorSession = RobocolReactor.getInstance().register((RobocolDatagramChannelSocket) socket, theRecvLoopCallback, this, lastRecvPacket);
+                recvLoopRunnable = reactorSession.getRecvLoopRunnable();
+            } else {
+                recvLoopRunnable = new RecvLoopRunnable(theRecvLoopCallback, this, socket, lastRecvPacket);
+                recvLoopService = ThreadPool.newFixedThreadPool(2, "robocol session " + rcAddr.getHostAddress());
+                recvLoopService.execute(recvLoopRunnable.new CommandProcessor());
+                recvLoopService.execute(recvLoopRunnable);
+            }
+        }
+
+        sendOnceRunnable = new SendOnceRunnable(new SessionClientCallback(), socket, lastRecvPacket, parameters, scheduler);
+        sinceOpened.reset();
+        peerDiscoveryManager = new PeerDiscoveryManager(socket, rcAddr, scheduler);
+        RobotLog.vv(TAG, "session opened: rc=%s local=%s", rcAddr.getHostAddress(), socket.getLocalAddress());
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public InetAddress getRcAddress() {
+        return rcAddr;
+    }
+
+    public RobocolTransport getSocket() {
+        return socket;
+    }
+
+    public SendRateController getSendRateController() {
+        return sendOnceRunnable.getSendRateController();
+    }
+
+    /**
+     * @return whether our robot controller has answered us, and been heard from lately
+     */
+    public synchronized boolean isConnected() {
+        return sendLoopFuture != null && lastRecvPacket.seconds() <= SendOnceRunnable.ASSUME_DISCONNECT_TIMER;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    public void sendCommand(Command cmd) {
+        sendOnceRunnable.sendCommand(cmd);
+    }
+
+    public boolean removeCommand(Command cmd) {
+        return sendOnceRunnable.removeCommand(cmd);
+    }
+
+    public void sendReply(Command commandRequest, Command commandResponse) {
+        if (!commandRequest.isInjected()) {
+            sendCommand(commandResponse);
+        } else {
+            injectReceivedCommand(commandResponse);
+        }
+    }
+
+    /**
+     * Inject the indicated command into this session's reception as if it had been transmitted remotely
+     */
+    public void injectReceivedCommand(Command cmd) {
+        cmd.setIsInjected(true);
+        RobocolReactor.Session reactorSession = this.reactorSession;
+        if (reactorSession != null) {
+            reactorSession.injectReceivedCommand(cmd);
+        } else {
+            recvLoopRunnable.injectReceivedCommand(cmd);
+            if (socket instanceof SharedRobocolSocket.Peer) scheduleCommandProcessing();
+        }
+    }
+
+    public void sendDatagram(RobocolDatagram datagram) {
+        if (socket.getInetAddress() != null) socket.send(datagram);
+    }
+
+    @Override
+    public void gamepadChanged(Gamepad gamepad) {
+        sendOnceRunnable.onGamepadChanged(gamepad);
+    }
+
+    public void pushReceiveLoopCallback(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
+        theRecvLoopCallback.push(callback);
+    }
+
+    public void removeReceiveLoopCallback(@Nullable RecvLoopRunnable.RecvLoopCallback callback) {
+        theRecvLoopCallback.remove(callback);
+    }
+
+    /**
+     * Stops the session and closes its socket. The shared threads carry on servicing the others.
+     */
+    public void close() {
+        ExecutorService recvLoopService;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+
+            if (sendLoopFuture != null) {
+                sendLoopFuture.cancel(false); // the scheduler is shared, so mustn't be interrupted
+                sendLoopFuture = null;
+            }
+            if (peerDiscoveryManager != null) {
+                peerDiscoveryManager.stop();
+                peerDiscoveryManager = null;
+            }
+            if (reactorSession != null) {
+                reactorSession.close();
+                reactorSession = null;
+            }
+            recvLoopService = this.recvLoopService;
+            this.recvLoopService = null;
+        }
+
+        // Not while synchronized: the receive thread may be waiting on us in onPeerDiscovered()
+        if (recvLoopService != null) {
+            recvLoopService.shutdownNow();
+            ThreadPool.awaitTerminationOrExitApplication(recvLoopService, 5, TimeUnit.SECONDS, "RobocolSession", "internal error");
+        }
+        if (sendOnceRunnable != null) sendOnceRunnable.clearCommands();
+        if (socket != null) socket.close();
+        RobotLog.vv(TAG, "session closed: rc=%s", rcAddr.getHostAddress());
+
+        manager.onClosed(this);
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Connection
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Our robot controller has answered our peer discovery. The first time, that's our cue to
+     * start sending; thereafter it's just a sign of life.
+     */
+    protected synchronized void onPeerDiscovered(RobocolDatagram packet) throws RobotCoreException {
+        if (closed) return;
+
+        boolean peerLikelyChanged = sendLoopFuture == null;
+        if (peerLikelyChanged) {
+            // Actually parse the packet in order to verify Robocol version compatibility
+            PeerDiscovery peerDiscovery = PeerDiscovery.forReceive();
+            peerDiscovery.fromByteBuffer(packet.getByteBuffer(), 0, packet.getLength());
+
+            RobotLog.vv(TAG, "robot controller %s answered after %.1f ms; starting to send", rcAddr.getHostAddress(), sinceOpened.milliseconds());
+            sendLoopFuture = scheduler.scheduleAtFixedRate(sendOnceRunnable, 0, MS_SEND_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        if (peerDiscoveryManager != null) peerDiscoveryManager.onPeerFound();
+        sendOnceRunnable.onPeerConnected(peerLikelyChanged);
+        if (clientCallback != null) clientCallback.peerConnected(peerLikelyChanged);
+    }
+
+    /**
+     * We've not heard from our robot controller in a while. Peer discovery goes back to its fast
+     * start so that we find it again as soon as it's back.
+     */
+    protected synchronized void onPeerLost() {
+        if (peerDiscoveryManager != null) peerDiscoveryManager.onPeerLost();
+    }
+
+    /**
+     * Sits between our send side and our client, so that we too hear of disconnection
+     */
+    protected class SessionClientCallback implements SendOnceRunnable.ClientCallback {
+        @Override
+        public void peerConnected(boolean peerLikelyChanged) {
+            if (clientCallback != null) clientCallback.peerConnected(peerLikelyChanged);
+        }
+
+        @Override
+        public void peerDisconnected() {
+            onPeerLost();
+            if (clientCallback != null) clientCallback.peerDisconnected();
+        }
+    }
+
+    @Override
+    public void processHeartbeat(Heartbeat heartbeat, long tReceived) {
+        sendOnceRunnable.getSendRateController().onHeartbeatEchoed(heartbeat, tReceived);
+    }
+
+    @Override
+    public CallbackResult processAcknowledgments(Command command) throws RobotCoreException {
+        if (command.isAcknowledged()) {
+            if (SendOnceRunnable.DEBUG)
+                RobotLog.vv(SendOnceRunnable.TAG, "received ack: %s(%d) rc=%s", command.getName(), command.getSequenceNumber(), rcAddr.getHostAddress());
+            removeCommand(command);
+            return CallbackResult.HANDLED;
+        }
+        command.acknowledge();
+        sendCommand(command);
+        return CallbackResult.NOT_HANDLED;
+    }
+
+    /**
+     * Dispatches what the shared socket has queued for us, on its receive thread. Commands are
+     * processed on the shared scheduler instead, so that a slow one holds up no one's reception.
+     */
+    protected class SharedSocketListener implements SharedRobocolSocket.Listener {
+        @Override
+        public void onDatagramsQueued(SharedRobocolSocket.Peer peer) {
+            long tReceived = Heartbeat.getMsTimeSyncTime();
+            RobocolDatagram[] batch = recvLoopRunnable.getBatch();
+            int count;
+            while ((count = peer.recvNow(batch, 0, batch.length)) > 0) {
+                recvLoopRunnable.dispatchBatch(count, tReceived);
+            }
+            scheduleCommandProcessing();
+        }
+    }
+
+    protected void scheduleCommandProcessing() {
+        if (recvLoopRunnable.hasQueuedCommands() && commandProcessingScheduled.compareAndSet(false, true)) {
+            scheduler.execute(commandProcessor);
+        }
+    }
+
+    /**
+     * Our own link in the receive chain: we see peer discovery before anyone else does
+     */
+    protected class SessionCallback extends RecvLoopCallbackChainer {
+        @Override
+        public CallbackResult peerDiscoveryEvent(RobocolDatagram packet) throws RobotCoreException {
+            onPeerDiscovered(packet);
+            return super.peerDiscoveryEvent(packet);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RobocolSession - rc:%s connected:%s", rcAddr.getHostAddress(), isConnected());
+    }
+}
@@ -0,0 +1,132 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.robocol.SharedRobocolSocket;
+import com.qualcomm.robotcore.util.RobotLog;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * {@link RobocolSessionManager} holds any number of independent {@link RobocolSession}s, one per
+ * robot controller, for the driver station that watches over, and commands, several robots at
+ * once. The sessions all share the {@link RobocolReactor}'s scheduler and, where their sockets
+ * allow, its receive thread; received datagrams come from, and are returned to, the one shared
+ * buffer pool. A session thus costs little more than its socket and a few small objects.
+ * <p>
+ * This is independent of the {@link NetworkConnectionHandler}, which carries on looking after the
+ * one robot the rest of the app knows about.
+ *
+ * @see SharedRobocolSocket
+ */
+@SuppressWarnings("WeakerAccess")
+public class RobocolSessionManager {
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "RobocolSessionManager";
+
+    protected final ConcurrentHashMap<InetAddress, RobocolSession> sessions = new ConcurrentHashMap<InetAddress, RobocolSession>();
+    protected final ScheduledExecutorService scheduler;
+    protected final @Nullable SharedRobocolSocket sharedSocket;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public RobocolSessionManager() {
+        this(null);
+    }
+
+    /**
+     * @param sharedSocket if non-null, a bound shared socket through which all our sessions are to
+     *                     talk, rather than each binding a socket of its own
+     */
+    public RobocolSessionManager(@Nullable SharedRobocolSocket sharedSocket) {
+        this.scheduler = RobocolReactor.getInstance().getScheduler();
+        this.sharedSocket = sharedSocket;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Sessions
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Opens a session with the indicated robot controller, listening on the local address from
+     * which it's reachable
+     */
+    public RobocolSession open(@NotNull InetAddress rcAddr) throws SocketException {
+        return open(rcAddr, null, null, null);
+    }
+
+    /**
+     * Opens a session with the indicated robot controller
+     *
+     * @param rcAddr         the robot controller
+     * @param bindAddress    where to listen; if null, on the Robocol port of the local address from
+     *                       which the robot controller is reachable. Unused with a shared socket.
+     * @param parameters     how the session's send side is to behave; copied, so may be shared
+     * @param clientCallback told when the robot controller comes and goes
+     * @return the new session
+     * @throws IllegalStateException if there's already a session with that robot controller
+     */
+    public RobocolSession open(@NotNull InetAddress rcAddr,
+                               @Nullable InetSocketAddress bindAddress,
+                               @Nullable SendOnceRunnable.Parameters parameters,
+                               @Nullable SendOnceRunnable.ClientCallback clientCallback) throws SocketException {
+        RobocolSession session = new RobocolSession(this, rcAddr, bindAddress, parameters, clientCallback);
+        if (sessions.putIfAbsent(rcAddr, session) != null) {
+            throw new IllegalStateException("already a session with " + rcAddr.getHostAddress());
+        }
+        try {
+            session.open();
+        } catch (SocketException | RuntimeException e) {
+            sessions.remove(rcAddr, session);
+            throw e;
+        }
+        RobotLog.vv(TAG, "%d sessions", sessions.size());
+        return session;
+    }
+
+    public @Nullable RobocolSession getSession(InetAddress rcAddr) {
+        return sessions.get(rcAddr);
+    }
+
+    public Collection<RobocolSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public @Nullable SharedRobocolSocket getSharedSocket() {
+        return sharedSocket;
+    }
+
+    /**
+     * Closes every session. A shared socket is left for its owner to close.
+     */
+    public void shutdown() {
+        for (RobocolSession session : new ArrayList<RobocolSession>(sessions.values())) {
+            session.close();
+        }
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    void onClosed(RobocolSession session) {
+        sessions.remove(session.getRcAddress(), session);
+    }
+}
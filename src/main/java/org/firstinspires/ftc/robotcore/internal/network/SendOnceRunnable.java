@@ -1,10 +1,13 @@
 package org.firstinspires.ftc.robotcore.internal.network;
 
+import com.qualcomm.robotcore.exception.RobotCoreException;
 import com.qualcomm.robotcore.hardware.Gamepad;
 import com.qualcomm.robotcore.robocol.Command;
 import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.robocol.RobocolConfig;
 import com.qualcomm.robotcore.robocol.RobocolDatagram;
-import com.qualcomm.robotcore.robocol.RobocolDatagramSocket;
+import com.qualcomm.robotcore.robocol.RobocolParsable;
+import com.qualcomm.robotcore.robocol.RobocolTransport;
 import com.qualcomm.robotcore.util.ElapsedTime;
 import com.qualcomm.robotcore.util.RobotLog;
 
@@ -13,9 +16,15 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.openftc.app.MyApp;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings("WeakerAccess")
 public class SendOnceRunnable implements Runnable {
@@ -47,6 +56,14 @@ public class SendOnceRunnable implements Runnable {
         // Modified for Desktop: We know we're the DS, so we originate heartbeats.
         public boolean originateHeartbeats = true;
         public RobotCoreGamepadManager gamepadManager = null;
+        // If true, a gamepad that reports a change through its GamepadCallback is sent straightaway
+        // rather than at the next tick, though never more often than msMinGamepadSendInterval
+        public boolean sendGamepadsOnChange = true;
+        public long msMinGamepadSendInterval = MS_MIN_GAMEPAD_SEND_INTERVAL;
+        // If true, retransmission timeouts and send intervals adapt to measured round trip times
+        public boolean adaptSendRate = true;
+        // If non-null, what we send is numbered from this sequence space rather than the shared one
+        public AtomicInteger sequenceNumbers = null;
 
         public Parameters() {
         }
@@ -54,6 +71,16 @@ public class SendOnceRunnable implements Runnable {
         public Parameters(RobotCoreGamepadManager gamepadManager) {
             this.gamepadManager = gamepadManager;
         }
+
+        public Parameters(Parameters them) {
+            this.disconnectOnTimeout = them.disconnectOnTimeout;
+            this.originateHeartbeats = them.originateHeartbeats;
+            this.gamepadManager = them.gamepadManager;
+            this.sendGamepadsOnChange = them.sendGamepadsOnChange;
+            this.msMinGamepadSendInterval = them.msMinGamepadSendInterval;
+            this.adaptSendRate = them.adaptSendRate;
+            this.sequenceNumbers = them.sequenceNumbers;
+        }
     }
 
     //----------------------------------------------------------------------------------------------
@@ -67,29 +94,72 @@ public class SendOnceRunnable implements Runnable {
     public static final int MAX_COMMAND_ATTEMPTS = 10;
     public static final long GAMEPAD_UPDATE_THRESHOLD = 1000; // in milliseconds
     public static final int MS_HEARTBEAT_TRANSMISSION_INTERVAL = 100;
+    public static final long MS_MIN_GAMEPAD_SEND_INTERVAL = 10;
 
     protected ElapsedTime lastRecvPacket;
     protected List<Command> pendingCommands = new CopyOnWriteArrayList<Command>();
+    protected final Queue<Command> pendingAcks = new ConcurrentLinkedQueue<Command>();
+    protected volatile @Nullable PrioritySendLoop sendLoop = null;
+    protected final SendRateController sendRateController;
     protected Heartbeat heartbeatSend = new Heartbeat();
-    protected RobocolDatagramSocket socket;
+    protected RobocolTransport socket;
     protected ClientCallback clientCallback;
     protected final Parameters parameters;
     protected final Object issuedDisconnectLogMessageLock = new Object();
     protected boolean issuedDisconnectLogMessage;
 
+    // Everything we send is serialized into the same scratch array and sent from the same
+    // datagram, so that in the steady state a send tick doesn't allocate
+    protected final byte[] sendScratch = new byte[RobocolConfig.MAX_MAX_PACKET_SIZE];
+    protected final ByteBuffer sendScratchBuffer = ByteBuffer.wrap(sendScratch);
+    protected final RobocolDatagram sendScratchDatagram = new RobocolDatagram(sendScratch);
+    protected final Object sendLock = new Object();  // guards the scratch: gamepad changes send from other threads
+
+    // Gamepads that changed too soon after the last change-driven send, awaiting a deferred one
+    protected final @Nullable ScheduledExecutorService scheduler;
+    protected final Object gamepadSendLock = new Object();
+    protected final List<Gamepad> gamepadsPendingSend = new ArrayList<Gamepad>(4);
+    protected long nanotimeLastGamepadSend;
+    protected boolean gamepadSendScheduled = false;
+    protected final Runnable pendingGamepadSender = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (gamepadSendLock) {
+                gamepadSendScheduled = false;
+                sendPendingGamepads(System.nanoTime());
+            }
+        }
+    };
+
     //----------------------------------------------------------------------------------------------
     // Construction
     //----------------------------------------------------------------------------------------------
 
     public SendOnceRunnable(@Nullable ClientCallback clientCallback,
-                            @NotNull RobocolDatagramSocket socket,
+                            @NotNull RobocolTransport socket,
                             @Nullable ElapsedTime lastRecvPacket,
                             @NotNull Parameters parameters) {
+        this(clientCallback, socket, lastRecvPacket, parameters, null);
+    }
+
+    /**
+     * @param scheduler if non-null, where gamepad changes held back by
+     *                  {@link Parameters#msMinGamepadSendInterval} are sent once the interval is up;
+     *                  if null, they wait for the next tick
+     */
+    public SendOnceRunnable(@Nullable ClientCallback clientCallback,
+                            @NotNull RobocolTransport socket,
+                            @Nullable ElapsedTime lastRecvPacket,
+                            @NotNull Parameters parameters,
+                            @Nullable ScheduledExecutorService scheduler) {
         this.clientCallback = clientCallback;
         this.socket = socket;
         this.lastRecvPacket = lastRecvPacket;
         this.parameters = parameters;
+        this.scheduler = scheduler;
+        this.sendRateController = new SendRateController(parameters.adaptSendRate);
         this.issuedDisconnectLogMessage = false;
+        this.nanotimeLastGamepadSend = System.nanoTime() - parameters.msMinGamepadSendInterval * ElapsedTime.MILLIS_IN_NANO;
 
         RobotLog.vv(TAG, "SendOnceRunnable created");
     }
@@ -107,13 +177,58 @@ public class SendOnceRunnable implements Runnable {
         }
     }
 
+    /**
+     * Does one complete pass over all the lanes, in priority order. This is how we're driven when
+     * we're on a shared fixed-rate scheduler; the {@link PrioritySendLoop} instead paces each lane
+     * separately.
+     */
     @Override
     public void run() {
         try {
-            // skip if we haven't received a packet in a while. The RC is the center
-            // of the world and never disconnects from anyone.
+            if (checkDisconnected()) return;
+
+            sendGamepads();
+
+            if (System.nanoTime() - heartbeatSend.getTimestamp() > sendRateController.getHeartbeatIntervalNanos()) {
+                sendHeartbeat();
+            }
+
+            sendAcks();
+            sendCommands(Integer.MAX_VALUE);
+        }
+        // For robustness and attempted ongoing liveness of the app, we catch
+        // *all* types of exception. This will help minimize disruption to the sendLoopService.
+        // With (a huge amount of) luck, the next time we're run, things might work better. Though
+        // that's unlikely, it seems better than outright killing the app here and now.
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Lanes
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * The kinds of traffic we send, in decreasing order of priority
+     */
+    public enum Lane {
+        GAMEPAD,    /// current gamepad state
+        HEARTBEAT,  /// heartbeats, which also carry time synchronization
+        ACK,        /// acknowledgements of commands we've received
+        RETRANSMIT  /// commands we originate, both their first transmission and their retries
+    }
+
+    /**
+     * Skips sending if we haven't received a packet in a while, and tells our client so. The RC
+     * is the center of the world and never disconnects from anyone.
+     *
+     * @return whether we're to assume the peer is disconnected, and so not send
+     */
+    protected boolean checkDisconnected() {
+        if (parameters.disconnectOnTimeout && lastRecvPacket != null) {
             double seconds = lastRecvPacket.seconds();
-            if (parameters.disconnectOnTimeout && lastRecvPacket != null && seconds > ASSUME_DISCONNECT_TIMER) {
+            if (seconds > ASSUME_DISCONNECT_TIMER) {
                 if (clientCallback != null) {
                     synchronized (issuedDisconnectLogMessageLock) {
                         if (!issuedDisconnectLogMessage) {
@@ -123,77 +238,154 @@ public class SendOnceRunnable implements Runnable {
                     }
                     clientCallback.peerDisconnected();
                 }
-                return;
-            }
-
-            // send heartbeat if we're on the driver station, as heartbeats are
-            // originated by the DS and merely echoed by the RC.
-            if (parameters.originateHeartbeats && heartbeatSend.getElapsedSeconds() > 0.001 * MS_HEARTBEAT_TRANSMISSION_INTERVAL) {
-                // generate a new heartbeat packet and send it
-                heartbeatSend = Heartbeat.createWithTimeStamp();
-                // keep the next three lines as close together in time as possible
-                heartbeatSend.t0 = Heartbeat.getMsTimeSyncTime();
-                RobocolDatagram packetHeartbeat = new RobocolDatagram(heartbeatSend);
-                send(packetHeartbeat);
-                // Do any logging after the transmission so as to minimize disruption of timing calculation
+                return true;
             }
+        }
+        return false;
+    }
 
-            // send gamepads if we have the info to do so (which will only be on the DS)
-            if (parameters.gamepadManager != null) {
-                long now = MyApp.Companion.getRuntime().msLong();
+    /**
+     * Sends gamepads if we have the info to do so (which will only be on the DS)
+     */
+    protected void sendGamepads() throws RobotCoreException {
+        if (parameters.gamepadManager != null) {
+            long now = MyApp.Companion.getRuntime().msLong();
 
-                for (Gamepad gamepad : parameters.gamepadManager.getGamepadsForTransmission()) {
+            List<Gamepad> gamepads = parameters.gamepadManager.getGamepadsForTransmission();
+            for (int i = 0; i < gamepads.size(); i++) {
+                Gamepad gamepad = gamepads.get(i);
 
-                    // don't send stale gamepads
-                    if (now - gamepad.timestamp > GAMEPAD_UPDATE_THRESHOLD && gamepad.atRest())
-                        continue;
+                // don't send stale gamepads
+                if (now - gamepad.timestamp > GAMEPAD_UPDATE_THRESHOLD && gamepad.atRest())
+                    continue;
 
-                    gamepad.setSequenceNumber();
-                    RobocolDatagram packetGamepad = new RobocolDatagram(gamepad);
-                    send(packetGamepad);
-                }
+                gamepad.setSequenceNumber(parameters.sequenceNumbers);
+                send(gamepad);
             }
+        }
+    }
 
-            long nanotimeNow = System.nanoTime();
+    /**
+     * Sends a heartbeat if we're on the driver station, as heartbeats are originated by the DS
+     * and merely echoed by the RC.
+     */
+    protected void sendHeartbeat() throws RobotCoreException {
+        if (parameters.originateHeartbeats) {
+            // generate a new heartbeat packet and send it
+            heartbeatSend.renewWithTimeStamp();
+            if (parameters.sequenceNumbers != null) heartbeatSend.setSequenceNumber(parameters.sequenceNumbers);
+            // keep the next two lines as close together in time as possible
+            heartbeatSend.t0 = Heartbeat.getMsTimeSyncTime();
+            send(heartbeatSend);
+            // Do any logging after the transmission so as to minimize disruption of timing calculation
+            sendRateController.onHeartbeatSent(heartbeatSend);
+        }
+    }
 
-            // send commands
-            List<Command> commandsToRemove = new ArrayList<Command>();
-            for (Command command : pendingCommands) {
+    /**
+     * Sends all the acks that are waiting. Each is sent just the once.
+     */
+    protected void sendAcks() throws RobotCoreException {
+        Command command;
+        while ((command = pendingAcks.poll()) != null) {
+            if (DEBUG) RobotLog.vv(TAG, "acking %s(%d)", command.getName(), command.getSequenceNumber());
+            send(command);
+        }
+    }
 
-                // if this command has exceeded max attempts, give up
-                if (command.getAttempts() > MAX_COMMAND_ATTEMPTS) {
-                    String msg = String.format("Giving up on command %1$s(%2$d) after %3$d attempts", command.getName(), command.getSequenceNumber(), command.getAttempts());
-                    RobotLog.vv(TAG, msg);
-                    commandsToRemove.add(command);
-                    continue;
+    /**
+     * Sends those of the commands we originated that are due for a (re)transmission
+     *
+     * @param maxCount the most commands to send
+     * @return whether there may be more commands due that we didn't get to
+     */
+    protected boolean sendCommands(int maxCount) throws RobotCoreException {
+        // Most of the time there are none, and then we don't even make an iterator
+        if (pendingCommands.isEmpty()) return false;
+
+        long nanotimeNow = System.nanoTime();
+        List<Command> commandsToRemove = null;
+        int count = 0;
+        boolean more = false;
+        for (Command command : pendingCommands) {
+
+            // if this command has exceeded max attempts, give up
+            if (command.getAttempts() > MAX_COMMAND_ATTEMPTS) {
+                String msg = String.format("Giving up on command %1$s(%2$d) after %3$d attempts", command.getName(), command.getSequenceNumber(), command.getAttempts());
+                RobotLog.vv(TAG, msg);
+                if (commandsToRemove == null) commandsToRemove = new ArrayList<Command>();
+                commandsToRemove.add(command);
+                continue;
+            }
+
+            // We only send out every once in a while so as to give ack's a chance to get back to us
+            if (command.shouldTransmit(nanotimeNow, sendRateController.getRetransmitIntervalNanos(command.getAttempts()))) {
+                if (count == maxCount) {
+                    more = true;
+                    break;
                 }
+                RobotLog.vv(TAG, "sending %s(%d), attempt: %d", command.getName(), command.getSequenceNumber(), command.getAttempts());
+                send(command);
+                count++;
+            }
+        }
+        if (commandsToRemove != null) pendingCommands.removeAll(commandsToRemove);
+        return more;
+    }
 
-                // Commands that we originate we only send out every once in a while so as to give ack's a chance to get back to us
-                if (command.isAcknowledged() || command.shouldTransmit(nanotimeNow)) {
-                    // log commands we initiated, ack the ones we didn't
-                    if (!command.isAcknowledged()) {
-                        RobotLog.vv(TAG, "sending %s(%d), attempt: %d", command.getName(), command.getSequenceNumber(), command.getAttempts());
-                    } else if (DEBUG) {
-                        RobotLog.vv(TAG, "acking %s(%d)", command.getName(), command.getSequenceNumber());
-                    }
+    /**
+     * Serializes a message into our scratch datagram and sends it
+     */
+    protected void send(RobocolParsable message) throws RobotCoreException {
+        synchronized (sendLock) {
+            sendScratchBuffer.clear();
+            int cb = message.writeToForTransmission(sendScratchBuffer);
+            sendScratchDatagram.setData(sendScratch, cb);
+            send(sendScratchDatagram);
+        }
+    }
 
-                    // send the command
-                    RobocolDatagram packetCommand = new RobocolDatagram(command);
-                    send(packetCommand);
+    /**
+     * Notes that a gamepad has changed. If we're so configured, it's sent immediately, or, if
+     * that would be too soon after the last such send, as soon thereafter as we may. The periodic
+     * send in {@link #run()} continues regardless, as a keep-alive.
+     *
+     * @see Parameters#sendGamepadsOnChange
+     */
+    public void onGamepadChanged(Gamepad gamepad) {
+        if (!parameters.sendGamepadsOnChange) return;
+        if (parameters.disconnectOnTimeout && lastRecvPacket != null && lastRecvPacket.seconds() > ASSUME_DISCONNECT_TIMER) return;
 
-                    // if this is a command we handled, remove it
-                    if (command.isAcknowledged()) commandsToRemove.add(command);
-                }
+        synchronized (gamepadSendLock) {
+            if (!gamepadsPendingSend.contains(gamepad)) gamepadsPendingSend.add(gamepad);
+
+            long nanotimeNow = System.nanoTime();
+            long nanotimeWait = parameters.msMinGamepadSendInterval * ElapsedTime.MILLIS_IN_NANO - (nanotimeNow - nanotimeLastGamepadSend);
+            if (nanotimeWait <= 0) {
+                sendPendingGamepads(nanotimeNow);
+            } else if (!gamepadSendScheduled && scheduler != null) {
+                // later changes before then just update what the deferred send will send
+                gamepadSendScheduled = true;
+                scheduler.schedule(pendingGamepadSender, nanotimeWait, TimeUnit.NANOSECONDS);
             }
-            pendingCommands.removeAll(commandsToRemove);
         }
-        // For robustness and attempted ongoing liveness of the app, we catch
-        // *all* types of exception. This will help minimize disruption to the sendLoopService.
-        // With (a huge amount of) luck, the next time we're run, things might work better. Though
-        // that's unlikely, it seems better than outright killing the app here and now.
-        catch (Exception e) {
-            e.printStackTrace();
+    }
+
+    // Must hold gamepadSendLock
+    protected void sendPendingGamepads(long nanotimeNow) {
+        if (gamepadsPendingSend.isEmpty()) return;
+        for (int i = 0; i < gamepadsPendingSend.size(); i++) {
+            Gamepad gamepad = gamepadsPendingSend.get(i);
+            gamepad.setSequenceNumber(parameters.sequenceNumbers);
+            try {
+                send(gamepad);
+            } catch (RobotCoreException e) {
+                RobotLog.logExceptionHeader(TAG, e, "exception sending gamepad");
+            }
         }
+        gamepadsPendingSend.clear();
+        nanotimeLastGamepadSend = nanotimeNow;
+        if (DEBUG) RobotLog.vv(TAG, "sent changed gamepads");
     }
 
     private void send(RobocolDatagram datagram) {
@@ -203,7 +395,20 @@ public class SendOnceRunnable implements Runnable {
     }
 
     public void sendCommand(Command cmd) {
-        pendingCommands.add(cmd);
+        // Acks are sent the once, and go in a lane of their own so that they aren't held up
+        // behind commands awaiting retransmission
+        Lane lane;
+        if (cmd.isAcknowledged()) {
+            pendingAcks.add(cmd);
+            lane = Lane.ACK;
+        } else {
+            // a command is numbered when it's made, which is in the shared sequence space
+            if (parameters.sequenceNumbers != null && cmd.getAttempts() == 0) cmd.setSequenceNumber(parameters.sequenceNumbers);
+            pendingCommands.add(cmd);
+            lane = Lane.RETRANSMIT;
+        }
+        PrioritySendLoop sendLoop = this.sendLoop;
+        if (sendLoop != null) sendLoop.signal(lane);
     }
 
     public boolean removeCommand(Command cmd) {
@@ -212,5 +417,14 @@ public class SendOnceRunnable implements Runnable {
 
     public void clearCommands() {
         pendingCommands.clear();
+        pendingAcks.clear();
+    }
+
+    public SendRateController getSendRateController() {
+        return sendRateController;
+    }
+
+    void setSendLoop(@Nullable PrioritySendLoop sendLoop) {
+        this.sendLoop = sendLoop;
     }
 }
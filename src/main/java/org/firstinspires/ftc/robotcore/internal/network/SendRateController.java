@@ -0,0 +1,211 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.robocol.Heartbeat;
+import com.qualcomm.robotcore.util.ElapsedTime;
+import com.qualcomm.robotcore.util.Range;
+import com.qualcomm.robotcore.util.RobotLog;
+
+/**
+ * {@link SendRateController} adapts our send timing to the link we find ourselves on. Round trip
+ * times are measured from our heartbeats as the robot controller echoes them back, and smoothed
+ * in the manner of TCP (RFC 6298) into a retransmission timeout (RTO). The RTO paces command
+ * retransmissions, backing off exponentially with each attempt; the same measure of the link sets
+ * the gamepad send period and the heartbeat interval. A heartbeat that goes unanswered for longer
+ * than the RTO is taken as a sign of congestion, and doubles everything until the next answer.
+ * <p>
+ * Everything is kept within the configured bounds, and until the first measurement, or if we
+ * aren't adaptive at all, the historical fixed values are used.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SendRateController {
+
+    //----------------------------------------------------------------------------------------------
+    // Constants
+    //----------------------------------------------------------------------------------------------
+
+    public static final String TAG = "SendRateController";
+    public static boolean DEBUG = false;
+
+    // RFC 6298 smoothing gains and variance multiplier
+    protected static final double ALPHA = 1.0 / 8;
+    protected static final double BETA = 1.0 / 4;
+    protected static final double K = 4;
+
+    public static final long MS_INITIAL_RTO = 200;
+    public static final long MS_INITIAL_GAMEPAD_INTERVAL = 40;
+    public static final long MS_INITIAL_HEARTBEAT_INTERVAL = SendOnceRunnable.MS_HEARTBEAT_TRANSMISSION_INTERVAL;
+
+    // heartbeats are for measuring; we don't need them as often as gamepads
+    protected static final double HEARTBEAT_TO_GAMEPAD_RATIO = 2.5;
+    protected static final int MAX_BACKOFF_SHIFT = 4;
+
+    //----------------------------------------------------------------------------------------------
+    // Configuration
+    //----------------------------------------------------------------------------------------------
+
+    public long msMinRto = 50;
+    public long msMaxRto = 1000;
+    public long msMinGamepadInterval = 20;
+    public long msMaxGamepadInterval = 80;
+    public long msMinHeartbeatInterval = 50;
+    public long msMaxHeartbeatInterval = 250;
+
+    //----------------------------------------------------------------------------------------------
+    // State
+    //----------------------------------------------------------------------------------------------
+
+    protected final boolean adaptive;
+
+    protected boolean measured = false;
+    protected double msSmoothedRtt = 0;     // SRTT
+    protected double msRttVariation = 0;    // RTTVAR
+    protected int backoffShift = 0;         // how many unanswered heartbeats have doubled us
+    protected long msOutstandingHeartbeat = 0;    // t0 of the last heartbeat we sent, until answered
+    protected long nanotimeOutstandingHeartbeat = 0;
+
+    // Derived from the above whenever they change, so that the send path just reads them
+    protected volatile long nanotimeRto = MS_INITIAL_RTO * ElapsedTime.MILLIS_IN_NANO;
+    protected volatile long nanotimeGamepadInterval = MS_INITIAL_GAMEPAD_INTERVAL * ElapsedTime.MILLIS_IN_NANO;
+    protected volatile long nanotimeHeartbeatInterval = MS_INITIAL_HEARTBEAT_INTERVAL * ElapsedTime.MILLIS_IN_NANO;
+
+    //----------------------------------------------------------------------------------------------
+    // Construction
+    //----------------------------------------------------------------------------------------------
+
+    public SendRateController(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Accessing
+    //----------------------------------------------------------------------------------------------
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the current retransmission timeout
+     */
+    public long getRtoNanos() {
+        return nanotimeRto;
+    }
+
+    /**
+     * Returns how long to wait before transmitting a command again. Each attempt waits twice as
+     * long as the one before, up to the maximum RTO.
+     *
+     * @param attempts the number of times the command has been transmitted so far
+     */
+    public long getRetransmitIntervalNanos(int attempts) {
+        long nanotimeRto = this.nanotimeRto;
+        if (!adaptive) return nanotimeRto;
+        int shift = Math.min(Math.max(attempts - 1, 0), MAX_BACKOFF_SHIFT);
+        return Math.min(nanotimeRto << shift, Math.max(nanotimeRto, msMaxRto * ElapsedTime.MILLIS_IN_NANO));
+    }
+
+    public long getGamepadIntervalNanos() {
+        return nanotimeGamepadInterval;
+    }
+
+    public long getHeartbeatIntervalNanos() {
+        return nanotimeHeartbeatInterval;
+    }
+
+    /**
+     * @return the smoothed round trip time, in milliseconds; zero if we've not yet measured one
+     */
+    public synchronized double getSmoothedRttMs() {
+        return msSmoothedRtt;
+    }
+
+    public synchronized double getRttVariationMs() {
+        return msRttVariation;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Operations
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * Notes that a heartbeat has just been sent. If the one before it hasn't been answered in
+     * longer than the RTO, we back off.
+     */
+    public synchronized void onHeartbeatSent(Heartbeat heartbeat) {
+        if (!adaptive) return;
+
+        long nanotimeNow = System.nanoTime();
+        if (msOutstandingHeartbeat != 0 && nanotimeNow - nanotimeOutstandingHeartbeat > nanotimeRto) {
+            if (backoffShift < MAX_BACKOFF_SHIFT) {
+                backoffShift++;
+                update();
+                if (DEBUG) RobotLog.vv(TAG, "heartbeat unanswered; backoff=%d rto=%d ms", backoffShift, nanotimeRto / ElapsedTime.MILLIS_IN_NANO);
+            }
+        }
+        msOutstandingHeartbeat = heartbeat.t0;
+        nanotimeOutstandingHeartbeat = nanotimeNow;
+    }
+
+    /**
+     * Takes a round trip measurement from a heartbeat of ours that the robot controller has echoed
+     *
+     * @param heartbeat the received heartbeat
+     * @param tReceived the time sync time at which it was received
+     */
+    public synchronized void onHeartbeatEchoed(Heartbeat heartbeat, long tReceived) {
+        if (!adaptive) return;
+
+        long t0 = heartbeat.t0, t1 = heartbeat.t1, t2 = heartbeat.t2;
+        if (t0 == 0 || t1 == 0 || t2 == 0 || tReceived < t0)
+            return; // not one of ours, or not yet echoed
+
+        // Time the robot controller held onto the heartbeat doesn't count against the link
+        double msRtt = Math.max(0, (tReceived - t0) - (t2 - t1));
+
+        if (!measured) {
+            measured = true;
+            msSmoothedRtt = msRtt;
+            msRttVariation = msRtt / 2;
+        } else {
+            msRttVariation = (1 - BETA) * msRttVariation + BETA * Math.abs(msSmoothedRtt - msRtt);
+            msSmoothedRtt = (1 - ALPHA) * msSmoothedRtt + ALPHA * msRtt;
+        }
+
+        if (t0 >= msOutstandingHeartbeat) {
+            msOutstandingHeartbeat = 0;
+        }
+        backoffShift = 0;
+        update();
+
+        if (DEBUG) RobotLog.vv(TAG, "rtt=%.1f srtt=%.1f rttvar=%.1f rto=%d ms", msRtt, msSmoothedRtt, msRttVariation, nanotimeRto / ElapsedTime.MILLIS_IN_NANO);
+    }
+
+    protected void update() {
+        double scale = 1 << backoffShift;
+        if (measured) {
+            // The clock we measure with only has millisecond resolution, so variation is at least that
+            double msLink = msSmoothedRtt + K * Math.max(msRttVariation, 1);
+            nanotimeRto = msToNanos(Range.clip(msLink * scale, msMinRto, msMaxRto));
+            nanotimeGamepadInterval = msToNanos(Range.clip(msLink * scale, msMinGamepadInterval, msMaxGamepadInterval));
+            nanotimeHeartbeatInterval = msToNanos(Range.clip(msLink * scale * HEARTBEAT_TO_GAMEPAD_RATIO, msMinHeartbeatInterval, msMaxHeartbeatInterval));
+        } else {
+            // Nothing to go on yet but the historical values, so it's those we back off from
+            nanotimeRto = msToNanos(Range.clip(MS_INITIAL_RTO * scale, msMinRto, msMaxRto));
+            nanotimeGamepadInterval = msToNanos(Range.clip(MS_INITIAL_GAMEPAD_INTERVAL * scale, msMinGamepadInterval, msMaxGamepadInterval));
+            nanotimeHeartbeatInterval = msToNanos(Range.clip(MS_INITIAL_HEARTBEAT_INTERVAL * scale, msMinHeartbeatInterval, msMaxHeartbeatInterval));
+        }
+    }
+
+    protected static long msToNanos(double ms) {
+        return (long) (ms * ElapsedTime.MILLIS_IN_NANO);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SendRateController - srtt:%.1f, rttvar:%.1f, rto:%d, gamepad:%d, heartbeat:%d",
+                msSmoothedRtt, msRttVariation,
+                nanotimeRto / ElapsedTime.MILLIS_IN_NANO,
+                nanotimeGamepadInterval / ElapsedTime.MILLIS_IN_NANO,
+                nanotimeHeartbeatInterval / ElapsedTime.MILLIS_IN_NANO);
+    }
+}
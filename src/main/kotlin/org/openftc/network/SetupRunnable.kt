@@ -2,16 +2,25 @@ package org.openftc.network
 
 import com.qualcomm.robotcore.robocol.Command
 import com.qualcomm.robotcore.robocol.PeerDiscoveryManager
-import com.qualcomm.robotcore.robocol.RobocolDatagramSocket
+import com.qualcomm.robotcore.robocol.RobocolConfig
+import com.qualcomm.robotcore.robocol.RobocolDatagram
+import com.qualcomm.robotcore.robocol.RobocolDatagramChannelSocket
+import com.qualcomm.robotcore.robocol.RobocolTransport
 import com.qualcomm.robotcore.util.ElapsedTime
+import org.firstinspires.ftc.robotcore.internal.network.CallbackResult
 import org.firstinspires.ftc.robotcore.internal.network.RecvLoopRunnable
+import org.firstinspires.ftc.robotcore.internal.network.SendOnceRunnable
 import java.net.InetAddress
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.atomic.AtomicBoolean
 import com.qualcomm.robotcore.util.RobotLog
 import com.qualcomm.robotcore.util.ThreadPool
 import org.firstinspires.ftc.robotcore.internal.network.NetworkConnectionHandler
+import org.firstinspires.ftc.robotcore.internal.network.RobocolReactor
 import java.util.concurrent.TimeUnit
 
 
@@ -20,10 +29,14 @@ class SetupRunnable(private val rcAddress: InetAddress,
                     private val timeSinceLastRrcvPacket: ElapsedTime) : Runnable {
 
     private val TAG = "SetupRunnable"
-    var socket: RobocolDatagramSocket? = null
+    var socket: RobocolTransport? = null
     private var recvLoopService: ExecutorService? = null
+    private var reactorSession: RobocolReactor.Session? = null
     @Volatile private var recvLoopRunnable: RecvLoopRunnable? = null
-    private var peerDiscoveryManager: PeerDiscoveryManager? = null
+    @Volatile private var peerDiscoveryManager: PeerDiscoveryManager? = null
+    private var discoveryScheduler: ScheduledExecutorService? = null   // ours, when not using the reactor's
+    private var peerWatcherFuture: ScheduledFuture<*>? = null
+    private val peerWatcher = PeerWatcher()
 
     private val initLatch = CountDownLatch(1)
 
@@ -32,19 +45,35 @@ class SetupRunnable(private val rcAddress: InetAddress,
      */
     override fun run() {
         socket?.close()
-        socket = RobocolDatagramSocket()
+        socket = RobocolConfig.newDatagramSocket()
         socket!!.listenUsingDestination(rcAddress)
         socket!!.connect(rcAddress) // The Driver Station is the one to start the connection
 
-        recvLoopService = Executors.newFixedThreadPool(2)
-        recvLoopRunnable = RecvLoopRunnable(recvLoopCallback, socket!!, timeSinceLastRrcvPacket)
-        val commandProcessor = recvLoopRunnable!!.CommandProcessor()
-        NetworkConnectionHandler.getInstance().setRecvLoopRunnable(recvLoopRunnable)
-        recvLoopService!!.execute(commandProcessor)
-        recvLoopService!!.execute(recvLoopRunnable)
+        val channelSocket = socket as? RobocolDatagramChannelSocket
+        if (RobocolConfig.useReactor && channelSocket != null) {
+            // No threads of our own: the reactor receives for us and runs our timers
+            val reactor = RobocolReactor.getInstance()
+            reactorSession = reactor.register(channelSocket, recvLoopCallback, timeSinceLastRrcvPacket)
+            recvLoopRunnable = reactorSession!!.recvLoopRunnable
+            NetworkConnectionHandler.getInstance().setRecvLoopRunnable(recvLoopRunnable)
 
-        peerDiscoveryManager?.stop()
-        peerDiscoveryManager = PeerDiscoveryManager(socket, rcAddress)
+            peerDiscoveryManager?.stop()
+            peerDiscoveryManager = PeerDiscoveryManager(socket, rcAddress, reactor.scheduler)
+            startPeerWatcher(reactor.scheduler)
+        } else {
+            recvLoopService = Executors.newFixedThreadPool(2)
+            recvLoopRunnable = RecvLoopRunnable(recvLoopCallback, socket!!, timeSinceLastRrcvPacket)
+            val commandProcessor = recvLoopRunnable!!.CommandProcessor()
+            NetworkConnectionHandler.getInstance().setRecvLoopRunnable(recvLoopRunnable)
+            recvLoopService!!.execute(commandProcessor)
+            recvLoopService!!.execute(recvLoopRunnable)
+
+            // discovery and the peer watcher share a thread
+            discoveryScheduler = ThreadPool.newScheduledExecutor(1, "peer discovery")
+            peerDiscoveryManager?.stop()
+            peerDiscoveryManager = PeerDiscoveryManager(socket, rcAddress, discoveryScheduler)
+            startPeerWatcher(discoveryScheduler!!)
+        }
 
         initLatch.countDown()
 
@@ -52,13 +81,57 @@ class SetupRunnable(private val rcAddress: InetAddress,
     }
 
     fun injectReceivedCommand(cmd: Command) {
-        if (recvLoopRunnable != null) {
+        if (reactorSession != null) {
+            reactorSession!!.injectReceivedCommand(cmd)
+        } else if (recvLoopRunnable != null) {
             recvLoopRunnable!!.injectReceivedCommand(cmd)
         } else {
             RobotLog.vv(TAG, "injectReceivedCommand(): recvLoopRunnable==null; command ignored")
         }
     }
 
+    private fun startPeerWatcher(scheduler: ScheduledExecutorService) {
+        NetworkConnectionHandler.getInstance().pushReceiveLoopCallback(peerWatcher)
+        peerWatcherFuture = scheduler.scheduleAtFixedRate(peerWatcher, MS_PEER_WATCH_INTERVAL, MS_PEER_WATCH_INTERVAL, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Tells peer discovery when the robot controller comes and goes: it's found as soon as
+     * anything arrives from it, and lost once nothing has for as long as the send side takes to
+     * assume a disconnect.
+     */
+    private inner class PeerWatcher : RecvLoopRunnable.DegenerateCallback(), Runnable {
+        private val peerConnected = AtomicBoolean(false)
+
+        override fun packetReceived(packet: RobocolDatagram): CallbackResult {
+            if (!peerConnected.get() && packet.address == rcAddress && peerConnected.compareAndSet(false, true)) {
+                onPeerFound()
+            }
+            return CallbackResult.NOT_HANDLED
+        }
+
+        override fun run() {
+            if (peerConnected.get() && timeSinceLastRrcvPacket.seconds() > SendOnceRunnable.ASSUME_DISCONNECT_TIMER
+                    && peerConnected.compareAndSet(true, false)) {
+                onPeerLost()
+            }
+        }
+    }
+
+    /**
+     * The robot controller has answered our peer discovery
+     */
+    fun onPeerFound() {
+        peerDiscoveryManager?.onPeerFound()
+    }
+
+    /**
+     * We've not heard from the robot controller in a while, so go back to looking for it in earnest
+     */
+    fun onPeerLost() {
+        peerDiscoveryManager?.onPeerLost()
+    }
+
     fun shutdown() {
         try {
             // wait for startup to get to a safe point where we can shut it down
@@ -74,9 +147,30 @@ class SetupRunnable(private val rcAddress: InetAddress,
             recvLoopRunnable = null
         }
 
+        reactorSession?.let {
+            reactorSession?.close()
+            reactorSession = null
+            recvLoopRunnable = null
+        }
+
+        peerWatcherFuture?.let {
+            peerWatcherFuture?.cancel(false)
+            peerWatcherFuture = null
+            NetworkConnectionHandler.getInstance().removeReceiveLoopCallback(peerWatcher)
+        }
+
         peerDiscoveryManager?.let {
             peerDiscoveryManager?.stop()
             peerDiscoveryManager = null
         }
+
+        discoveryScheduler?.let {
+            discoveryScheduler?.shutdownNow()
+            discoveryScheduler = null
+        }
+    }
+
+    companion object {
+        const val MS_PEER_WATCH_INTERVAL = 100L
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,213 @@
+package org.openftc.simulator
+
+import com.qualcomm.robotcore.exception.RobotCoreException
+import com.qualcomm.robotcore.robocol.Command
+import com.qualcomm.robotcore.robocol.Heartbeat
+import com.qualcomm.robotcore.robocol.PeerDiscovery
+import com.qualcomm.robotcore.robocol.RobocolConfig
+import com.qualcomm.robotcore.robocol.RobocolDatagram
+import com.qualcomm.robotcore.robocol.RobocolParsable
+import com.qualcomm.robotcore.robocol.RobocolTransport
+import com.qualcomm.robotcore.robocol.TelemetryDeltaEncoder
+import com.qualcomm.robotcore.robocol.TelemetryMessage
+import com.qualcomm.robotcore.robot.RobotState
+import com.qualcomm.robotcore.util.RobotLog
+import com.qualcomm.robotcore.util.ThreadPool
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.SocketException
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A headless stand-in for the robot controller app, for load testing the driver station without
+ * any hardware. It binds to [address] on the Robocol port and, using the same robocol classes the
+ * driver station does, answers peer discovery, echoes heartbeats with t1 and t2 filled in,
+ * acknowledges commands, and streams telemetry of the configured rate and size to whichever
+ * driver station last discovered it.
+ *
+ * Reception runs on a thread of its own; telemetry is sent from [scheduler], which may be shared
+ * by any number of simulators.
+ */
+class RobotControllerSimulator(val address: InetAddress,
+                               private val options: Options,
+                               private val scheduler: ScheduledExecutorService) {
+
+    /**
+     * What telemetry to stream: [entryCount] string entries of [valueLength] characters each,
+     * [telemetryHz] times a second. A rate of zero streams nothing. Only the first
+     * [changingEntryCount] entries change from one send to the next. If [deltaTelemetry], the
+     * telemetry is sent as deltas once the driver station acknowledges a keyframe.
+     */
+    data class Options(var telemetryHz: Double = 4.0,
+                       var entryCount: Int = 8,
+                       var valueLength: Int = 16,
+                       var robotState: RobotState = RobotState.RUNNING,
+                       var changingEntryCount: Int = Int.MAX_VALUE,
+                       var deltaTelemetry: Boolean = false)
+
+    class Stats {
+        val peerDiscoveries = AtomicLong()
+        val heartbeats = AtomicLong()
+        val commands = AtomicLong()
+        val gamepads = AtomicLong()
+        val telemetrySent = AtomicLong()
+        val bytesSent = AtomicLong()
+        val bytesReceived = AtomicLong()
+
+        override fun toString(): String {
+            return String.format("discovery:%d heartbeat:%d command:%d gamepad:%d telemetry:%d rx:%dB tx:%dB",
+                    peerDiscoveries.get(), heartbeats.get(), commands.get(), gamepads.get(),
+                    telemetrySent.get(), bytesReceived.get(), bytesSent.get())
+        }
+    }
+
+    private val TAG = "RcSimulator"
+
+    val stats = Stats()
+
+    private var socket: RobocolTransport? = null
+    private var recvService: ExecutorService? = null
+    private var telemetryFuture: ScheduledFuture<*>? = null
+    @Volatile private var driverStation: InetAddress? = null
+
+    // Everything below is reused from send to send; guarded by sendLock
+    private val sendLock = Any()
+    private val sendScratch = ByteArray(RobocolConfig.MAX_MAX_PACKET_SIZE)
+    private val sendScratchBuffer = ByteBuffer.wrap(sendScratch)
+    private val sendScratchDatagram = RobocolDatagram(sendScratch)
+    private val telemetry = TelemetryMessage()
+    private val telemetryDeltaEncoder = if (options.deltaTelemetry) TelemetryDeltaEncoder() else null
+    private val telemetryKeys = Array(options.entryCount) { String.format("key%03d", it) }
+    private val telemetryValueFormat = "%0" + Math.max(1, options.valueLength) + "d"
+    private val telemetryUnchangingValue = String.format(telemetryValueFormat, 0)
+    private var telemetryCount = 0L
+
+    // Only touched by the receive thread
+    private val heartbeat = Heartbeat()
+    private val peerDiscoveryReply = PeerDiscovery(PeerDiscovery.PeerType.PEER)
+
+    init {
+        telemetry.setDeltaEncoder(telemetryDeltaEncoder)
+    }
+
+    fun start() {
+        val socket = RobocolConfig.newDatagramSocket()
+        socket.bind(InetSocketAddress(address, RobocolConfig.PORT_NUMBER))
+        this.socket = socket
+
+        recvService = ThreadPool.newSingleThreadExecutor("rc simulator " + address.hostAddress)
+        recvService!!.execute { ThreadPool.logThreadLifeCycle("RobotControllerSimulator", { recvLoop(socket) }) }
+
+        if (options.telemetryHz > 0) {
+            val usPeriod = Math.max(1L, (1000000 / options.telemetryHz).toLong())
+            telemetryFuture = scheduler.scheduleAtFixedRate({ sendTelemetry() }, usPeriod, usPeriod, TimeUnit.MICROSECONDS)
+        }
+        RobotLog.vv(TAG, "simulating robot controller at %s", address.hostAddress)
+    }
+
+    fun stop() {
+        telemetryFuture?.cancel(false)
+        telemetryFuture = null
+
+        recvService?.let {
+            it.shutdownNow()
+            ThreadPool.awaitTerminationOrExitApplication(it, 5, TimeUnit.SECONDS, "RobotControllerSimulator", "internal error")
+        }
+        recvService = null
+
+        socket?.close()
+        socket = null
+    }
+
+    private fun recvLoop(socket: RobocolTransport) {
+        while (!Thread.currentThread().isInterrupted && !socket.isClosed) {
+            val packet = socket.recv() ?: continue
+            try {
+                stats.bytesReceived.addAndGet(packet.length.toLong())
+                dispatch(socket, packet)
+            } catch (e: RobotCoreException) {
+                RobotLog.ee(TAG, e, "unable to process packet")
+            } catch (e: SocketException) {
+                RobotLog.ee(TAG, e, "unable to connect to driver station")
+            } finally {
+                packet.close()
+            }
+        }
+    }
+
+    private fun dispatch(socket: RobocolTransport, packet: RobocolDatagram) {
+        when (packet.msgType) {
+            RobocolParsable.MsgType.PEER_DISCOVERY -> {
+                stats.peerDiscoveries.incrementAndGet()
+                if (packet.address != driverStation) {
+                    RobotLog.vv(TAG, "%s discovered by %s", address.hostAddress, packet.address.hostAddress)
+                    socket.connect(packet.address)
+                    driverStation = packet.address
+                    telemetryDeltaEncoder?.reset()
+                }
+                send(peerDiscoveryReply)
+            }
+            RobocolParsable.MsgType.HEARTBEAT -> {
+                stats.heartbeats.incrementAndGet()
+                heartbeat.fromByteBuffer(packet.byteBuffer, 0, packet.length)
+                heartbeat.t1 = Heartbeat.getMsTimeSyncTime()
+                heartbeat.setRobotState(options.robotState)
+                heartbeat.t2 = Heartbeat.getMsTimeSyncTime()
+                send(heartbeat)
+            }
+            RobocolParsable.MsgType.COMMAND -> {
+                val command = Command(packet.byteBuffer, 0, packet.length)
+                if (!command.isAcknowledged) {
+                    stats.commands.incrementAndGet()
+                    if (command.name == TelemetryDeltaEncoder.CMD_ACKNOWLEDGE_KEYFRAME) {
+                        telemetryDeltaEncoder?.onKeyframeAcknowledged(TelemetryDeltaEncoder.getAcknowledgedKeyframe(command))
+                    }
+                    command.acknowledge()
+                    send(command)
+                }
+            }
+            RobocolParsable.MsgType.GAMEPAD -> {
+                stats.gamepads.incrementAndGet()
+            }
+            else -> {
+            }
+        }
+    }
+
+    private fun sendTelemetry() {
+        if (driverStation == null) return
+        try {
+            synchronized(sendLock) {
+                val value = String.format(telemetryValueFormat, ++telemetryCount)
+                for (i in telemetryKeys.indices) {
+                    telemetry.addData(telemetryKeys[i], if (i < options.changingEntryCount) value else telemetryUnchangingValue)
+                }
+                send(telemetry)
+                stats.telemetrySent.incrementAndGet()
+            }
+        } catch (e: RobotCoreException) {
+            RobotLog.ee(TAG, e, "unable to send telemetry")
+        }
+    }
+
+    private fun send(message: RobocolParsable) {
+        val socket = this.socket ?: return
+        if (socket.inetAddress == null) return
+        synchronized(sendLock) {
+            sendScratchBuffer.clear()
+            val length = message.writeToForTransmission(sendScratchBuffer)
+            sendScratchDatagram.setData(sendScratch, length)
+            socket.send(sendScratchDatagram)
+            stats.bytesSent.addAndGet(length.toLong())
+        }
+    }
+
+    override fun toString(): String {
+        return address.hostAddress + " " + stats
+    }
+}
@@ -0,0 +1,69 @@
+package org.openftc.simulator
+
+import com.qualcomm.robotcore.robocol.LocalAddressCache
+import com.qualcomm.robotcore.robocol.RobocolConfig
+import com.qualcomm.robotcore.util.ThreadPool
+import java.net.InetAddress
+
+/**
+ * Runs one or more [RobotControllerSimulator]s on consecutive loopback addresses until killed,
+ * or for the given number of seconds, printing their counters every second.
+ *
+ * Options: `--count n`, `--first address` (127.0.0.2 by default, leaving 127.0.0.1 for the
+ * driver station), `--hz telemetryRate`, `--entries n`, `--value-length n`, `--seconds n`, and
+ * `--transport SOCKET|CHANNEL`.
+ */
+fun main(args: Array<String>) {
+    var count = 1
+    var first = "127.0.0.2"
+    var seconds = 0
+    val options = RobotControllerSimulator.Options()
+
+    var i = 0
+    while (i < args.size) {
+        val value = if (i + 1 < args.size) args[i + 1] else ""
+        when (args[i]) {
+            "--count" -> count = value.toInt()
+            "--first" -> first = value
+            "--hz" -> options.telemetryHz = value.toDouble()
+            "--entries" -> options.entryCount = value.toInt()
+            "--value-length" -> options.valueLength = value.toInt()
+            "--seconds" -> seconds = value.toInt()
+            "--transport" -> RobocolConfig.transport = RobocolConfig.Transport.valueOf(value.toUpperCase())
+            else -> {
+                System.err.println("unknown option " + args[i])
+                return
+            }
+        }
+        i += 2
+    }
+
+    val scheduler = ThreadPool.newScheduledExecutor(Math.max(1, Math.min(count, 4)), "rc simulator telemetry")
+    val firstAddress = InetAddress.getByName(first).address
+    val simulators = (0 until count).map { n ->
+        val address = firstAddress.copyOf()
+        var carry = n
+        var b = address.size - 1
+        while (carry != 0 && b >= 0) {
+            val sum = (address[b].toInt() and 0xFF) + carry
+            address[b] = sum.toByte()
+            carry = sum shr 8
+            b--
+        }
+        RobotControllerSimulator(InetAddress.getByAddress(address), options, scheduler)
+    }
+
+    simulators.forEach { it.start() }
+    Runtime.getRuntime().addShutdownHook(Thread { simulators.forEach { it.stop() } })
+
+    var elapsed = 0
+    while (seconds == 0 || elapsed < seconds) {
+        Thread.sleep(1000)
+        elapsed++
+        simulators.forEach { println(it) }
+    }
+
+    simulators.forEach { it.stop() }
+    scheduler.shutdownNow()
+    LocalAddressCache.stopInstance()
+}
@@ -20,6 +20,16 @@ class MainView : View("Hello TornadoFX") {
                 padding = Insets(10.0)
                 label("RC address")
                 addressField = textfield()
+                button("Scan") {
+                    action {
+                        // the first robot controller to answer is most likely the one wanted
+                        var first = true
+                        controller.scan { rcAddr ->
+                            if (first) addressField.text = rcAddr.hostAddress
+                            first = false
+                        }
+                    }
+                }
                 button("Connect") {
                     action {
                         controller.connect(addressField.text)
@@ -1,11 +1,32 @@
 package org.openftc.view;
 
+import com.qualcomm.robotcore.robocol.RobotControllerScanner
+import com.qualcomm.robotcore.util.RobotLog
 import org.firstinspires.ftc.robotcore.internal.network.NetworkConnectionHandler
 import tornadofx.*
+import java.io.IOException
 import java.net.InetAddress
 import java.net.UnknownHostException
 
 class MainViewController : Controller() {
+    private val TAG = "MainViewController"
+    private val scanner = RobotControllerScanner()
+
+    /**
+     * Looks for robot controllers in the background, handing each to onFound, on the UI thread,
+     * as it answers
+     */
+    fun scan(onFound: (InetAddress) -> Unit) {
+        runAsync {
+            try {
+                scanner.scan(RobotControllerScanner.Listener { rcAddr -> runLater { onFound(rcAddr) } })
+            } catch (e: IOException) {
+                // most likely we're already connected, and so have the port
+                RobotLog.ee(TAG, e, "unable to scan for robot controllers")
+            }
+        }
+    }
+
     fun connect(addressString: String) {
         try {
             val address = InetAddress.getByName(addressString)
@@ -0,0 +1,301 @@
+package com.qualcomm.robotcore.robocol;
+
+import com.qualcomm.robotcore.exception.RobotCoreException;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips telemetry through a {@link TelemetryDeltaEncoder} and {@link TelemetryDeltaDecoder}:
+ * whatever arrives, in whatever order, is to decode to just what was sent.
+ */
+public class TelemetryDeltaTest {
+
+    static final String TELEMETRY_TAG = "delta test";
+    static final int FRAME_COUNT = 5000;
+    static final int DATA_POINTS_MAX = 30;
+
+    //----------------------------------------------------------------------------------------------
+    // Round trips
+    //----------------------------------------------------------------------------------------------
+
+    @Test
+    public void roundTripOverLossyReorderingLink() throws RobotCoreException {
+        final Random random = new Random(2718);
+        final TelemetryDeltaEncoder encoder = new TelemetryDeltaEncoder();
+        TelemetryDeltaDecoder decoder = new TelemetryDeltaDecoder(new TelemetryDeltaDecoder.KeyframeListener() {
+            @Override
+            public void onKeyframe(String tag, int keyframeId) {
+                assertEquals(TELEMETRY_TAG, tag);
+                // acknowledgements get lost too
+                if (random.nextInt(5) != 0) encoder.onKeyframeAcknowledged(keyframeId);
+            }
+        });
+
+        TelemetryMessage sender = new TelemetryMessage();
+        sender.setTag(TELEMETRY_TAG);
+        sender.setDeltaEncoder(encoder);
+        TelemetryMessage receiver = new TelemetryMessage();
+
+        LinkedHashMap<String, String> strings = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, Float> numbers = new LinkedHashMap<String, Float>();
+        List<Packet> inFlight = new ArrayList<Packet>();
+        int deltasDecoded = 0;
+        int keyframesDecoded = 0;
+        int deltasLackingKeyframe = 0;
+
+        for (int frame = 0; frame < FRAME_COUNT; frame++) {
+            mutate(random, strings, numbers);
+            Packet packet = new Packet(send(sender, strings, numbers), strings, numbers);
+
+            // a fifth are lost, and the rest may be overtaken by those sent after them
+            if (random.nextInt(5) != 0) inFlight.add(packet);
+            while (inFlight.size() > 3 || (!inFlight.isEmpty() && random.nextBoolean())) {
+                Packet received = inFlight.remove(random.nextInt(inFlight.size()));
+                try {
+                    receiver.fromByteBuffer(ByteBuffer.wrap(received.bytes), 0, received.bytes.length, decoder);
+                } catch (RobotCoreException e) {
+                    // only a delta may fail, and then only when all the keyframes we've kept are newer
+                    assertTrue(isDelta(received.bytes));
+                    int keyframeId = keyframeIdOfDelta(received.bytes);
+                    assertNull(decoder.getKeyframe(TELEMETRY_TAG, keyframeId));
+                    for (TelemetryDeltaEncoder.Keyframe keyframe : decoder.keyframesByTag.get(TELEMETRY_TAG)) {
+                        assertTrue(TelemetryDeltaDecoder.idsBehind(keyframeId, keyframe.id) > 0);
+                    }
+                    deltasLackingKeyframe++;
+                    continue;
+                }
+                assertReceived(received, receiver);
+                if (isDelta(received.bytes)) deltasDecoded++;
+                else keyframesDecoded++;
+            }
+        }
+
+        assertTrue("deltas decoded: " + deltasDecoded, deltasDecoded > FRAME_COUNT / 4);
+        assertTrue("keyframes decoded: " + keyframesDecoded, keyframesDecoded > 0);
+        assertTrue("deltas lacking keyframe: " + deltasLackingKeyframe, deltasLackingKeyframe < deltasDecoded / 50);
+    }
+
+    @Test
+    public void onlyKeyframesUntilAcknowledged() throws RobotCoreException {
+        Random random = new Random(3141);
+        TelemetryMessage sender = new TelemetryMessage();
+        sender.setTag(TELEMETRY_TAG);
+        sender.setDeltaEncoder(new TelemetryDeltaEncoder());
+        TelemetryDeltaDecoder decoder = new TelemetryDeltaDecoder(null);   // never acknowledges
+        TelemetryMessage receiver = new TelemetryMessage();
+
+        LinkedHashMap<String, String> strings = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, Float> numbers = new LinkedHashMap<String, Float>();
+        for (int frame = 0; frame < TelemetryDeltaEncoder.KEYFRAME_INTERVAL * 4; frame++) {
+            mutate(random, strings, numbers);
+            Packet packet = new Packet(send(sender, strings, numbers), strings, numbers);
+
+            assertFalse(isDelta(packet.bytes));
+            receiver.fromByteBuffer(ByteBuffer.wrap(packet.bytes), 0, packet.bytes.length, decoder);
+            assertReceived(packet, receiver);
+        }
+    }
+
+    @Test
+    public void legacyReceiverIgnoresKeyframeId() throws RobotCoreException {
+        Random random = new Random(1414);
+        TelemetryMessage sender = new TelemetryMessage();
+        sender.setTag(TELEMETRY_TAG);
+        sender.setDeltaEncoder(new TelemetryDeltaEncoder());
+
+        LinkedHashMap<String, String> strings = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, Float> numbers = new LinkedHashMap<String, Float>();
+        for (int frame = 0; frame < TelemetryDeltaEncoder.KEYFRAME_INTERVAL; frame++) {
+            mutate(random, strings, numbers);
+            Packet packet = new Packet(send(sender, strings, numbers), strings, numbers);
+
+            // as decoded by a receiver that knows nothing of deltas
+            assertReceived(packet, new TelemetryMessage(packet.bytes));
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Key indices
+    //----------------------------------------------------------------------------------------------
+
+    @Test
+    public void keyMissingFromKeyframeIsSpeltOut() throws RobotCoreException {
+        TelemetryMessage sender = new TelemetryMessage();
+        sender.setTag(TELEMETRY_TAG);
+        sender.setDeltaEncoder(new TelemetryDeltaEncoder(false));
+        TelemetryDeltaDecoder decoder = new TelemetryDeltaDecoder(null);
+        TelemetryMessage receiver = new TelemetryMessage();
+
+        LinkedHashMap<String, String> strings = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, Float> numbers = new LinkedHashMap<String, Float>();
+        numbers.put("x", 1f);
+        numbers.put("y", 2f);
+        numbers.put("z", 3f);
+        byte[] keyframe = send(sender, strings, numbers);
+        assertFalse(isDelta(keyframe));
+        receiver.fromByteBuffer(ByteBuffer.wrap(keyframe), 0, keyframe.length, decoder);
+
+        // the one new key goes as the escape, then itself
+        numbers.put("heading", 90f);
+        Packet packet = new Packet(send(sender, strings, numbers), strings, numbers);
+        assertTrue(isDelta(packet.bytes));
+        assertEquals(TelemetryMessage.KEY_INDEX_NONE, packet.bytes[firstNumberKeyIndexOfDelta()] & 0xFF);
+
+        receiver.fromByteBuffer(ByteBuffer.wrap(packet.bytes), 0, packet.bytes.length, decoder);
+        assertReceived(packet, receiver);
+    }
+
+    @Test
+    public void keyIndexOutOfRangeIsRejected() throws RobotCoreException {
+        TelemetryMessage sender = new TelemetryMessage();
+        sender.setTag(TELEMETRY_TAG);
+        sender.setDeltaEncoder(new TelemetryDeltaEncoder(false));
+        TelemetryDeltaDecoder decoder = new TelemetryDeltaDecoder(null);
+        TelemetryMessage receiver = new TelemetryMessage();
+
+        LinkedHashMap<String, String> strings = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, Float> numbers = new LinkedHashMap<String, Float>();
+        numbers.put("x", 1f);
+        numbers.put("y", 2f);
+        numbers.put("z", 3f);
+        byte[] keyframe = send(sender, strings, numbers);
+        receiver.fromByteBuffer(ByteBuffer.wrap(keyframe), 0, keyframe.length, decoder);
+
+        numbers.put("y", 4f);
+        byte[] delta = send(sender, strings, numbers);
+        assertTrue(isDelta(delta));
+        assertEquals(1, delta[firstNumberKeyIndexOfDelta()]);
+
+        // there's no fourth number in the keyframe
+        delta[firstNumberKeyIndexOfDelta()] = 3;
+        try {
+            receiver.fromByteBuffer(ByteBuffer.wrap(delta), 0, delta.length, decoder);
+            fail("out of range key index was accepted");
+        } catch (RobotCoreException e) {
+            // expected
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    /**
+     * What was sent, and what it's to decode to
+     */
+    static class Packet {
+        final byte[] bytes;
+        final LinkedHashMap<String, String> strings;
+        final LinkedHashMap<String, Float> numbers;
+
+        Packet(byte[] bytes, Map<String, String> strings, Map<String, Float> numbers) {
+            this.bytes = bytes;
+            this.strings = new LinkedHashMap<String, String>(strings);
+            this.numbers = new LinkedHashMap<String, Float>(numbers);
+        }
+    }
+
+    static byte[] send(TelemetryMessage sender, Map<String, String> strings, Map<String, Float> numbers) throws RobotCoreException {
+        sender.clearData();
+        for (Map.Entry<String, String> entry : strings.entrySet()) {
+            sender.addData(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Float> entry : numbers.entrySet()) {
+            sender.addData(entry.getKey(), entry.getValue().floatValue());
+        }
+        return sender.toByteArray();
+    }
+
+    /**
+     * Makes the sort of changes telemetry sees from frame to frame: mostly new values for a few
+     * numbers, now and again a new string value, key or order
+     */
+    static void mutate(Random random, LinkedHashMap<String, String> strings, LinkedHashMap<String, Float> numbers) {
+        List<String> numberKeys = new ArrayList<String>(numbers.keySet());
+        for (int i = random.nextInt(3); i > 0 && !numberKeys.isEmpty(); i--) {
+            numbers.put(numberKeys.get(random.nextInt(numberKeys.size())), random.nextFloat());
+        }
+        List<String> stringKeys = new ArrayList<String>(strings.keySet());
+        if (random.nextInt(4) == 0 && !stringKeys.isEmpty()) {
+            strings.put(stringKeys.get(random.nextInt(stringKeys.size())), "état " + random.nextInt(4));
+        }
+
+        switch (random.nextInt(20)) {
+            case 0:
+                if (strings.size() < DATA_POINTS_MAX) strings.put("status " + random.nextInt(100), "π ≈ " + random.nextInt(10));
+                break;
+            case 1:
+                if (numbers.size() < DATA_POINTS_MAX) numbers.put("motor " + random.nextInt(100), random.nextFloat());
+                break;
+            case 2:
+                if (!stringKeys.isEmpty()) strings.remove(stringKeys.get(random.nextInt(stringKeys.size())));
+                break;
+            case 3:
+                if (!numberKeys.isEmpty()) numbers.remove(numberKeys.get(random.nextInt(numberKeys.size())));
+                break;
+            case 4: {
+                // a new key at the front, which a delta can't express
+                LinkedHashMap<String, Float> reordered = new LinkedHashMap<String, Float>();
+                reordered.put("first " + random.nextInt(100), random.nextFloat());
+                for (Map.Entry<String, Float> entry : numbers.entrySet()) {
+                    if (reordered.size() < DATA_POINTS_MAX) reordered.put(entry.getKey(), entry.getValue());
+                }
+                numbers.clear();
+                numbers.putAll(reordered);
+                break;
+            }
+            case 5:
+                if (random.nextInt(10) == 0) {
+                    strings.clear();
+                    numbers.clear();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    static void assertReceived(Packet packet, TelemetryMessage receiver) {
+        assertEquals(TELEMETRY_TAG, receiver.getTag());
+        assertEquals(new ArrayList<String>(packet.strings.keySet()), new ArrayList<String>(receiver.getDataStrings().keySet()));
+        assertEquals(new ArrayList<String>(packet.strings.values()), new ArrayList<String>(receiver.getDataStrings().values()));
+        assertEquals(new ArrayList<String>(packet.numbers.keySet()), new ArrayList<String>(receiver.getDataNumbers().keySet()));
+        assertEquals(new ArrayList<Float>(packet.numbers.values()), new ArrayList<Float>(receiver.getDataNumbers().values()));
+    }
+
+    static int flagsOffset() {
+        return RobocolParsable.HEADER_LENGTH + TelemetryMessage.cbTimestamp;
+    }
+
+    static boolean isDelta(byte[] bytes) {
+        return (bytes[flagsOffset()] & TelemetryMessage.FLAG_DELTA) != 0;
+    }
+
+    static int keyframeIdOffset() {
+        return flagsOffset() + TelemetryMessage.cbSorted + TelemetryMessage.cbRobotState + TelemetryMessage.cbTagLen + TELEMETRY_TAG.length();
+    }
+
+    static int keyframeIdOfDelta(byte[] bytes) {
+        int offset = keyframeIdOffset();
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Where the key index of the first number is, in a delta with no string data points
+     */
+    static int firstNumberKeyIndexOfDelta() {
+        return keyframeIdOffset() + TelemetryMessage.cbKeyframeId + TelemetryMessage.cbCountLen + TelemetryMessage.cbCountLen;
+    }
+}
@@ -0,0 +1,332 @@
+package com.qualcomm.robotcore.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link OrderedFloatMap} is to behave as would a LinkedHashMap of Floats, whether used directly
+ * or through its map view.
+ */
+public class OrderedFloatMapTest {
+
+    static final int KEY_COUNT = 100;
+    static final int OPERATION_COUNT = 20000;
+
+    final String[] keys = new String[KEY_COUNT];
+
+    public OrderedFloatMapTest() {
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key " + i;
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Against LinkedHashMap
+    //----------------------------------------------------------------------------------------------
+
+    @Test
+    public void randomOperations() {
+        Random random = new Random(1618);
+        OrderedFloatMap map = new OrderedFloatMap();
+        LinkedHashMap<String, Float> expected = new LinkedHashMap<String, Float>();
+
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            // few enough keys in play at a time that removals find something, and now and again more
+            String key = keys[random.nextInt(operation % 1000 < 900 ? 24 : KEY_COUNT)];
+            int choice = random.nextInt(100);
+            if (choice < 60) {
+                float value = random.nextFloat();
+                int index = map.put(key, value);
+                expected.put(key, value);
+                assertEquals(new ArrayList<String>(expected.keySet()).indexOf(key), index);
+            } else if (choice < 90) {
+                assertEquals(expected.remove(key) != null, map.remove(key));
+            } else if (choice < 99) {
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+                assertEquals(expected.containsKey(key) ? expected.get(key) : -1f, map.get(key, -1f), 0f);
+            } else {
+                map.clear();
+                expected.clear();
+            }
+            assertMatches(expected, map);
+        }
+    }
+
+    @Test
+    public void randomOperationsOnMapView() {
+        Random random = new Random(2236);
+        OrderedFloatMap map = new OrderedFloatMap();
+        Map<String, Float> view = map.asMap();
+        LinkedHashMap<String, Float> expected = new LinkedHashMap<String, Float>();
+
+        for (int operation = 0; operation < OPERATION_COUNT; operation++) {
+            String key = keys[random.nextInt(operation % 1000 < 900 ? 24 : KEY_COUNT)];
+            int choice = random.nextInt(100);
+            if (choice < 50) {
+                Float value = random.nextFloat();
+                assertEquals(expected.put(key, value), view.put(key, value));
+            } else if (choice < 70) {
+                assertEquals(expected.remove(key), view.remove(key));
+            } else if (choice < 80) {
+                // through the iterator, at a random position
+                int position = random.nextInt(expected.size() + 1);
+                removeAt(expected.entrySet().iterator(), position);
+                removeAt(view.entrySet().iterator(), position);
+            } else if (choice < 90) {
+                Float value = random.nextFloat();
+                Map.Entry<String, Float> expectedEntry = entryOf(expected, key);
+                Map.Entry<String, Float> entry = entryOf(view, key);
+                assertEquals(expectedEntry == null, entry == null);
+                if (entry != null) {
+                    assertEquals(expectedEntry.setValue(value), entry.setValue(value));
+                    assertEquals(value, entry.getValue());
+                }
+            } else if (choice < 99) {
+                assertEquals(expected.get(key), view.get(key));
+                assertEquals(expected.containsKey(key), view.containsKey(key));
+            } else {
+                view.clear();
+                expected.clear();
+            }
+            assertMatches(expected, map);
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Particular paths
+    //----------------------------------------------------------------------------------------------
+
+    @Test
+    public void removeRebuildsTable() {
+        OrderedFloatMap map = new OrderedFloatMap();
+        LinkedHashMap<String, Float> expected = new LinkedHashMap<String, Float>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            map.put(keys[i], i);
+            expected.put(keys[i], (float) i);
+        }
+
+        // everything after what's removed moves up, and must still be found where it now is
+        for (int i = 0; i < KEY_COUNT; i += 3) {
+            assertTrue(map.remove(keys[i]));
+            expected.remove(keys[i]);
+            assertMatches(expected, map);
+        }
+        for (int i = 0; i < KEY_COUNT; i += 3) {
+            assertFalse(map.remove(keys[i]));
+            assertEquals(-1, map.indexOf(keys[i]));
+        }
+
+        // and what's put back goes at the end
+        map.put(keys[0], -1f);
+        expected.put(keys[0], -1f);
+        assertMatches(expected, map);
+    }
+
+    @Test
+    public void putAll() {
+        OrderedFloatMap them = new OrderedFloatMap();
+        for (int i = 0; i < 10; i++) {
+            them.put(keys[i], i);
+        }
+
+        // into an empty map like them, by copying their arrays
+        OrderedFloatMap map = new OrderedFloatMap();
+        map.putAll(them);
+        assertMatches(copyOf(them), map);
+        assertIndependent(them, map);
+
+        // into an empty map that's been bigger
+        map = new OrderedFloatMap();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            map.put(keys[i], i);
+        }
+        map.clear();
+        map.putAll(them);
+        assertMatches(copyOf(them), map);
+        assertIndependent(them, map);
+
+        // into one that isn't empty, where theirs replace ours, and what we lack goes at the end
+        map = new OrderedFloatMap();
+        map.put(keys[50], 50f);
+        map.put(keys[5], -5f);
+        LinkedHashMap<String, Float> expected = copyOf(map);
+        expected.putAll(copyOf(them));
+        map.putAll(them);
+        assertMatches(expected, map);
+        assertIndependent(them, map);
+    }
+
+    @Test
+    public void copyConstruction() {
+        OrderedFloatMap empty = new OrderedFloatMap();
+        OrderedFloatMap small = new OrderedFloatMap();
+        OrderedFloatMap grown = new OrderedFloatMap();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            if (i < 5) small.put(keys[i], i);
+            grown.put(keys[i], i);
+        }
+        grown.remove(keys[7]);
+
+        for (OrderedFloatMap them : new OrderedFloatMap[]{empty, small, grown}) {
+            OrderedFloatMap map = new OrderedFloatMap(them);
+            assertMatches(copyOf(them), map);
+            assertIndependent(them, map);
+        }
+    }
+
+    @Test
+    public void mapViewRejectsNull() {
+        OrderedFloatMap map = new OrderedFloatMap();
+        map.put(keys[0], 0f);
+        try {
+            map.asMap().put(keys[1], null);
+            fail("null value was accepted");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        try {
+            map.asMap().entrySet().iterator().next().setValue(null);
+            fail("null value was accepted");
+        } catch (NullPointerException e) {
+            // expected
+        }
+        assertNull(map.asMap().get(keys[1]));
+        assertEquals(0f, map.get(keys[0], -1f), 0f);
+        assertEquals(1, map.size());
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Allocation
+    //----------------------------------------------------------------------------------------------
+
+    @Test
+    public void putAndGetAllocateNothingOnceGrown() {
+        com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        Assume.assumeTrue(threadMXBean != null);
+
+        OrderedFloatMap map = new OrderedFloatMap();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            map.put(keys[i], i);
+        }
+        float total = 0;
+        for (int pass = 0; pass < 20000; pass++) {
+            total += putAndGet(map, pass);
+        }
+
+        // As with the send tick, what the VM does now and again on our behalf may land in one
+        // window or another, but what put or get allocated would land in every one
+        long cbAllocatedMin = Long.MAX_VALUE;
+        long threadId = Thread.currentThread().getId();
+        for (int window = 0; window < 10 && cbAllocatedMin != 0; window++) {
+            long cbBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int pass = 0; pass < 1000; pass++) {
+                total += putAndGet(map, pass);
+            }
+            long cbAfter = threadMXBean.getThreadAllocatedBytes(threadId);
+            cbAllocatedMin = Math.min(cbAllocatedMin, cbAfter - cbBefore);
+        }
+        assertEquals("bytes allocated", 0, cbAllocatedMin);
+        assertTrue(total != 0);
+    }
+
+    float putAndGet(OrderedFloatMap map, int pass) {
+        float total = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            map.put(keys[i], pass + i);
+            total += map.get(keys[i], 0);
+        }
+        return total;
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    static void assertMatches(LinkedHashMap<String, Float> expected, OrderedFloatMap map) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.isEmpty(), map.isEmpty());
+        int index = 0;
+        for (Map.Entry<String, Float> entry : expected.entrySet()) {
+            assertEquals(entry.getKey(), map.keyAt(index));
+            assertEquals(entry.getValue(), map.valueAt(index), 0f);
+            assertEquals(index, map.indexOf(entry.getKey()));
+            index++;
+        }
+
+        Map<String, Float> view = map.asMap();
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(view.keySet()));
+        assertEquals(new ArrayList<Float>(expected.values()), new ArrayList<Float>(view.values()));
+        assertTrue(expected.equals(view));
+        assertTrue(view.equals(expected));
+        assertEquals(expected.hashCode(), view.hashCode());
+    }
+
+    /**
+     * Changes to each of them mustn't show in the other
+     */
+    void assertIndependent(OrderedFloatMap them, OrderedFloatMap map) {
+        LinkedHashMap<String, Float> theirs = copyOf(them);
+        LinkedHashMap<String, Float> ours = copyOf(map);
+        for (int i = 0; i < KEY_COUNT; i += 2) {
+            map.put(keys[i], -i);
+            ours.put(keys[i], (float) -i);
+        }
+        if (!ours.isEmpty()) {
+            String key = ours.keySet().iterator().next();
+            map.remove(key);
+            ours.remove(key);
+        }
+        assertMatches(ours, map);
+        assertMatches(theirs, them);
+
+        them.put(keys[KEY_COUNT - 1], 1e6f);
+        theirs.put(keys[KEY_COUNT - 1], 1e6f);
+        assertMatches(ours, map);
+        assertMatches(theirs, them);
+    }
+
+    static LinkedHashMap<String, Float> copyOf(OrderedFloatMap map) {
+        LinkedHashMap<String, Float> result = new LinkedHashMap<String, Float>();
+        for (int i = 0; i < map.size(); i++) {
+            result.put(map.keyAt(i), map.valueAt(i));
+        }
+        return result;
+    }
+
+    static void removeAt(Iterator<?> iterator, int position) {
+        for (int i = 0; i <= position; i++) {
+            if (!iterator.hasNext()) return;
+            iterator.next();
+        }
+        iterator.remove();
+    }
+
+    static Map.Entry<String, Float> entryOf(Map<String, Float> map, String key) {
+        for (Map.Entry<String, Float> entry : map.entrySet()) {
+            if (entry.getKey().equals(key)) return entry;
+        }
+        return null;
+    }
+
+    static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean result = ManagementFactory.getThreadMXBean();
+        if (result instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) result).isThreadAllocatedMemorySupported()) {
+            ((com.sun.management.ThreadMXBean) result).setThreadAllocatedMemoryEnabled(true);
+            return (com.sun.management.ThreadMXBean) result;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,154 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.robocol.PeerDiscoveryManager;
+import com.qualcomm.robotcore.robocol.RobocolConfig;
+import com.qualcomm.robotcore.robocol.RobocolDatagram;
+import com.qualcomm.robotcore.util.RobotLog;
+import com.qualcomm.robotcore.util.ThreadPool;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.openftc.simulator.RobotControllerSimulator;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Startup benchmark for the peer discovery schedule: how long from opening a session with a
+ * simulated robot controller until its first heartbeat echo arrives, and how long from a lost
+ * robot controller coming back until we're connected to it again. Both run over the loopback
+ * transport, so what's measured is the schedule, not the network.
+ * <p>
+ * What's measured is wall clock time, which a busy machine will stretch, so this only runs when
+ * asked for, with -Drobocol.benchmark=true.
+ */
+public class PeerDiscoveryStartupTest {
+
+    public static final String TAG = "PeerDiscoveryStartupTest";
+    public static final String BENCHMARK_PROPERTY = "robocol.benchmark";
+
+    static final int STARTUP_COUNT = 5;
+    static final long MS_WAIT_MAX = 10000;
+
+    RobocolConfig.Transport transportWas;
+    ScheduledExecutorService scheduler;
+    RobocolSessionManager sessionManager;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+        transportWas = RobocolConfig.transport;
+        RobocolConfig.transport = RobocolConfig.Transport.LOOPBACK;
+        scheduler = ThreadPool.newScheduledExecutor(1, "rc simulator telemetry");
+        sessionManager = new RobocolSessionManager();
+    }
+
+    @After
+    public void tearDown() {
+        if (sessionManager == null) return;     // not run
+        sessionManager.shutdown();
+        scheduler.shutdownNow();
+        RobocolConfig.transport = transportWas;
+    }
+
+    @Test
+    public void timeToFirstHeartbeat() throws Exception {
+        double[] msTimes = new double[STARTUP_COUNT];
+        for (int i = 0; i < STARTUP_COUNT; i++) {
+            RobotControllerSimulator simulator = newSimulator(address(80, 0, i));
+            simulator.start();
+            try {
+                FirstHeartbeatCallback callback = new FirstHeartbeatCallback();
+                long nanotimeOpen = System.nanoTime();
+                RobocolSession session = sessionManager.open(simulator.getAddress(), new InetSocketAddress(address(80, 1, i), RobocolConfig.PORT_NUMBER), null, null);
+                session.pushReceiveLoopCallback(callback);
+                msTimes[i] = (callback.awaitNanotime() - nanotimeOpen) / 1e6;
+                session.close();
+            } finally {
+                simulator.stop();
+            }
+        }
+
+        Arrays.sort(msTimes);
+        double msMedian = msTimes[STARTUP_COUNT / 2];
+        RobotLog.vv(TAG, "time to first heartbeat: min %.1f ms, median %.1f ms, max %.1f ms",
+                msTimes[0], msMedian, msTimes[STARTUP_COUNT - 1]);
+
+        // with a steady schedule from the start, we'd wait on average half the steady interval
+        assertTrue("median time to first heartbeat " + msMedian + " ms", msMedian < PeerDiscoveryManager.MS_DISCOVERY_INTERVAL / 2);
+    }
+
+    @Test
+    public void timeToReconnect() throws Exception {
+        InetAddress rcAddr = address(80, 2, 0);
+        RobotControllerSimulator simulator = newSimulator(rcAddr);
+        simulator.start();
+        RobocolSession session = sessionManager.open(rcAddr, new InetSocketAddress(address(80, 3, 0), RobocolConfig.PORT_NUMBER), null, null);
+        waitUntilConnected(session, true);
+
+        // lose the robot controller until we notice, then bring it back
+        simulator.stop();
+        waitUntilConnected(session, false);
+        simulator = newSimulator(rcAddr);
+        long nanotimeRestart = System.nanoTime();
+        simulator.start();
+        try {
+            waitUntilConnected(session, true);
+            double msReconnect = (System.nanoTime() - nanotimeRestart) / 1e6;
+            RobotLog.vv(TAG, "time to reconnect: %.1f ms", msReconnect);
+
+            // we're still in the backoff that followed the loss, so may wait up to its longest delay
+            assertTrue("time to reconnect " + msReconnect + " ms", msReconnect < 2 * PeerDiscoveryManager.MS_DISCOVERY_INTERVAL);
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    //----------------------------------------------------------------------------------------------
+    // Utility
+    //----------------------------------------------------------------------------------------------
+
+    RobotControllerSimulator newSimulator(InetAddress rcAddr) {
+        RobotControllerSimulator.Options options = new RobotControllerSimulator.Options();
+        options.setTelemetryHz(0);
+        return new RobotControllerSimulator(rcAddr, options, scheduler);
+    }
+
+    static InetAddress address(int b1, int b2, int b3) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{127, (byte) b1, (byte) b2, (byte) (b3 + 1)});
+    }
+
+    static void waitUntilConnected(RobocolSession session, boolean connected) throws InterruptedException {
+        long nanotimeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MS_WAIT_MAX);
+        while (session.isConnected() != connected) {
+            assertTrue("timed out waiting for connected=" + connected, System.nanoTime() < nanotimeDeadline);
+            Thread.sleep(1);
+        }
+    }
+
+    static class FirstHeartbeatCallback extends RecvLoopRunnable.DegenerateCallback {
+        volatile long nanotimeFirst = 0;
+
+        @Override
+        public CallbackResult heartbeatEvent(RobocolDatagram packet, long tReceived) {
+            if (nanotimeFirst == 0) nanotimeFirst = System.nanoTime();
+            return CallbackResult.NOT_HANDLED;
+        }
+
+        long awaitNanotime() throws InterruptedException {
+            long nanotimeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MS_WAIT_MAX);
+            while (nanotimeFirst == 0) {
+                assertTrue("timed out waiting for a heartbeat", System.nanoTime() < nanotimeDeadline);
+                Thread.sleep(1);
+            }
+            return nanotimeFirst;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.firstinspires.ftc.robotcore.internal.network;
+
+import com.qualcomm.robotcore.hardware.Gamepad;
+import com.qualcomm.robotcore.robocol.LoopbackTransport;
+import com.qualcomm.robotcore.util.ElapsedTime;
+import org.firstinspires.ftc.robotcore.internal.ui.RobotCoreGamepadManager;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A send tick in the steady state is to allocate nothing: everything is serialized into the
+ * one scratch buffer and sent from the one reused datagram.
+ */
+public class SendOnceRunnableAllocationTest {
+
+    static final int WARMUP_TICKS = 20000;
+    static final int MEASURED_TICKS = 1000;
+    static final int MEASURED_WINDOWS = 10;
+
+    LoopbackTransport driverStation;
+    SendOnceRunnable sendOnceRunnable;
+
+    @Before
+    public void setUp() throws Exception {
+        // Nobody is bound at the robot controller's address, so what we send is counted and then
+        // dropped; a loopback delivery would allocate the receiver's datagram on our thread
+        InetAddress rcAddr = InetAddress.getByAddress(new byte[]{127, 78, 0, 6});
+        driverStation = new LoopbackTransport();
+        driverStation.listenUsingDestination(rcAddr);
+        driverStation.connect(rcAddr);
+
+        final List<Gamepad> gamepads = Arrays.asList(new Gamepad(), new Gamepad());
+        for (Gamepad gamepad : gamepads) {
+            gamepad.left_stick_x = 0.5f;    // not at rest, so never skipped as stale
+        }
+        SendOnceRunnable.Parameters parameters = new SendOnceRunnable.Parameters(new RobotCoreGamepadManager() {
+            @Override
+            public List<Gamepad> getGamepadsForTransmission() {
+                return gamepads;
+            }
+        });
+        parameters.adaptSendRate = false;
+        sendOnceRunnable = new SendOnceRunnable(null, driverStation, new ElapsedTime(), parameters);
+
+        // a heartbeat every tick
+        sendOnceRunnable.getSendRateController().nanotimeHeartbeatInterval = 0;
+    }
+
+    @After
+    public void tearDown() {
+        driverStation.close();
+    }
+
+    @Test
+    public void tickAllocatesNothing() {
+        com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        Assume.assumeTrue(threadMXBean != null);
+
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            sendOnceRunnable.run();
+        }
+
+        // Whatever the VM itself does on our behalf now and again (deoptimizing, say) lands in
+        // one window or another; what a tick allocates would land in every one of them
+        long cbAllocatedMin = Long.MAX_VALUE;
+        long threadId = Thread.currentThread().getId();
+        for (int window = 0; window < MEASURED_WINDOWS && cbAllocatedMin != 0; window++) {
+            long sentBefore = driverStation.getSentCount();
+            long cbBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_TICKS; i++) {
+                sendOnceRunnable.run();
+            }
+            long cbAfter = threadMXBean.getThreadAllocatedBytes(threadId);
+
+            // a heartbeat and two gamepads each tick
+            assertEquals("datagrams sent", 3 * MEASURED_TICKS, driverStation.getSentCount() - sentBefore);
+            cbAllocatedMin = Math.min(cbAllocatedMin, cbAfter - cbBefore);
+        }
+        assertEquals("bytes allocated over " + MEASURED_TICKS + " ticks", 0, cbAllocatedMin);
+    }
+
+    static com.sun.management.ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean result = ManagementFactory.getThreadMXBean();
+        if (result instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) result).isThreadAllocatedMemorySupported()) {
+            ((com.sun.management.ThreadMXBean) result).setThreadAllocatedMemoryEnabled(true);
+            return (com.sun.management.ThreadMXBean) result;
+        }
+        return null;
+    }
+}